@@ -0,0 +1,79 @@
+package com.yoanpetrov.filesystemsimulator.benchmarks;
+
+import com.yoanpetrov.filesystemsimulator.exceptions.FileSystemException;
+import com.yoanpetrov.filesystemsimulator.filesystem.FileSystem;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures data block allocation on containers with different amounts of used space. The used space is either one
+ * contiguous run from the start of the container, or spread evenly over the whole container, so the free blocks are
+ * fragmented and the next-fit cursor doesn't start next to them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocationBenchmark {
+
+	private static final long CONTAINER_SIZE = 32L * 1024 * 1024;
+
+	private static final int RUN_BLOCKS = 64;
+
+	@Param({"0", "50", "99"})
+	public int percentFull;
+
+	@Param({"false", "true"})
+	public boolean fragmented;
+
+	private FileSystem fileSystem;
+
+	@Setup(Level.Trial)
+	public void setUp()
+			throws IOException, FileSystemException {
+		fileSystem = BenchmarkContainers.create(CONTAINER_SIZE);
+		int blocksToUse = (int) (CONTAINER_SIZE / 512 * percentFull / 100);
+		if (!fragmented) {
+			fileSystem.allocateDataBlocks(blocksToUse);
+			return;
+		}
+		int[] blocks = new int[(int) (CONTAINER_SIZE / 512)];
+		int used = 0;
+		int block;
+		while (used < blocks.length && (block = fileSystem.allocateDataBlock()) != -1) {
+			blocks[used++] = block;
+		}
+		int blocksToFree = Math.max(used - blocksToUse, 0);
+		for (int i = 0; i < blocksToFree; i++) {
+			fileSystem.freeDataBlock(blocks[(int) ((long) i * used / blocksToFree)]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+			throws FileSystemException {
+		BenchmarkContainers.dispose(fileSystem);
+	}
+
+	@Benchmark
+	public int allocateDataBlock()
+			throws IOException {
+		int block = fileSystem.allocateDataBlock();
+		fileSystem.freeDataBlock(block);
+		return block;
+	}
+
+	@Benchmark
+	public int allocateDataRun()
+			throws IOException {
+		int[] blocks = fileSystem.allocateDataBlocks(RUN_BLOCKS);
+		for (int block : blocks) {
+			fileSystem.freeDataBlock(block);
+		}
+		return blocks.length;
+	}
+}
@@ -0,0 +1,52 @@
+package com.yoanpetrov.filesystemsimulator.benchmarks;
+
+import com.yoanpetrov.filesystemsimulator.exceptions.FileSystemException;
+import com.yoanpetrov.filesystemsimulator.filesystem.FileSystem;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Creates and removes the temporary containers used by the benchmarks.
+ */
+final class BenchmarkContainers {
+
+	private BenchmarkContainers() {}
+
+	/**
+	 * Formats a new file system in a temporary file.
+	 * @param size the size of the data segment in bytes.
+	 * @return the new file system.
+	 */
+	static FileSystem create(long size)
+			throws IOException, FileSystemException {
+		File container = File.createTempFile("fs-bench", ".dat");
+		container.deleteOnExit();
+		return new FileSystem(container.getPath(), size);
+	}
+
+	/**
+	 * Closes the given file system and deletes its container file.
+	 * @param fileSystem the file system to dispose of.
+	 */
+	static void dispose(FileSystem fileSystem)
+			throws FileSystemException {
+		if (fileSystem == null)
+			return;
+		fileSystem.close();
+		new File(fileSystem.getSystemPath()).delete();
+	}
+
+	/**
+	 * Returns a payload of the given size filled with printable characters.
+	 * @param size the size of the payload.
+	 * @return the payload.
+	 */
+	static byte[] payload(int size) {
+		byte[] bytes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			bytes[i] = (byte) ('a' + i % 26);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,48 @@
+package com.yoanpetrov.filesystemsimulator.benchmarks;
+
+import com.yoanpetrov.filesystemsimulator.filestructures.data.DirectoryTree;
+import com.yoanpetrov.filesystemsimulator.filestructures.data.FileType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures child lookups in directories with different amounts of children.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirectoryTreeBenchmark {
+
+	@Param({"10", "1000", "100000"})
+	public int width;
+
+	private DirectoryTree tree;
+	private String[] names;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		tree = new DirectoryTree("root", 0);
+		names = new String[width];
+		for (int i = 0; i < width; i++) {
+			names[i] = "file" + i;
+			tree.addChild(names[i], i + 1, FileType.FILE);
+		}
+	}
+
+	@Benchmark
+	public DirectoryTree.Node getChild() {
+		String name = names[next];
+		next = next + 1 == names.length ? 0 : next + 1;
+		return tree.getChild(name);
+	}
+
+	@Benchmark
+	public boolean missingChild() {
+		return tree.fileExists("missing");
+	}
+}
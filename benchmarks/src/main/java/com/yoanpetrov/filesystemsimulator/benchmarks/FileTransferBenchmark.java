@@ -0,0 +1,92 @@
+package com.yoanpetrov.filesystemsimulator.benchmarks;
+
+import com.yoanpetrov.filesystemsimulator.exceptions.FileSystemException;
+import com.yoanpetrov.filesystemsimulator.filestructures.data.FileType;
+import com.yoanpetrov.filesystemsimulator.filesystem.FileSystem;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the operations that move whole files: printing, copying, importing and exporting.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileTransferBenchmark {
+
+	private static final long CONTAINER_SIZE = 64L * 1024 * 1024;
+	private static final String FILE_NAME = "source.txt";
+	private static final String COPY_NAME = "copy.txt";
+
+	@Param({"4096", "65536", "1048576"})
+	public int fileSize;
+
+	private FileSystem fileSystem;
+	private File hostFile;
+	private File exportFile;
+	private final OutputStream discard = OutputStream.nullOutputStream();
+
+	@Setup(Level.Trial)
+	public void setUp()
+			throws IOException, FileSystemException {
+		fileSystem = BenchmarkContainers.create(CONTAINER_SIZE);
+		byte[] payload = BenchmarkContainers.payload(fileSize);
+		fileSystem.makeFile(FILE_NAME, FileType.FILE);
+		fileSystem.writeToFile(FILE_NAME, payload);
+		hostFile = File.createTempFile("fs-bench-import", ".txt");
+		hostFile.deleteOnExit();
+		Files.write(hostFile.toPath(), payload);
+		exportFile = File.createTempFile("fs-bench-export", ".txt");
+		exportFile.deleteOnExit();
+		exportFile.delete();
+	}
+
+	@TearDown(Level.Invocation)
+	public void removeCopy() {
+		try {
+			fileSystem.deleteFile(COPY_NAME);
+		} catch (FileSystemException e) {
+			// Only the copy and import benchmarks create the copy.
+		}
+		exportFile.delete();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+			throws FileSystemException {
+		BenchmarkContainers.dispose(fileSystem);
+		hostFile.delete();
+	}
+
+	@Benchmark
+	public void printFile()
+			throws FileSystemException {
+		fileSystem.printFile(FILE_NAME, discard);
+	}
+
+	@Benchmark
+	public void copyFile()
+			throws FileSystemException {
+		fileSystem.copyFile(FILE_NAME, COPY_NAME);
+	}
+
+	@Benchmark
+	public void importFile()
+			throws FileSystemException {
+		fileSystem.importFile(hostFile.getPath(), COPY_NAME);
+	}
+
+	@Benchmark
+	public void exportFile()
+			throws FileSystemException {
+		fileSystem.exportFile(FILE_NAME, exportFile.getPath());
+	}
+}
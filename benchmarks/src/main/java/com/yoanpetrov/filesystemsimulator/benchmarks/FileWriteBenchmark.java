@@ -0,0 +1,62 @@
+package com.yoanpetrov.filesystemsimulator.benchmarks;
+
+import com.yoanpetrov.filesystemsimulator.exceptions.FileSystemException;
+import com.yoanpetrov.filesystemsimulator.filestructures.data.FileType;
+import com.yoanpetrov.filesystemsimulator.filesystem.FileSystem;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writing and appending payloads of different sizes to a file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileWriteBenchmark {
+
+	private static final long CONTAINER_SIZE = 64L * 1024 * 1024;
+	private static final String FILE_NAME = "bench.txt";
+
+	@Param({"100", "4096", "65536"})
+	public int payloadSize;
+
+	private FileSystem fileSystem;
+	private byte[] payload;
+
+	@Setup(Level.Trial)
+	public void setUp()
+			throws IOException, FileSystemException {
+		fileSystem = BenchmarkContainers.create(CONTAINER_SIZE);
+		fileSystem.makeFile(FILE_NAME, FileType.FILE);
+		payload = BenchmarkContainers.payload(payloadSize);
+	}
+
+	@Setup(Level.Invocation)
+	public void resetFile()
+			throws FileSystemException {
+		fileSystem.writeToFile(FILE_NAME, payload);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+			throws FileSystemException {
+		BenchmarkContainers.dispose(fileSystem);
+	}
+
+	@Benchmark
+	public void writeToFile()
+			throws FileSystemException {
+		fileSystem.writeToFile(FILE_NAME, payload);
+	}
+
+	@Benchmark
+	public void appendToFile()
+			throws FileSystemException {
+		fileSystem.appendToFile(FILE_NAME, payload);
+	}
+}
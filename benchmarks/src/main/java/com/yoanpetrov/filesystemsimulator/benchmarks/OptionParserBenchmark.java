@@ -0,0 +1,49 @@
+package com.yoanpetrov.filesystemsimulator.benchmarks;
+
+import com.yoanpetrov.filesystemsimulator.exceptions.FileSystemException;
+import com.yoanpetrov.filesystemsimulator.filestructures.data.FileType;
+import com.yoanpetrov.filesystemsimulator.filesystem.FileSystem;
+import com.yoanpetrov.filesystemsimulator.parser.OptionParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a command going through the whole OptionParser path: splitting, validation, dispatch and execution.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OptionParserBenchmark {
+
+	private static final long CONTAINER_SIZE = 8L * 1024 * 1024;
+
+	@Param({"cd /", "write bench.txt \"the quick brown fox jumps over the lazy dog\""})
+	public String command;
+
+	private FileSystem fileSystem;
+	private OptionParser parser;
+
+	@Setup(Level.Trial)
+	public void setUp()
+			throws IOException, FileSystemException {
+		fileSystem = BenchmarkContainers.create(CONTAINER_SIZE);
+		fileSystem.makeFile("bench.txt", FileType.FILE);
+		parser = new OptionParser(fileSystem);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+			throws FileSystemException {
+		BenchmarkContainers.dispose(fileSystem);
+	}
+
+	@Benchmark
+	public boolean executeCommand() {
+		return parser.executeCommand(command);
+	}
+}
@@ -1,47 +1,279 @@
 package com.yoanpetrov.filesystemsimulator;
 
-import java.util.Scanner;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import com.yoanpetrov.filesystemsimulator.exceptions.FileSystemException;
 import com.yoanpetrov.filesystemsimulator.filesystem.FileSystem;
+import com.yoanpetrov.filesystemsimulator.filesystem.FileSystemOptions;
 import com.yoanpetrov.filesystemsimulator.parser.OptionParser;
+import com.yoanpetrov.filesystemsimulator.server.CommandServer;
 
 public class Main {
 
-	private static final Scanner INPUT = new Scanner(System.in);
+	private static final BufferedReader INPUT = new BufferedReader(new InputStreamReader(System.in));
+
+	private static boolean batch = false;
+	private static String batchFile = null;
+	private static int flushInterval = OptionParser.DEFAULT_FLUSH_INTERVAL;
+	private static String containerPath = null;
+	private static long containerSize = 0;
+	private static int serverPort = -1;
+	private static int workerCount = CommandServer.DEFAULT_WORKER_COUNT;
 
 	public static void main(String[] args) {
 		FileSystem fileSystem = null;
 		OptionParser optionParser;
+		FileSystemOptions options = parseOptions(args);
 
 		System.out.println("----- Simplified UNIX file system simulator -----");
-		String path;
-		long size = 0;
+		String path = containerPath;
 		try {
-			do {
+			while (path == null || "".equals(path)) {
 				System.out.print("Enter the path to the container file: ");
-				path = INPUT.nextLine();
-			} while ("".equals(path));
-			do {
-				System.out.print("Enter the maximum file system size in bytes: ");
-				String input = INPUT.nextLine();
+				path = readLine();
+			}
+			if (!options.isFormat() && new File(path).length() > 0) {
 				try {
-					size = Long.parseLong(input);
-				} catch (NumberFormatException e) {
-					System.out.println("Invalid size!");
+					fileSystem = new FileSystem(path, options);
+				} catch (FileSystemException e) {
+					System.out.println("ERROR - Could not mount the container: " + e.getMessage());
+					System.out.println("Start with --format to create a new file system in it instead.");
+					return;
 				}
-			} while (size == 0);
-			fileSystem = new FileSystem(path, size);
+				System.out.println("Mounted the existing container.");
+			} else {
+				fileSystem = new FileSystem(path, containerSize > 0 ? containerSize : readSize(), options);
+			}
 		} catch (FileSystemException e) {
 			System.out.println("ERROR - " + e.getMessage());
+			return;
+		}
+		if (serverPort >= 0) {
+			runServer(fileSystem);
+			return;
 		}
 		optionParser = new OptionParser(fileSystem);
-		boolean running = true;
-		System.out.println("Type \"help\" for information on all available commands.");
-		while (running) {
-			System.out.print(fileSystem.getSystemPath() + "> ");
-			if (optionParser.executeCommand(INPUT.nextLine())) {
-				running = false;
+		if (batch) {
+			runBatch(optionParser);
+		} else {
+			boolean running = true;
+			System.out.println("Type \"help\" for information on all available commands.");
+			while (running) {
+				System.out.print(fileSystem.getSystemPath() + "> ");
+				if (optionParser.executeCommand(readLine())) {
+					running = false;
+				}
+			}
+		}
+		closeFileSystem(fileSystem);
+	}
+
+	/**
+	 * Serves the file system to the clients of a command server until the program is stopped. The file system is
+	 * closed when the program stops.
+	 *
+	 * @param fileSystem the file system to serve.
+	 */
+	private static void runServer(FileSystem fileSystem) {
+		CommandServer server;
+		try {
+			server = new CommandServer(fileSystem, serverPort, workerCount);
+		} catch (IOException e) {
+			System.out.println("ERROR - Could not start the server: " + e.getMessage());
+			closeFileSystem(fileSystem);
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			server.close();
+			closeFileSystem(fileSystem);
+		}));
+		System.out.println("Listening on port " + server.getPort() + ", press Ctrl+C to stop.");
+		try {
+			server.run();
+		} catch (IOException e) {
+			System.out.println("ERROR - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Closes the given file system, printing an error if it fails.
+	 *
+	 * @param fileSystem the file system to close.
+	 */
+	private static void closeFileSystem(FileSystem fileSystem) {
+		try {
+			fileSystem.close();
+		} catch (FileSystemException e) {
+			System.out.println("ERROR - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Executes the commands from the batch file, or from the standard input if no file was given, in batch mode.
+	 *
+	 * @param optionParser the parser to execute the commands with.
+	 */
+	private static void runBatch(OptionParser optionParser) {
+		try {
+			if (batchFile == null) {
+				optionParser.executeBatch(INPUT, flushInterval);
+				return;
 			}
+			try (BufferedReader commands = Files.newBufferedReader(Path.of(batchFile))) {
+				optionParser.executeBatch(commands, flushInterval);
+			}
+		} catch (IOException e) {
+			System.out.println("ERROR - Could not read the batch commands: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads a line from the standard input.
+	 *
+	 * @return the read line, or "exit" if the input has ended.
+	 */
+	private static String readLine() {
+		try {
+			String line = INPUT.readLine();
+			return line != null ? line : "exit";
+		} catch (IOException e) {
+			return "exit";
+		}
+	}
+
+	/**
+	 * Asks the user for the size of a new container until a valid size is entered.
+	 *
+	 * @return the entered size in bytes.
+	 */
+	private static long readSize() {
+		long size = 0;
+		do {
+			System.out.print("Enter the maximum file system size in bytes: ");
+			String input = readLine();
+			if ("exit".equals(input)) {
+				System.exit(0);
+			}
+			try {
+				size = Long.parseLong(input);
+			} catch (NumberFormatException e) {
+				System.out.println("Invalid size!");
+			}
+		} while (size == 0);
+		return size;
+	}
+
+	/**
+	 * Parses the startup options, passed as program arguments.
+	 * Supported options:
+	 * <ul>
+	 *     <li>{@code --mmap} - access the container through memory-mapped buffers.</li>
+	 *     <li>{@code --cache=<blocks>} - the capacity of the block cache, 0 disables the cache.</li>
+	 *     <li>{@code --format} - format the container even if it already contains a file system.</li>
+	 *     <li>{@code --no-journal} - write the metadata directly to the container instead of through the journal.</li>
+	 *     <li>{@code --commit-interval=<ms>} - the time between two background commits of the metadata journal.</li>
+	 *     <li>{@code --container=<path>} - the path to the container file, instead of asking for it.</li>
+	 *     <li>{@code --size=<bytes>} - the size of a new container, instead of asking for it.</li>
+	 *     <li>{@code --block-size=<bytes>} - the block size of a new container.</li>
+	 *     <li>{@code --batch} or {@code --batch=<file>} - execute the commands from the standard input or from the
+	 *     given file in batch mode.</li>
+	 *     <li>{@code --flush-every=<commands>} - how often a batch writes its metadata changes to the container.</li>
+	 *     <li>{@code --serve=<port>} - serve the file system to multiple clients on the given port of the loopback
+	 *     interface, instead of reading commands from the console.</li>
+	 *     <li>{@code --workers=<threads>} - the amount of threads that execute the commands of the server's clients.</li>
+	 *     <li>{@code --jmx} - register the metrics of the file system as an MBean.</li>
+	 *     <li>{@code --compress} - store the data of new files compressed.</li>
+	 *     <li>{@code --dedup} - reference existing blocks with the same content instead of writing new ones.</li>
+	 * </ul>
+	 *
+	 * @param args the program arguments.
+	 * @return the parsed startup options.
+	 */
+	private static FileSystemOptions parseOptions(String[] args) {
+		FileSystemOptions options = new FileSystemOptions();
+		for (String arg : args) {
+			if ("--mmap".equals(arg)) {
+				options.setMemoryMapped(true);
+			} else if ("--format".equals(arg)) {
+				options.setFormat(true);
+			} else if ("--no-journal".equals(arg)) {
+				options.setJournaled(false);
+			} else if ("--jmx".equals(arg)) {
+				options.setJmx(true);
+			} else if ("--compress".equals(arg)) {
+				options.setCompressed(true);
+			} else if ("--dedup".equals(arg)) {
+				options.setDeduplicated(true);
+			} else if (arg.startsWith("--commit-interval=")) {
+				options.setCommitInterval(parseIntOption(arg, (int) options.getCommitInterval()));
+			} else if (arg.startsWith("--cache=")) {
+				options.setCacheCapacity(parseIntOption(arg, options.getCacheCapacity()));
+			} else if (arg.startsWith("--container=")) {
+				containerPath = optionValue(arg);
+			} else if (arg.startsWith("--size=")) {
+				containerSize = parseLongOption(arg);
+			} else if (arg.startsWith("--block-size=")) {
+				options.setBlockSize(parseIntOption(arg, options.getBlockSize()));
+			} else if ("--batch".equals(arg)) {
+				batch = true;
+			} else if (arg.startsWith("--batch=")) {
+				batch = true;
+				batchFile = optionValue(arg);
+			} else if (arg.startsWith("--flush-every=")) {
+				flushInterval = parseIntOption(arg, flushInterval);
+			} else if (arg.startsWith("--serve=")) {
+				serverPort = parseIntOption(arg, serverPort);
+			} else if (arg.startsWith("--workers=")) {
+				workerCount = parseIntOption(arg, workerCount);
+			} else {
+				System.out.println("Unknown option: " + arg);
+			}
+		}
+		return options;
+	}
+
+	/**
+	 * Returns the value of an option in the format {@code --name=value}.
+	 *
+	 * @param arg the whole option.
+	 * @return the value of the option.
+	 */
+	private static String optionValue(String arg) {
+		return arg.substring(arg.indexOf('=') + 1);
+	}
+
+	/**
+	 * Parses the value of an option in the format {@code --name=value} as a long.
+	 *
+	 * @param arg the whole option.
+	 * @return the parsed value, 0 if the option's value is not a valid number.
+	 */
+	private static long parseLongOption(String arg) {
+		try {
+			return Long.parseLong(optionValue(arg));
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid value for option: " + arg);
+			return 0;
+		}
+	}
+
+	/**
+	 * Parses the value of an option in the format {@code --name=value}.
+	 *
+	 * @param arg          the whole option.
+	 * @param defaultValue the value to return if the option's value is not a valid number.
+	 * @return the parsed value.
+	 */
+	private static int parseIntOption(String arg, int defaultValue) {
+		try {
+			return Integer.parseInt(optionValue(arg));
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid value for option: " + arg);
+			return defaultValue;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,125 @@
+package com.yoanpetrov.filesystemsimulator.datastructures;
+
+/**
+ * Hash index from string keys to values, using open addressing with linear probing.
+ * Lookups don't allocate any objects. Removed entries are deleted by shifting the following entries of their
+ * probe sequence back, so the table never fills up with deleted markers.
+ *
+ * @param <T> the type of the values inside the index.
+ */
+public class HashIndex<T> {
+
+	private static final int INITIAL_CAPACITY = 8;
+
+	private String[] keys;
+	private Object[] values;
+	private int size;
+
+	public HashIndex() {
+		keys = new String[INITIAL_CAPACITY];
+		values = new Object[INITIAL_CAPACITY];
+		size = 0;
+	}
+
+	/**
+	 * Adds the given value with the given key to the index. If the key already exists, its value gets replaced.
+	 *
+	 * @param key   the key of the value.
+	 * @param value the value to be added.
+	 */
+	public void put(String key, T value) {
+		if ((size + 1) * 4 > keys.length * 3) {
+			grow();
+		}
+		int slot = slotOf(key);
+		if (keys[slot] == null) {
+			keys[slot] = key;
+			size++;
+		}
+		values[slot] = value;
+	}
+
+	/**
+	 * Returns the value with the given key.
+	 *
+	 * @param key the key of the value.
+	 * @return the value with the given key, null if the key doesn't exist.
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(String key) {
+		return (T) values[slotOf(key)];
+	}
+
+	/**
+	 * Removes the value with the given key from the index.
+	 *
+	 * @param key the key of the value.
+	 * @return the removed value, null if the key doesn't exist.
+	 */
+	@SuppressWarnings("unchecked")
+	public T remove(String key) {
+		int slot = slotOf(key);
+		if (keys[slot] == null) {
+			return null;
+		}
+		T removed = (T) values[slot];
+		int mask = keys.length - 1;
+		int empty = slot;
+		int current = (slot + 1) & mask;
+		while (keys[current] != null) {
+			int home = indexOf(keys[current]);
+			// moves the entry back if its home slot isn't between the empty slot and its current slot
+			if (((current - home) & mask) >= ((current - empty) & mask)) {
+				keys[empty] = keys[current];
+				values[empty] = values[current];
+				empty = current;
+			}
+			current = (current + 1) & mask;
+		}
+		keys[empty] = null;
+		values[empty] = null;
+		size--;
+		return removed;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Finds the slot of the given key, or the empty slot where it would be placed.
+	 *
+	 * @param key the key.
+	 * @return the index of the slot.
+	 */
+	private int slotOf(String key) {
+		int mask = keys.length - 1;
+		int slot = indexOf(key);
+		while (keys[slot] != null && !keys[slot].equals(key)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private int indexOf(String key) {
+		int hash = key.hashCode() * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (keys.length - 1);
+	}
+
+	/**
+	 * Doubles the capacity of the table and places every entry in its new slot.
+	 */
+	@SuppressWarnings("unchecked")
+	private void grow() {
+		String[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new String[oldKeys.length * 2];
+		values = new Object[oldValues.length * 2];
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				put(oldKeys[i], (T) oldValues[i]);
+			}
+		}
+	}
+}
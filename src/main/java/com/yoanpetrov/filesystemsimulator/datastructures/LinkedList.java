@@ -1,5 +1,7 @@
 package com.yoanpetrov.filesystemsimulator.datastructures;
 
+import java.io.PrintStream;
+
 /**
  * Linked list data structure.
  *
@@ -8,10 +10,12 @@ package com.yoanpetrov.filesystemsimulator.datastructures;
 public class LinkedList<T> {
 
 	Node head;
+	Node tail;
 	int size;
 
 	public LinkedList() {
 		head = null;
+		tail = null;
 		size = 0;
 	}
 
@@ -24,15 +28,12 @@ public class LinkedList<T> {
 		size++;
 		Node newNode = new Node(value);
 		if (head == null) {
-			head = new Node(value);
+			head = newNode;
+			tail = newNode;
 			return;
 		}
-		newNode.next = null;
-		Node last = head;
-		while (last.next != null) {
-			last = last.next;
-		}
-		last.next = newNode;
+		tail.next = newNode;
+		tail = newNode;
 	}
 
 	/**
@@ -45,6 +46,9 @@ public class LinkedList<T> {
 		Node previous = null;
 		if (temp != null && temp.data.equals(value)) {
 			head = temp.next;
+			if (head == null) {
+				tail = null;
+			}
 			size--;
 			return;
 		}
@@ -58,6 +62,9 @@ public class LinkedList<T> {
 		}
 		size--;
 		previous.next = temp.next;
+		if (temp == tail) {
+			tail = previous;
+		}
 	}
 
 	/**
@@ -79,12 +86,21 @@ public class LinkedList<T> {
 	 * Prints the elements of the list.
 	 */
 	public void print() {
+		print(System.out);
+	}
+
+	/**
+	 * Prints the elements of the list to the given stream.
+	 *
+	 * @param out the stream to print the elements to.
+	 */
+	public void print(PrintStream out) {
 		Node current = head;
 		while (current != null) {
-			System.out.print(current.data + " ");
+			out.print(current.data + " ");
 			current = current.next;
 		}
-		System.out.println();
+		out.println();
 	}
 
 	/**
@@ -1,48 +1,60 @@
 package com.yoanpetrov.filesystemsimulator.filestructures.container;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import com.yoanpetrov.filesystemsimulator.storage.ContainerStorage;
 import com.yoanpetrov.filesystemsimulator.utils.ArrayManipulator;
 
 /**
- * A sequence of 512 bytes, representing a file system block.
+ * A sequence of bytes, representing a file system block. Blocks have the default block size, unless another size is
+ * given when they are constructed.
  */
 public abstract class Block {
 
 	byte[] bytes;
 
 	public Block() {
-		bytes = new byte[512];
+		this(SuperBlock.DEFAULT_BLOCK_SIZE);
 	}
 
+	public Block(int size) {
+		bytes = new byte[size];
+	}
+
+	/**
+	 * Constructs a block with the size of the given array, holding a copy of its bytes.
+	 *
+	 * @param bytes the content of the block.
+	 */
 	public Block(byte[] bytes) {
-		this();
+		this(bytes.length);
 		setBytes(bytes);
 	}
 
 	/**
-	 * Reads 512 bytes into the bytes array of the object, from the file's current position.
+	 * Reads a block of bytes into the bytes array of the object, from the given position in the container.
 	 * If an I/O error occurs, the byte array gets reset.
 	 *
-	 * @param file the file to read the bytes from.
+	 * @param storage  the container to read the bytes from.
+	 * @param position the position of the block in the container.
 	 */
-	public void read(RandomAccessFile file) {
+	public void read(ContainerStorage storage, long position) {
 		try {
-			file.readFully(bytes);
+			storage.read(position, bytes);
 		} catch (IOException e) {
-			bytes = new byte[512];
+			bytes = new byte[bytes.length];
 		}
 	}
 
 	/**
-	 * Writes the bytes array into the file, starting from its current position.
+	 * Writes the bytes array into the container, starting from the given position.
 	 * Stops writing and returns if an I/O error occurs.
 	 *
-	 * @param file the file to write the bytes to.
+	 * @param storage  the container to write the bytes to.
+	 * @param position the position of the block in the container.
 	 */
-	public void write(RandomAccessFile file) {
+	public void write(ContainerStorage storage, long position) {
 		try {
-			file.write(bytes);
+			storage.write(position, bytes);
 		} catch (IOException e) {
 			System.err.println("Error while writing block to file.");
 		}
@@ -52,8 +64,14 @@ public abstract class Block {
 		return bytes;
 	}
 
+	/**
+	 * Replaces the content of the block with the given bytes. The size of the block doesn't change, the rest of the
+	 * block is filled with zeros.
+	 *
+	 * @param bytes the new content, at most as long as the block.
+	 */
 	public void setBytes(byte[] bytes) {
-		this.bytes = new byte[512];
+		this.bytes = new byte[this.bytes.length];
 		ArrayManipulator.copyArray(bytes, this.bytes, bytes.length);
 	}
 }
@@ -11,6 +11,10 @@ public class DataBlock extends Block {
 		super();
 	}
 
+	public DataBlock(int size) {
+		super(size);
+	}
+
 	public DataBlock(byte[] bytes) {
 		super(bytes);
 	}
@@ -24,7 +28,7 @@ public class DataBlock extends Block {
 		int appendedCount = 0;
 		int lastElement = ArrayManipulator.getElementCount(bytes);
 		for (int i = lastElement;
-			 i < 512 && (appendedCount < newBytes.length);
+			 i < bytes.length && (appendedCount < newBytes.length);
 			 i++) {
 			bytes[i] = newBytes[appendedCount++];
 		}
@@ -1,29 +1,44 @@
 package com.yoanpetrov.filesystemsimulator.filestructures.container;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import com.yoanpetrov.filesystemsimulator.exceptions.FileSystemException;
 import com.yoanpetrov.filesystemsimulator.filestructures.data.FileType;
+import com.yoanpetrov.filesystemsimulator.storage.ContainerStorage;
 import com.yoanpetrov.filesystemsimulator.utils.ArrayManipulator;
 
 /**
  * Represents an index node file system structure. An index node contains information about a file,
  * like its size, name and references to the data blocks that the file occupies.
+ * The first references are stored directly in the index node. The following ones are stored in a single indirect
+ * block, and after that in the blocks referenced by a double indirect block.
+ * <p>
+ * The data of a compressed file is stored in chunks, and a chunk that compresses well leaves some of its references
+ * unused, as -1. The type of a compressed file is stored as 2.
  */
 public class IndexNode {
 
 	public static final int INODE_SIZE = 256;
 
-	static final int MAX_DIRECT_BLOCKS = 56;
+	public static final int MAX_DIRECT_BLOCKS = 54;
 
 	static final int MAX_NAME_SIZE = 16;
 
+	private static final int DIRECT_BLOCKS_BYTES = MAX_DIRECT_BLOCKS * Integer.BYTES;
+
+	private static final short DIRECTORY_TYPE = 0;
+	private static final short FILE_TYPE = 1;
+	private static final short COMPRESSED_FILE_TYPE = 2;
+
 	FileType type;
+	boolean compressed;
 	int size;
 	int allocatedBlockCount;
 	int[] directBlocks;
+	int indirectBlock;
+	int doubleIndirectBlock;
 	int nameSize;
 	byte[] name;
 
@@ -32,47 +47,79 @@ public class IndexNode {
 	}
 
 	/**
-	 * Writes the index node to the given file, at the file's current position.
+	 * Writes the index node to the given container, at the given position.
 	 *
-	 * @param file the file to write the index node to.
+	 * @param storage  the container to write the index node to.
+	 * @param position the position of the index node in the container.
 	 */
-	public void write(RandomAccessFile file) {
+	public void write(ContainerStorage storage, long position) {
+		ByteBuffer buffer = ByteBuffer.allocate(INODE_SIZE);
+		write(buffer);
 		try {
-			file.writeShort(type == FileType.DIRECTORY ? 0 : 1);
-			file.writeInt(size);
-			file.writeInt(allocatedBlockCount);
-			for (int i = 0; i < MAX_DIRECT_BLOCKS; i++) {
-				file.writeInt(directBlocks[i]);
-			}
-			file.writeInt(nameSize);
-			file.write(name);
+			storage.write(position, buffer.array());
 		} catch (IOException e) {
 			System.err.println("Error while writing index node to file.");
 		}
 	}
 
 	/**
-	 * Reads the index node from the given file, starting at the file's current position.
+	 * Reads the index node from the given container, starting at the given position.
 	 *
-	 * @param file the file to read the index node from.
+	 * @param storage  the container to read the index node from.
+	 * @param position the position of the index node in the container.
 	 */
-	public void read(RandomAccessFile file) {
+	public void read(ContainerStorage storage, long position) {
+		byte[] bytes = new byte[INODE_SIZE];
 		try {
-			type = (file.readShort() == 0)
-					? FileType.DIRECTORY
-					: FileType.FILE;
-			size = file.readInt();
-			allocatedBlockCount = file.readInt();
-			for (int i = 0; i < MAX_DIRECT_BLOCKS; i++) {
-				directBlocks[i] = file.readInt();
-			}
-			nameSize = file.readInt();
-			file.read(name);
+			storage.read(position, bytes);
+			read(ByteBuffer.wrap(bytes));
 		} catch (IOException e) {
 			initialize();
 		}
 	}
 
+	/**
+	 * Writes the index node into the given buffer, starting at the buffer's current position. The direct block
+	 * references are copied in bulk, through an int view of the buffer.
+	 *
+	 * @param buffer the buffer to write the index node to.
+	 */
+	public void write(ByteBuffer buffer) {
+		buffer.putShort(type == FileType.DIRECTORY
+				? DIRECTORY_TYPE
+				: compressed ? COMPRESSED_FILE_TYPE : FILE_TYPE);
+		buffer.putInt(size);
+		buffer.putInt(allocatedBlockCount);
+		buffer.asIntBuffer().put(directBlocks);
+		buffer.position(buffer.position() + DIRECT_BLOCKS_BYTES);
+		buffer.putInt(indirectBlock);
+		buffer.putInt(doubleIndirectBlock);
+		buffer.putInt(nameSize);
+		buffer.put(name);
+	}
+
+	/**
+	 * Reads the index node from the given buffer, starting at the buffer's current position. The direct block
+	 * references are copied in bulk, through an int view of the buffer.
+	 *
+	 * @param buffer the buffer to read the index node from.
+	 */
+	public void read(ByteBuffer buffer) {
+		short storedType = buffer.getShort();
+		type = (storedType == DIRECTORY_TYPE)
+				? FileType.DIRECTORY
+				: FileType.FILE;
+		compressed = storedType == COMPRESSED_FILE_TYPE;
+		size = buffer.getInt();
+		allocatedBlockCount = buffer.getInt();
+		buffer.asIntBuffer().get(directBlocks);
+		buffer.position(buffer.position() + DIRECT_BLOCKS_BYTES);
+		indirectBlock = buffer.getInt();
+		doubleIndirectBlock = buffer.getInt();
+		nameSize = buffer.getInt();
+		buffer.get(name);
+	}
+
 	/**
 	 * Adds a reference to a data block in the direct block list of the index node, if there is free space.
 	 *
@@ -82,56 +129,68 @@ public class IndexNode {
 	public void addDirectBlock(int block)
 			throws FileSystemException {
 		if (isMaxSize()) {
-			if (type == FileType.FILE) {
-				throw new FileSystemException("Max file size reached");
-			} else {
-				throw new FileSystemException("Max directory size reached");
-			}
+			throw maxSizeException();
 		}
 		directBlocks[allocatedBlockCount++] = block;
 	}
 
-	/**
-	 * Removes a direct block from the direct block list of the index node.
-	 *
-	 * @param block the number of the data block to be removed.
-	 */
-	public void removeDirectBlock(int block) {
-		for (int i = 0; i < allocatedBlockCount; i++) {
-			if (directBlocks[i] == block) {
-				ArrayManipulator.shiftArrayLeft(directBlocks, i, allocatedBlockCount--);
-				return;
-			}
-		}
-	}
-
 	public int[] getDirectBlocks() {
 		return directBlocks;
 	}
 
+	public int getIndirectBlock() {
+		return indirectBlock;
+	}
+
+	public void setIndirectBlock(int indirectBlock) {
+		this.indirectBlock = indirectBlock;
+	}
+
+	public int getDoubleIndirectBlock() {
+		return doubleIndirectBlock;
+	}
+
+	public void setDoubleIndirectBlock(int doubleIndirectBlock) {
+		this.doubleIndirectBlock = doubleIndirectBlock;
+	}
+
+	public FileType getType() {
+		return type;
+	}
+
+	public void setType(FileType type) {
+		this.type = type;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
 	/**
-	 * Returns an array containing the allocated direct blocks of the node.
+	 * Sets whether the data of the file is stored in compressed chunks. Only takes effect for files.
 	 *
-	 * @return the allocated direct blocks of the node.
+	 * @param compressed true if the data is compressed, false if it is stored as it is.
 	 */
-	public int[] getAllocatedDirectBlocks() {
-		int[] result = new int[allocatedBlockCount - 1];
-		int count = 0;
-		for (int i = 1; i < allocatedBlockCount; i++) {
-			result[count++] = directBlocks[i];
-		}
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
 
-		return result;
+	public int getSize() {
+		return size;
 	}
 
-	public void setType(FileType type) {
-		this.type = type;
+	public void setSize(int size) {
+		this.size = size;
 	}
 
 	public int getAllocatedBlockCount() {
 		return allocatedBlockCount;
 	}
 
+	public void setAllocatedBlockCount(int allocatedBlockCount) {
+		this.allocatedBlockCount = allocatedBlockCount;
+	}
+
 	public String getName() {
 		return new String(Arrays.copyOfRange(name, 0, nameSize));
 	}
@@ -153,13 +212,6 @@ public class IndexNode {
 		}
 	}
 
-	public int getLastAllocatedBlock() {
-		if (isEmpty()) {
-			return -1;
-		}
-		return directBlocks[allocatedBlockCount - 1];
-	}
-
 	/**
 	 * Checks whether the directory or file, represented by the index node, is empty.
 	 *
@@ -179,9 +231,22 @@ public class IndexNode {
 	}
 
 	/**
-	 * Checks whether the file is at the maximum size.
+	 * Returns the error that is thrown when the file or directory, represented by the index node, is at its
+	 * maximum size.
+	 *
+	 * @return the exception for a full index node.
+	 */
+	public FileSystemException maxSizeException() {
+		if (type == FileType.FILE) {
+			return new FileSystemException("Max file size reached");
+		}
+		return new FileSystemException("Max directory size reached");
+	}
+
+	/**
+	 * Checks whether the direct block list of the index node is full.
 	 *
-	 * @return true if the amount of allocated blocks has reached the max amount, false otherwise.
+	 * @return true if the amount of allocated blocks has reached the amount of direct blocks, false otherwise.
 	 */
 	public boolean isMaxSize() {
 		return allocatedBlockCount >= MAX_DIRECT_BLOCKS;
@@ -193,9 +258,12 @@ public class IndexNode {
 	private void initialize() {
 		directBlocks = new int[MAX_DIRECT_BLOCKS];
 		ArrayManipulator.fillArray(directBlocks, -1);
+		indirectBlock = -1;
+		doubleIndirectBlock = -1;
 		allocatedBlockCount = 0;
 		size = 0;
 		type = FileType.DIRECTORY;
+		compressed = false;
 		nameSize = 0;
 		name = new byte[MAX_NAME_SIZE];
 	}
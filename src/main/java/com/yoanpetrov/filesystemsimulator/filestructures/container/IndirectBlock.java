@@ -0,0 +1,62 @@
+package com.yoanpetrov.filesystemsimulator.filestructures.container;
+
+/**
+ * Represents an indirect block in a file system. An indirect block is a data block that stores a list of
+ * block numbers instead of file data.
+ */
+public class IndirectBlock extends Block {
+
+	public IndirectBlock() {
+		super();
+	}
+
+	public IndirectBlock(int size) {
+		super(size);
+	}
+
+	/**
+	 * Returns the amount of block numbers that fit in the block.
+	 *
+	 * @return the capacity of the block.
+	 */
+	public int getPointerCount() {
+		return bytes.length / 4;
+	}
+
+	/**
+	 * Returns the block number at the given index.
+	 *
+	 * @param index the index of the block number.
+	 * @return the block number.
+	 */
+	public int getPointer(int index) {
+		int offset = index * 4;
+		return ((bytes[offset] & 0xff) << 24)
+				| ((bytes[offset + 1] & 0xff) << 16)
+				| ((bytes[offset + 2] & 0xff) << 8)
+				| (bytes[offset + 3] & 0xff);
+	}
+
+	/**
+	 * Sets the block number at the given index.
+	 *
+	 * @param index   the index of the block number.
+	 * @param pointer the block number.
+	 */
+	public void setPointer(int index, int pointer) {
+		int offset = index * 4;
+		bytes[offset] = (byte) (pointer >>> 24);
+		bytes[offset + 1] = (byte) (pointer >>> 16);
+		bytes[offset + 2] = (byte) (pointer >>> 8);
+		bytes[offset + 3] = (byte) pointer;
+	}
+
+	/**
+	 * Sets every block number in the block to -1.
+	 */
+	public void clear() {
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) 0xff;
+		}
+	}
+}
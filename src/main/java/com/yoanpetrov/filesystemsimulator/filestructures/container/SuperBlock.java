@@ -1,45 +1,138 @@
 package com.yoanpetrov.filesystemsimulator.filestructures.container;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import com.yoanpetrov.filesystemsimulator.exceptions.FileSystemException;
+import com.yoanpetrov.filesystemsimulator.storage.ContainerStorage;
 
 /**
  * Represents a super block file system structure.
+ * <p>
+ * The reference count region and the metadata journal region, if the container has them, are placed after the data
+ * block region, in this order. Containers that were created before these regions existed have zeros in their fields,
+ * so they are read as containers without them.
+ * <p>
+ * The block size is chosen when the container is formatted, and all regions are measured in blocks of that size.
+ * It is stored in a 16-bit field, so the maximum block size of 64 KB is stored as 0.
+ * <p>
+ * The super block is followed by the watermarks of the index node bitmap, the data bitmap and the reference count
+ * region, which are not part of this class since they change whenever a region grows, and are kept by the regions
+ * themselves. A watermark of 0 means that the whole region has been written, as in containers created before the
+ * watermarks existed.
  */
 public class SuperBlock {
 
-	static final int BYTES_TAKEN_IN_FILE = 30;
+	static final int BYTES_TAKEN_IN_FILE = 50;
 
-	short blockSize;
+	/**
+	 * The positions of the watermarks of the index node bitmap, the data bitmap and the reference count region in
+	 * the container, in bytes.
+	 */
+	public static final int INODE_BITMAP_WATERMARK_POSITION = BYTES_TAKEN_IN_FILE;
+	public static final int DATA_BITMAP_WATERMARK_POSITION = INODE_BITMAP_WATERMARK_POSITION + 4;
+	public static final int REFERENCE_COUNT_WATERMARK_POSITION = DATA_BITMAP_WATERMARK_POSITION + 4;
+
+	/**
+	 * The default, minimum and maximum block size in bytes. The block size must be a power of two.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 512;
+	public static final int MIN_BLOCK_SIZE = 512;
+	public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * The minimum and maximum size of the journal region in bytes. Between them, the journal takes 1/32 of the
+	 * size of the data block region, but it always has at least MIN_JOURNAL_BLOCKS blocks.
+	 */
+	static final int MIN_JOURNAL_BYTES = 512 * 1024;
+	static final int MAX_JOURNAL_BYTES = 8 * 1024 * 1024;
+	static final int MIN_JOURNAL_BLOCKS = 64;
+
+	/**
+	 * The amount of data bytes per index node. The index nodes are allocated in groups of INDEX_NODE_GROUP.
+	 */
+	static final int BYTES_PER_INDEX_NODE = 56 * 512;
+	static final int INDEX_NODE_GROUP = 4096;
+
+	/**
+	 * Identifies a block as the super block of a container created by this file system.
+	 */
+	static final int MAGIC = 0x55465353;
+
+	int blockSize;
 	int totalBlockCount;
 	long maxSizeBytes;
 	int inodeBitmapOffset;
 	int dataBitmapOffset;
 	int inodeBlockOffset;
 	int dataBlockOffset;
+	int journalOffset;
+	int journalBlockCount;
+	int referenceCountOffset;
+	int referenceCountBlockCount;
 
 	public SuperBlock() {
-		blockSize = 512;
+		blockSize = DEFAULT_BLOCK_SIZE;
 	}
 
 	/**
-	 * Writes the super block to the given file, at the file's current position.
+	 * Writes the super block to the first block of the given container.
 	 *
-	 * @param file the file to write the super block to.
+	 * @param storage the container to write the super block to.
 	 */
-	public void write(RandomAccessFile file)
+	public void write(ContainerStorage storage)
 			throws IOException {
-		file.writeShort(blockSize);
-		file.writeInt(totalBlockCount);
-		file.writeLong(maxSizeBytes);
-		file.writeInt(inodeBitmapOffset);
-		file.writeInt(dataBitmapOffset);
-		file.writeInt(inodeBlockOffset);
-		file.writeInt(dataBlockOffset);
-		file.skipBytes(512 - BYTES_TAKEN_IN_FILE);
+		ByteBuffer buffer = ByteBuffer.allocate(BYTES_TAKEN_IN_FILE);
+		buffer.putShort((short) blockSize);
+		buffer.putInt(totalBlockCount);
+		buffer.putLong(maxSizeBytes);
+		buffer.putInt(inodeBitmapOffset);
+		buffer.putInt(dataBitmapOffset);
+		buffer.putInt(inodeBlockOffset);
+		buffer.putInt(dataBlockOffset);
+		buffer.putInt(MAGIC);
+		buffer.putInt(journalOffset);
+		buffer.putInt(journalBlockCount);
+		buffer.putInt(referenceCountOffset);
+		buffer.putInt(referenceCountBlockCount);
+		storage.write(0, buffer.array());
 	}
 
-	public short getBlockSize() {
+	/**
+	 * Reads the super block from the first block of the given container.
+	 *
+	 * @param storage the container to read the super block from.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if the first block of the container is not a valid super block.
+	 */
+	public void read(ContainerStorage storage)
+			throws IOException, FileSystemException {
+		if (storage.length() < BYTES_TAKEN_IN_FILE) {
+			throw new FileSystemException("The container is not a valid file system");
+		}
+		byte[] bytes = new byte[BYTES_TAKEN_IN_FILE];
+		storage.read(0, bytes);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		blockSize = Short.toUnsignedInt(buffer.getShort());
+		if (blockSize == 0) {
+			blockSize = MAX_BLOCK_SIZE;
+		}
+		totalBlockCount = buffer.getInt();
+		maxSizeBytes = buffer.getLong();
+		inodeBitmapOffset = buffer.getInt();
+		dataBitmapOffset = buffer.getInt();
+		inodeBlockOffset = buffer.getInt();
+		dataBlockOffset = buffer.getInt();
+		if (buffer.getInt() != MAGIC) {
+			throw new FileSystemException("The container is not a valid file system");
+		}
+		journalOffset = buffer.getInt();
+		journalBlockCount = buffer.getInt();
+		referenceCountOffset = buffer.getInt();
+		referenceCountBlockCount = buffer.getInt();
+		validate(storage.length());
+	}
+
+	public int getBlockSize() {
 		return blockSize;
 	}
 
@@ -63,6 +156,51 @@ public class SuperBlock {
 		return dataBlockOffset;
 	}
 
+	/**
+	 * Returns the amount of blocks in the data block region.
+	 *
+	 * @return the amount of data blocks.
+	 */
+	public int getDataBlockCount() {
+		int dataBlockEnd = totalBlockCount;
+		if (referenceCountBlockCount > 0) {
+			dataBlockEnd = referenceCountOffset;
+		} else if (journalBlockCount > 0) {
+			dataBlockEnd = journalOffset;
+		}
+		return dataBlockEnd - dataBlockOffset;
+	}
+
+	public int getJournalOffset() {
+		return journalOffset;
+	}
+
+	public int getJournalBlockCount() {
+		return journalBlockCount;
+	}
+
+	/**
+	 * Checks whether the container has a metadata journal region.
+	 *
+	 * @return true if the container has a journal, false otherwise.
+	 */
+	public boolean hasJournal() {
+		return journalBlockCount > 0;
+	}
+
+	public int getReferenceCountOffset() {
+		return referenceCountOffset;
+	}
+
+	/**
+	 * Checks whether the container has a reference count region, which allows data blocks to be shared by files.
+	 *
+	 * @return true if the container has reference counts, false otherwise.
+	 */
+	public boolean hasReferenceCounts() {
+		return referenceCountBlockCount > 0;
+	}
+
 	/**
 	 * Initializes the fields of the super block, calculating the offsets and setting them,
 	 * depending on the given max size of the container.
@@ -70,23 +208,101 @@ public class SuperBlock {
 	 * @param maxSizeBytes the max size of the container.
 	 */
 	public void initialize(long maxSizeBytes) {
+		initialize(maxSizeBytes, DEFAULT_BLOCK_SIZE, false);
+	}
+
+	/**
+	 * Initializes the fields of the super block, calculating the offsets and setting them,
+	 * depending on the given max size of the container and the given block size.
+	 *
+	 * @param maxSizeBytes the max size of the container.
+	 * @param blockSize    the size of a block in bytes, which must be a valid block size.
+	 * @param journal      true to reserve a metadata journal region after the data blocks, false otherwise.
+	 */
+	public void initialize(long maxSizeBytes, int blockSize, boolean journal) {
 		this.maxSizeBytes = maxSizeBytes;
-		calculateOffsets();
+		this.blockSize = blockSize;
+		calculateOffsets(journal, true);
+	}
+
+	/**
+	 * Checks whether the given block size is a power of two between MIN_BLOCK_SIZE and MAX_BLOCK_SIZE.
+	 *
+	 * @param blockSize the block size in bytes.
+	 * @return true if the block size is valid, false otherwise.
+	 */
+	public static boolean isValidBlockSize(int blockSize) {
+		return blockSize >= MIN_BLOCK_SIZE && blockSize <= MAX_BLOCK_SIZE && Integer.bitCount(blockSize) == 1;
+	}
+
+	/**
+	 * Checks whether the fields of a super block, read from a container, are consistent with each other and with
+	 * the size of the container.
+	 *
+	 * @param containerLength the size of the container in bytes.
+	 * @throws FileSystemException if the super block is not consistent.
+	 */
+	private void validate(long containerLength)
+			throws FileSystemException {
+		if (!isValidBlockSize(blockSize)) {
+			throw new FileSystemException("The super block of the container is corrupted");
+		}
+		SuperBlock expected = new SuperBlock();
+		expected.maxSizeBytes = maxSizeBytes;
+		expected.blockSize = blockSize;
+		expected.calculateOffsets(journalBlockCount > 0, referenceCountBlockCount > 0);
+		if (blockSize != expected.blockSize
+				|| totalBlockCount != expected.totalBlockCount
+				|| inodeBitmapOffset != expected.inodeBitmapOffset
+				|| dataBitmapOffset != expected.dataBitmapOffset
+				|| inodeBlockOffset != expected.inodeBlockOffset
+				|| dataBlockOffset != expected.dataBlockOffset
+				|| journalOffset != expected.journalOffset
+				|| journalBlockCount != expected.journalBlockCount
+				|| referenceCountOffset != expected.referenceCountOffset
+				|| referenceCountBlockCount != expected.referenceCountBlockCount) {
+			throw new FileSystemException("The super block of the container is corrupted");
+		}
+		if (containerLength < (long) totalBlockCount * blockSize) {
+			throw new FileSystemException("The container is smaller than its super block states");
+		}
 	}
 
 	/**
 	 * Calculates the offsets of the super block.
+	 *
+	 * @param journal         true to reserve a metadata journal region after the data blocks, false otherwise.
+	 * @param referenceCounts true to reserve a reference count region, with a byte per data block, after the data
+	 *                        blocks, false otherwise.
 	 */
-	private void calculateOffsets() {
-		int dataBlockCount = (int) Math.ceil(maxSizeBytes / 512.0);
-		int maxFileCount = (int) Math.ceil(dataBlockCount / 56.0);
+	private void calculateOffsets(boolean journal, boolean referenceCounts) {
+		int dataBlockCount = (int) Math.ceil((double) maxSizeBytes / blockSize);
+		int maxFileCount = (int) Math.ceil((double) maxSizeBytes / BYTES_PER_INDEX_NODE);
+		int inodeCount = (int) Math.ceil(maxFileCount / (double) INDEX_NODE_GROUP) * INDEX_NODE_GROUP;
+		int bitsPerBitmapBlock = blockSize * 8;
 		short superBlockCount = 1;
-		int inodeBitmapBlockCount = (int) Math.ceil(maxFileCount / 4096.0);
-		int dataBitmapBlockCount = (int) Math.ceil(dataBlockCount / 4096.0);
-		int inodeBlockCount = inodeBitmapBlockCount * 4096 / 2;
+		int inodeBitmapBlockCount = (int) Math.ceil(inodeCount / (double) bitsPerBitmapBlock);
+		int dataBitmapBlockCount = (int) Math.ceil(dataBlockCount / (double) bitsPerBitmapBlock);
+		int inodeBlockCount = inodeCount / (blockSize / IndexNode.INODE_SIZE);
 		totalBlockCount = superBlockCount + inodeBitmapBlockCount +
 				dataBitmapBlockCount + inodeBlockCount + dataBlockCount;
 		setOffsets(inodeBitmapBlockCount, dataBitmapBlockCount, inodeBlockCount);
+		referenceCountOffset = 0;
+		referenceCountBlockCount = 0;
+		if (referenceCounts) {
+			referenceCountOffset = totalBlockCount;
+			referenceCountBlockCount = (dataBlockCount + blockSize - 1) / blockSize;
+			totalBlockCount += referenceCountBlockCount;
+		}
+		journalOffset = 0;
+		journalBlockCount = 0;
+		if (journal) {
+			journalOffset = totalBlockCount;
+			int minJournalBlocks = Math.max(MIN_JOURNAL_BYTES / blockSize, MIN_JOURNAL_BLOCKS);
+			int maxJournalBlocks = Math.max(MAX_JOURNAL_BYTES / blockSize, minJournalBlocks);
+			journalBlockCount = Math.min(Math.max(dataBlockCount / 32, minJournalBlocks), maxJournalBlocks);
+			totalBlockCount += journalBlockCount;
+		}
 	}
 
 	/**
@@ -1,22 +1,65 @@
 package com.yoanpetrov.filesystemsimulator.filestructures.data;
 
+import java.util.concurrent.atomic.LongAdder;
 import com.yoanpetrov.filesystemsimulator.datastructures.*;
 import com.yoanpetrov.filesystemsimulator.exceptions.FileSystemException;
 
 /**
  * Represents a directory tree in a simulated file system. Used by FileSystem objects.
+ * <p>
+ * The current directory is kept in a cursor. By default all callers share a single cursor, but a thread can bind
+ * its own cursor with useCursor(), so that multiple sessions can each have their own current directory in the same
+ * tree.
+ * <p>
+ * Every lookup of a name in a directory is counted in a LongAdder, which can be shared with the metrics of the file
+ * system.
  */
 public class DirectoryTree {
 
 	final Node root;
-	Node currentDir;
-	StringList path;
+	final Cursor sharedCursor;
+	final ThreadLocal<Cursor> boundCursor;
+	final LongAdder lookups;
 
 	public DirectoryTree(String name, int inodeNumber) {
+		this(name, inodeNumber, new LongAdder());
+	}
+
+	/**
+	 * Constructs a tree with a root node with the given name and index node number.
+	 *
+	 * @param name        the name of the root node.
+	 * @param inodeNumber the index node number of the root node.
+	 * @param lookups     the counter to count the lookups of names in.
+	 */
+	public DirectoryTree(String name, int inodeNumber, LongAdder lookups) {
 		root = new Node(name, inodeNumber, FileType.DIRECTORY, null);
-		currentDir = root;
-		path = new StringList();
-		path.append(name);
+		sharedCursor = new Cursor(root);
+		boundCursor = new ThreadLocal<>();
+		this.lookups = lookups;
+	}
+
+	/**
+	 * Creates a new cursor, which points to the root of the tree.
+	 *
+	 * @return the new cursor.
+	 */
+	public Cursor newCursor() {
+		return new Cursor(root);
+	}
+
+	/**
+	 * Binds the given cursor to the calling thread. Until another cursor is bound, all operations of the thread
+	 * that depend on the current directory use the given cursor.
+	 *
+	 * @param cursor the cursor to bind, null to use the shared cursor again.
+	 */
+	public void useCursor(Cursor cursor) {
+		if (cursor == null) {
+			boundCursor.remove();
+		} else {
+			boundCursor.set(cursor);
+		}
 	}
 
 	/**
@@ -27,8 +70,32 @@ public class DirectoryTree {
 	 * @param type        the file type of the node.
 	 */
 	public void addChild(String name, int inodeNumber, FileType type) {
-		Node newNode = new Node(name, inodeNumber, type, currentDir);
-		currentDir.childNodes.append(newNode);
+		addChild(cursor().currentDir, name, inodeNumber, type);
+	}
+
+	/**
+	 * Adds a child node with the given name, index node number and file type to the given parent node.
+	 *
+	 * @param parent      the node to add the child to.
+	 * @param name        the name of the node.
+	 * @param inodeNumber the index node number of the node.
+	 * @param type        the file type of the node.
+	 * @return the added node.
+	 */
+	public Node addChild(Node parent, String name, int inodeNumber, FileType type) {
+		Node newNode = new Node(name, inodeNumber, type, parent);
+		parent.childNodes.append(newNode);
+		parent.childIndex.put(name, newNode);
+		return newNode;
+	}
+
+	/**
+	 * Returns the root node of the tree.
+	 *
+	 * @return the root node.
+	 */
+	public Node getRoot() {
+		return root;
 	}
 
 	/**
@@ -37,16 +104,11 @@ public class DirectoryTree {
 	 * @param name the name of the node to be removed.
 	 */
 	public void removeChild(String name) {
-		Object[] nodes = currentDir.childNodes.toArray();
-		Node nodeToRemove = null;
-		for (Object node : nodes) {
-			Node temp = (Node) node;
-			if (temp.name.equals(name)) {
-				nodeToRemove = temp;
-			}
-		}
+		Node currentDir = cursor().currentDir;
+		Node nodeToRemove = currentDir.childIndex.remove(name);
 		if (nodeToRemove != null) {
 			currentDir.childNodes.remove(nodeToRemove);
+			nodeToRemove.removed = true;
 		}
 	}
 
@@ -54,28 +116,37 @@ public class DirectoryTree {
 	 * Removes the current node from the tree.
 	 */
 	public void removeCurrent() {
-		String name = currentDir.name;
+		String name = cursor().currentDir.name;
 		goToParent();
 		removeChild(name);
 	}
 
 	/**
-	 * Checks whether the node with the given name is an existing child node of the current node.
+	 * Checks whether the current directory has been removed from the tree, which can happen when another cursor
+	 * removes it or one of its ancestors.
 	 *
-	 * @param name the name of the node.
-	 * @return true if the node exists and is a file, false otherwise.
+	 * @return true if the current directory has been removed, false otherwise.
 	 */
-	public boolean fileExists(String name) {
-		Object[] nodes = currentDir.childNodes.toArray();
-		for (Object node : nodes) {
-			Node temp = (Node) node;
-			if (temp.name.equals(name) && temp.type == FileType.FILE) {
+	public boolean isCurrentDirRemoved() {
+		for (Node node = cursor().currentDir; node != null; node = node.parent) {
+			if (node.removed) {
 				return true;
 			}
 		}
 		return false;
 	}
 
+	/**
+	 * Checks whether the node with the given name is an existing child node of the current node.
+	 *
+	 * @param name the name of the node.
+	 * @return true if the node exists and is a file, false otherwise.
+	 */
+	public boolean fileExists(String name) {
+		Node node = lookup(cursor().currentDir, name);
+		return node != null && node.type == FileType.FILE;
+	}
+
 	/**
 	 * Checks whether the node with the given name is an existing child node of the current node.
 	 *
@@ -83,14 +154,8 @@ public class DirectoryTree {
 	 * @return true if the node exists and is a directory, false otherwise.
 	 */
 	public boolean dirExists(String name) {
-		Object[] nodes = currentDir.childNodes.toArray();
-		for (Object node : nodes) {
-			Node temp = (Node) node;
-			if (temp.name.equals(name) && temp.type == FileType.DIRECTORY) {
-				return true;
-			}
-		}
-		return false;
+		Node node = lookup(cursor().currentDir, name);
+		return node != null && node.type == FileType.DIRECTORY;
 	}
 
 	/**
@@ -99,7 +164,7 @@ public class DirectoryTree {
 	 * @return the current node.
 	 */
 	public Node getCurrentDir() {
-		return currentDir;
+		return cursor().currentDir;
 	}
 
 	/**
@@ -110,7 +175,7 @@ public class DirectoryTree {
 	 * @return the current path sequence.
 	 */
 	public String getPath() {
-		String[] paths = path.toArray();
+		String[] paths = cursor().path.toArray();
 		StringAppender builder = new StringAppender();
 		for (int i = 0; i < paths.length - 1; i++) {
 			builder.append(paths[i] + "/");
@@ -126,14 +191,7 @@ public class DirectoryTree {
 	 * @return the child node with the given name, null if it doesn't exist.
 	 */
 	public Node getChild(String name) {
-		Object[] nodes = currentDir.childNodes.toArray();
-		for (Object node : nodes) {
-			Node temp = (Node) node;
-			if (temp.name.equals(name)) {
-				return temp;
-			}
-		}
-		return null;
+		return lookup(cursor().currentDir, name);
 	}
 
 	/**
@@ -153,9 +211,10 @@ public class DirectoryTree {
 	 * Goes to the parent node of the current node, if it exists.
 	 */
 	public void goToParent() {
-		if (currentDir.parent != null) {
-			currentDir = currentDir.parent;
-			path.removeLast();
+		Cursor cursor = cursor();
+		if (cursor.currentDir.parent != null) {
+			cursor.currentDir = cursor.currentDir.parent;
+			cursor.path.removeLast();
 		}
 	}
 
@@ -163,13 +222,15 @@ public class DirectoryTree {
 	 * Goes to the root node of the tree.
 	 */
 	public void goToRoot() {
-		currentDir = root;
-		path = new StringList();
-		path.append("root");
+		Cursor cursor = cursor();
+		cursor.currentDir = root;
+		cursor.path = new StringList();
+		cursor.path.append(root.name);
 	}
 
 	/**
 	 * Directory tree node. Each node contains information about a directory/file from the file system.
+	 * The child nodes are kept both in a list, in the order they were added, and in a hash index by name.
 	 */
 	public static class Node {
 
@@ -178,6 +239,8 @@ public class DirectoryTree {
 		public FileType type;
 		public Node parent;
 		public LinkedList<Node> childNodes;
+		final HashIndex<Node> childIndex;
+		boolean removed;
 
 		Node(String name, int inodeNumber, FileType type, Node parent) {
 			this.name = name;
@@ -185,6 +248,7 @@ public class DirectoryTree {
 			this.type = type;
 			this.parent = parent;
 			childNodes = new LinkedList<>();
+			childIndex = new HashIndex<>();
 		}
 
 		@Override
@@ -193,6 +257,43 @@ public class DirectoryTree {
 		}
 	}
 
+	/**
+	 * A position in the tree: the current directory and the path sequence that leads to it.
+	 */
+	public static class Cursor {
+
+		Node currentDir;
+		StringList path;
+
+		Cursor(Node root) {
+			currentDir = root;
+			path = new StringList();
+			path.append(root.name);
+		}
+	}
+
+	/**
+	 * Returns the cursor that is bound to the calling thread, or the shared cursor if there is none.
+	 *
+	 * @return the cursor of the calling thread.
+	 */
+	private Cursor cursor() {
+		Cursor cursor = boundCursor.get();
+		return cursor != null ? cursor : sharedCursor;
+	}
+
+	/**
+	 * Looks up the child node with the given name in the given directory.
+	 *
+	 * @param dir  the directory to look in.
+	 * @param name the name of the child node.
+	 * @return the child node, null if it doesn't exist.
+	 */
+	private Node lookup(Node dir, String name) {
+		lookups.increment();
+		return dir.childIndex.get(name);
+	}
+
 	/**
 	 * Goes to the child directory with the given name, if it exists.
 	 *
@@ -201,19 +302,15 @@ public class DirectoryTree {
 	 */
 	private void goToChildDir(String name)
 			throws FileSystemException {
-		Object[] nodes = currentDir.childNodes.toArray();
-		for (Object node : nodes) {
-			Node temp = (Node) node;
-			if (temp.name.equals(name)) {
-				if (temp.type == FileType.FILE) {
-					throw new FileSystemException("The specified path points to a file!");
-				} else {
-					currentDir = temp;
-					path.append(currentDir.name);
-					return;
-				}
-			}
+		Cursor cursor = cursor();
+		Node node = lookup(cursor.currentDir, name);
+		if (node == null) {
+			throw new FileSystemException("The directory was not found!");
+		}
+		if (node.type == FileType.FILE) {
+			throw new FileSystemException("The specified path points to a file!");
 		}
-		throw new FileSystemException("The directory was not found!");
+		cursor.currentDir = node;
+		cursor.path.append(node.name);
 	}
 }
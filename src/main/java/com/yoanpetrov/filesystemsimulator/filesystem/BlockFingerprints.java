@@ -0,0 +1,133 @@
+package com.yoanpetrov.filesystemsimulator.filesystem;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+
+/**
+ * In-memory index of the content of data blocks, which lets a file reference an existing block with the same
+ * content instead of writing a new one. Every block is identified by a 64-bit fingerprint of its content, and the
+ * index maps each fingerprint to a single block that has it.
+ * <p>
+ * Blocks are shared through the reference counts of the container, so a block in the index is only freed when the
+ * last file referencing it releases it. Adding a reference to a block in the index and releasing the last reference
+ * to a block both happen under the lock of the index, so a block that is being freed can never be shared. The index
+ * only knows the blocks written since the file system was opened, and its fingerprints are not unique, so callers
+ * compare the content of a shared block before they use it.
+ * <p>
+ * All methods that use the index are synchronized, so it can be used by several threads at once.
+ */
+public class BlockFingerprints {
+
+	private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME_3 = 0x165667B19E3779F9L;
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private final ReferenceCounts referenceCounts;
+	private final HashMap<Long, Integer> blocksByFingerprint;
+	private final HashMap<Integer, Long> fingerprintsByBlock;
+
+	/**
+	 * Constructs an empty index.
+	 *
+	 * @param referenceCounts the reference counts of the container, through which the blocks are shared.
+	 */
+	public BlockFingerprints(ReferenceCounts referenceCounts) {
+		this.referenceCounts = referenceCounts;
+		blocksByFingerprint = new HashMap<>();
+		fingerprintsByBlock = new HashMap<>();
+	}
+
+	/**
+	 * Calculates the fingerprint of the given bytes. The bytes are read 8 at a time, in four independent lanes, so
+	 * hashing a block takes about as long as copying it.
+	 *
+	 * @param bytes  the array with the bytes.
+	 * @param offset the position of the first byte.
+	 * @param length the amount of bytes.
+	 * @return the fingerprint of the bytes.
+	 */
+	public static long fingerprint(byte[] bytes, int offset, int length) {
+		long first = PRIME_1;
+		long second = PRIME_2;
+		long third = PRIME_3;
+		long fourth = length;
+		int position = offset;
+		int end = offset + length;
+		for (; position + 32 <= end; position += 32) {
+			first = round(first, (long) LONGS.get(bytes, position));
+			second = round(second, (long) LONGS.get(bytes, position + 8));
+			third = round(third, (long) LONGS.get(bytes, position + 16));
+			fourth = round(fourth, (long) LONGS.get(bytes, position + 24));
+		}
+		long hash = Long.rotateLeft(first, 1) + Long.rotateLeft(second, 7)
+				+ Long.rotateLeft(third, 12) + Long.rotateLeft(fourth, 18);
+		for (; position < end; position++) {
+			hash = round(hash, bytes[position] & 0xFF);
+		}
+		hash ^= hash >>> 33;
+		hash *= PRIME_2;
+		hash ^= hash >>> 29;
+		hash *= PRIME_3;
+		return hash ^ (hash >>> 32);
+	}
+
+	/**
+	 * Adds a reference to the block in the index with the given fingerprint, if there is one that can still be
+	 * shared.
+	 *
+	 * @param fingerprint the fingerprint of the content.
+	 * @return the number of the shared block, -1 if there is no such block.
+	 * @throws IOException if an i/o error occurs while the reference count is written.
+	 */
+	public synchronized int share(long fingerprint)
+			throws IOException {
+		Integer block = blocksByFingerprint.get(fingerprint);
+		if (block == null || !referenceCounts.addReferences(new int[] {block})) {
+			return -1;
+		}
+		return block;
+	}
+
+	/**
+	 * Adds a newly written block to the index. A block that already has the same fingerprint is replaced, so a block
+	 * that can't be shared anymore gets replaced by its newer copy.
+	 *
+	 * @param fingerprint the fingerprint of the content of the block.
+	 * @param block       the number of the block.
+	 */
+	public synchronized void add(long fingerprint, int block) {
+		Integer replaced = blocksByFingerprint.put(fingerprint, block);
+		if (replaced != null) {
+			fingerprintsByBlock.remove(replaced);
+		}
+		fingerprintsByBlock.put(block, fingerprint);
+	}
+
+	/**
+	 * Removes a reference from each of the given blocks, and removes the blocks that lost their last reference from
+	 * the index.
+	 *
+	 * @param blocks the numbers of the data blocks.
+	 * @return the blocks that lost their last reference and have to be freed.
+	 * @throws IOException if an i/o error occurs while the reference counts are written.
+	 */
+	public synchronized int[] release(int[] blocks)
+			throws IOException {
+		int[] unreferenced = referenceCounts.removeReferences(blocks);
+		for (int block : unreferenced) {
+			Long fingerprint = fingerprintsByBlock.remove(block);
+			if (fingerprint != null) {
+				blocksByFingerprint.remove(fingerprint);
+			}
+		}
+		return unreferenced;
+	}
+
+	private static long round(long hash, long input) {
+		return Long.rotateLeft(hash + input * PRIME_2, 31) * PRIME_1;
+	}
+}
@@ -0,0 +1,434 @@
+package com.yoanpetrov.filesystemsimulator.filesystem;
+
+import java.io.IOException;
+import com.yoanpetrov.filesystemsimulator.exceptions.FileSystemException;
+import com.yoanpetrov.filesystemsimulator.filestructures.container.IndexNode;
+import com.yoanpetrov.filesystemsimulator.filestructures.container.IndirectBlock;
+import com.yoanpetrov.filesystemsimulator.filestructures.container.SuperBlock;
+import com.yoanpetrov.filesystemsimulator.storage.ContainerStorage;
+
+/**
+ * Maps the logical block list of an index node to the stored block numbers. The list is kept in the direct blocks
+ * of the index node, followed by a single indirect block, followed by the blocks referenced by a double indirect
+ * block. Index 0 of the list is the parent of the index node, the following indices are data blocks for files
+ * and child index nodes for directories.
+ * <p>
+ * Looking up an index takes at most two indirect block reads. The most recently used indirect block of each level
+ * is kept in memory, so walking the list in order reads each indirect block only once. Changed indirect blocks are
+ * written to the container when another block of the same level is needed, or when flush() is called.
+ * <p>
+ * A block mapper is not thread-safe, because of its cached indirect blocks. FileSystem keeps one per thread and
+ * invalidates it whenever the thread acquires a lock, so a cached block that another thread changed in the meantime
+ * is never used.
+ */
+public class BlockMapper {
+
+	private static final int LEAF = 0;
+	private static final int TOP = 1;
+
+	private final ContainerStorage storage;
+	private final SuperBlock superBlock;
+	private final FreeSpaceMap dataMap;
+	private final MetadataJournal journal;
+	private final int pointersPerBlock;
+	private final IndirectBlock[] cachedBlocks;
+	private final int[] cachedNumbers;
+	private final boolean[] dirty;
+
+	/**
+	 * Constructs a block mapper for the given container.
+	 *
+	 * @param storage    the container the indirect blocks are stored in.
+	 * @param superBlock the super block of the container.
+	 * @param dataMap    the map of the data bitmap, used to allocate and free indirect blocks.
+	 * @param journal    the metadata journal that freed indirect blocks are revoked in, null if there is none.
+	 */
+	public BlockMapper(ContainerStorage storage, SuperBlock superBlock, FreeSpaceMap dataMap,
+			MetadataJournal journal) {
+		this.storage = storage;
+		this.superBlock = superBlock;
+		this.dataMap = dataMap;
+		this.journal = journal;
+		cachedBlocks = new IndirectBlock[] {
+				new IndirectBlock(superBlock.getBlockSize()), new IndirectBlock(superBlock.getBlockSize())};
+		cachedNumbers = new int[] {-1, -1};
+		dirty = new boolean[2];
+		pointersPerBlock = cachedBlocks[LEAF].getPointerCount();
+	}
+
+	/**
+	 * Returns the maximum amount of entries in the block list of an index node, including the parent entry.
+	 *
+	 * @return the capacity of a block list.
+	 */
+	public int getCapacity() {
+		return IndexNode.MAX_DIRECT_BLOCKS + pointersPerBlock + pointersPerBlock * pointersPerBlock;
+	}
+
+	/**
+	 * Returns the amount of entries that can still be added to the block list of the given index node.
+	 *
+	 * @param node the index node.
+	 * @return the amount of free entries.
+	 */
+	public int getFreeSlots(IndexNode node) {
+		return getCapacity() - node.getAllocatedBlockCount();
+	}
+
+	/**
+	 * Returns the entry at the given index of the block list of the given index node.
+	 *
+	 * @param node  the index node.
+	 * @param index the index of the entry.
+	 * @return the entry at the given index.
+	 * @throws IOException if an i/o error occurs while reading an indirect block.
+	 */
+	public int get(IndexNode node, int index)
+			throws IOException {
+		if (index < IndexNode.MAX_DIRECT_BLOCKS) {
+			return node.getDirectBlocks()[index];
+		}
+		return leafFor(node, index).getPointer(leafIndex(index));
+	}
+
+	/**
+	 * Returns the entries of the block list of the given index node, starting at the given index.
+	 *
+	 * @param node the index node.
+	 * @param from the index of the first entry.
+	 * @return the entries from the given index to the end of the list.
+	 * @throws IOException if an i/o error occurs while reading an indirect block.
+	 */
+	public int[] getAll(IndexNode node, int from)
+			throws IOException {
+		int count = Math.max(node.getAllocatedBlockCount() - from, 0);
+		int[] result = new int[count];
+		for (int i = 0; i < count; i++) {
+			result[i] = get(node, from + i);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the last entry of the block list of the given index node.
+	 *
+	 * @param node the index node.
+	 * @return the last entry, -1 if the index node has no data blocks/child nodes.
+	 * @throws IOException if an i/o error occurs while reading an indirect block.
+	 */
+	public int getLast(IndexNode node)
+			throws IOException {
+		if (node.isEmpty()) {
+			return -1;
+		}
+		return get(node, node.getAllocatedBlockCount() - 1);
+	}
+
+	/**
+	 * Adds the given entries to the end of the block list of the given index node, allocating indirect blocks when
+	 * they are needed. The index node itself is only changed in memory, the caller has to write it.
+	 *
+	 * @param node    the index node.
+	 * @param entries the entries to add.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if the block list is full or if there is no space for an indirect block.
+	 */
+	public void append(IndexNode node, int... entries)
+			throws IOException, FileSystemException {
+		if (entries.length > getFreeSlots(node)) {
+			throw node.maxSizeException();
+		}
+		for (int entry : entries) {
+			int index = node.getAllocatedBlockCount();
+			if (index < IndexNode.MAX_DIRECT_BLOCKS) {
+				node.getDirectBlocks()[index] = entry;
+			} else {
+				allocateIndirectBlocksFor(node, index);
+				set(node, index, entry);
+			}
+			node.setAllocatedBlockCount(index + 1);
+		}
+		flush();
+	}
+
+	/**
+	 * Replaces the entry at the given index of the block list of the given index node. The index node itself is only
+	 * changed in memory, the caller has to write it.
+	 *
+	 * @param node  the index node.
+	 * @param index the index of the entry, which must already exist.
+	 * @param entry the new value of the entry.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public void replace(IndexNode node, int index, int entry)
+			throws IOException {
+		set(node, index, entry);
+		flush();
+	}
+
+	/**
+	 * Removes the given entry from the block list of the given index node. The last entry of the list is moved to
+	 * the place of the removed entry, and indirect blocks that are no longer needed are freed. The index node itself
+	 * is only changed in memory, the caller has to write it.
+	 *
+	 * @param node  the index node.
+	 * @param entry the entry to remove.
+	 * @return true if the entry was found and removed, false otherwise.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public boolean remove(IndexNode node, int entry)
+			throws IOException {
+		int last = node.getAllocatedBlockCount() - 1;
+		for (int i = 1; i <= last; i++) {
+			if (get(node, i) == entry) {
+				set(node, i, get(node, last));
+				set(node, last, -1);
+				node.setAllocatedBlockCount(last);
+				freeUnusedIndirectBlocks(node, last);
+				flush();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Shrinks the block list of the given index node to the given amount of entries, removing entries from its end
+	 * and freeing indirect blocks that are no longer needed. The removed entries themselves are not freed. The index
+	 * node itself is only changed in memory, the caller has to write it.
+	 *
+	 * @param node  the index node.
+	 * @param count the new amount of entries.
+	 * @return the removed entries.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public int[] truncate(IndexNode node, int count)
+			throws IOException {
+		int last = node.getAllocatedBlockCount() - 1;
+		int[] removed = new int[Math.max(last + 1 - count, 0)];
+		for (int i = removed.length - 1; i >= 0; i--, last--) {
+			removed[i] = get(node, last);
+			set(node, last, -1);
+			node.setAllocatedBlockCount(last);
+			freeUnusedIndirectBlocks(node, last);
+		}
+		flush();
+		return removed;
+	}
+
+	/**
+	 * Frees all indirect blocks of the given index node. The entries themselves are not freed.
+	 *
+	 * @param node the index node.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public void freeIndirectBlocks(IndexNode node)
+			throws IOException {
+		if (node.getDoubleIndirectBlock() != -1) {
+			int secondLevelCount = (node.getAllocatedBlockCount() - IndexNode.MAX_DIRECT_BLOCKS - pointersPerBlock
+					+ pointersPerBlock - 1) / pointersPerBlock;
+			IndirectBlock top = load(TOP, node.getDoubleIndirectBlock());
+			for (int i = 0; i < secondLevelCount; i++) {
+				freeIndirectBlock(top.getPointer(i));
+			}
+			freeIndirectBlock(node.getDoubleIndirectBlock());
+			node.setDoubleIndirectBlock(-1);
+		}
+		if (node.getIndirectBlock() != -1) {
+			freeIndirectBlock(node.getIndirectBlock());
+			node.setIndirectBlock(-1);
+		}
+	}
+
+	/**
+	 * Drops the cached indirect blocks, so they are read again from the container the next time they are needed.
+	 * Every public method writes its changes before it returns, so no changes are lost.
+	 */
+	public void invalidate() {
+		cachedNumbers[LEAF] = -1;
+		cachedNumbers[TOP] = -1;
+		dirty[LEAF] = false;
+		dirty[TOP] = false;
+	}
+
+	/**
+	 * Writes the changed indirect blocks to the container.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public void flush()
+			throws IOException {
+		flush(LEAF);
+		flush(TOP);
+	}
+
+	/**
+	 * Sets the entry at the given index of the block list. The needed indirect blocks must already exist.
+	 *
+	 * @param node  the index node.
+	 * @param index the index of the entry.
+	 * @param entry the new value of the entry.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void set(IndexNode node, int index, int entry)
+			throws IOException {
+		if (index < IndexNode.MAX_DIRECT_BLOCKS) {
+			node.getDirectBlocks()[index] = entry;
+			return;
+		}
+		leafFor(node, index).setPointer(leafIndex(index), entry);
+		dirty[LEAF] = true;
+	}
+
+	/**
+	 * Returns the indirect block that holds the entry at the given index. The index must be past the direct blocks.
+	 *
+	 * @param node  the index node.
+	 * @param index the index of the entry.
+	 * @return the indirect block holding the entry.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private IndirectBlock leafFor(IndexNode node, int index)
+			throws IOException {
+		int indirectIndex = index - IndexNode.MAX_DIRECT_BLOCKS;
+		if (indirectIndex < pointersPerBlock) {
+			return load(LEAF, node.getIndirectBlock());
+		}
+		int doubleIndex = indirectIndex - pointersPerBlock;
+		IndirectBlock top = load(TOP, node.getDoubleIndirectBlock());
+		return load(LEAF, top.getPointer(doubleIndex / pointersPerBlock));
+	}
+
+	private int leafIndex(int index) {
+		int indirectIndex = index - IndexNode.MAX_DIRECT_BLOCKS;
+		if (indirectIndex < pointersPerBlock) {
+			return indirectIndex;
+		}
+		return (indirectIndex - pointersPerBlock) % pointersPerBlock;
+	}
+
+	/**
+	 * Allocates the indirect blocks needed to store the entry at the given index, if it is the first entry of its
+	 * indirect block.
+	 *
+	 * @param node  the index node.
+	 * @param index the index of the new entry.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if there is no free space for an indirect block.
+	 */
+	private void allocateIndirectBlocksFor(IndexNode node, int index)
+			throws IOException, FileSystemException {
+		int indirectIndex = index - IndexNode.MAX_DIRECT_BLOCKS;
+		if (indirectIndex == 0) {
+			node.setIndirectBlock(allocateIndirectBlock(LEAF));
+			return;
+		}
+		int doubleIndex = indirectIndex - pointersPerBlock;
+		if (doubleIndex < 0 || doubleIndex % pointersPerBlock != 0) {
+			return;
+		}
+		if (doubleIndex == 0) {
+			node.setDoubleIndirectBlock(allocateIndirectBlock(TOP));
+		}
+		IndirectBlock top = load(TOP, node.getDoubleIndirectBlock());
+		top.setPointer(doubleIndex / pointersPerBlock, allocateIndirectBlock(LEAF));
+		dirty[TOP] = true;
+	}
+
+	/**
+	 * Frees the indirect blocks that are no longer needed after the block list shrank to the given size.
+	 *
+	 * @param node  the index node.
+	 * @param count the new amount of entries.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void freeUnusedIndirectBlocks(IndexNode node, int count)
+			throws IOException {
+		int indirectIndex = count - IndexNode.MAX_DIRECT_BLOCKS;
+		if (indirectIndex == 0) {
+			freeIndirectBlock(node.getIndirectBlock());
+			node.setIndirectBlock(-1);
+			return;
+		}
+		int doubleIndex = indirectIndex - pointersPerBlock;
+		if (doubleIndex < 0 || doubleIndex % pointersPerBlock != 0) {
+			return;
+		}
+		IndirectBlock top = load(TOP, node.getDoubleIndirectBlock());
+		freeIndirectBlock(top.getPointer(doubleIndex / pointersPerBlock));
+		top.setPointer(doubleIndex / pointersPerBlock, -1);
+		dirty[TOP] = true;
+		if (doubleIndex == 0) {
+			freeIndirectBlock(node.getDoubleIndirectBlock());
+			node.setDoubleIndirectBlock(-1);
+		}
+	}
+
+	/**
+	 * Allocates a new, empty indirect block and places it in the cache slot of the given level.
+	 *
+	 * @param level the level of the indirect block.
+	 * @return the number of the allocated block.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if there is no free space for the block.
+	 */
+	private int allocateIndirectBlock(int level)
+			throws IOException, FileSystemException {
+		int block = dataMap.allocate();
+		if (block == -1) {
+			throw new FileSystemException(
+					"There is not enough free space in the file system");
+		}
+		flush(level);
+		cachedBlocks[level].clear();
+		cachedNumbers[level] = block;
+		dirty[level] = true;
+		return block;
+	}
+
+	private void freeIndirectBlock(int block)
+			throws IOException {
+		for (int level = LEAF; level <= TOP; level++) {
+			if (cachedNumbers[level] == block) {
+				cachedNumbers[level] = -1;
+				dirty[level] = false;
+			}
+		}
+		if (journal != null) {
+			journal.revoke(superBlock.getDataBlockOffset() + block, dataMap, block);
+		} else {
+			dataMap.free(block);
+		}
+	}
+
+	/**
+	 * Returns the indirect block with the given number, reading it into the cache slot of the given level if it
+	 * isn't cached already.
+	 *
+	 * @param level the level of the indirect block.
+	 * @param block the number of the indirect block.
+	 * @return the indirect block.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private IndirectBlock load(int level, int block)
+			throws IOException {
+		if (cachedNumbers[level] != block) {
+			flush(level);
+			storage.read(positionOf(block), cachedBlocks[level].getBytes());
+			cachedNumbers[level] = block;
+		}
+		return cachedBlocks[level];
+	}
+
+	private void flush(int level)
+			throws IOException {
+		if (dirty[level] && cachedNumbers[level] != -1) {
+			storage.write(positionOf(cachedNumbers[level]), cachedBlocks[level].getBytes());
+		}
+		dirty[level] = false;
+	}
+
+	private long positionOf(int block) {
+		return (long) (superBlock.getDataBlockOffset() + block) * superBlock.getBlockSize();
+	}
+}
@@ -1,33 +1,154 @@
 package com.yoanpetrov.filesystemsimulator.filesystem;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import javax.management.JMException;
 import com.yoanpetrov.filesystemsimulator.datastructures.LinkedList;
-import com.yoanpetrov.filesystemsimulator.datastructures.StringAppender;
 import com.yoanpetrov.filesystemsimulator.exceptions.FileSystemException;
 import com.yoanpetrov.filesystemsimulator.filestructures.container.*;
 import com.yoanpetrov.filesystemsimulator.filestructures.data.*;
-import com.yoanpetrov.filesystemsimulator.utils.ArrayManipulator;
+import com.yoanpetrov.filesystemsimulator.metrics.FileSystemMetrics;
+import com.yoanpetrov.filesystemsimulator.storage.CachedContainerStorage;
+import com.yoanpetrov.filesystemsimulator.storage.ContainerStorage;
+import com.yoanpetrov.filesystemsimulator.storage.FileContainerStorage;
+import com.yoanpetrov.filesystemsimulator.storage.MappedContainerStorage;
+import com.yoanpetrov.filesystemsimulator.storage.MeteredContainerStorage;
+import com.yoanpetrov.filesystemsimulator.utils.Lz4Codec;
 import com.yoanpetrov.filesystemsimulator.utils.StringManipulator;
 
+/**
+ * A file system, stored in a single container file.
+ * <p>
+ * The public file and directory operations can be called from multiple threads. Operations that change the directory
+ * tree, or the current directory, hold the tree lock exclusively. All other operations share the tree lock and hold
+ * the lock of the index node of their file, for reading or for writing, so operations on different files run in
+ * parallel and readers of the same file don't block each other. Blocks are allocated and freed through the free
+ * space maps, which have their own locks. The low-level block and index node methods don't lock anything, callers
+ * must hold the appropriate locks themselves.
+ * <p>
+ * If the container has a journal region, the metadata (bitmaps, index nodes and indirect blocks) is written through
+ * a MetadataJournal, which commits it in groups and replays the committed changes when the container is mounted
+ * after a crash. The tree lock doubles as the commit barrier: a commit takes it exclusively while it collects the
+ * changed blocks, so it never sees an operation halfway done. File data is written directly to the container.
+ * <p>
+ * The data of a compressed file is split into chunks of chunkBytes(), which are compressed with Lz4Codec. Chunk k
+ * owns the entries of the block list from 1 + k * chunkBlocks(), as many as the blocks the chunk would take
+ * uncompressed. A chunk that compresses into fewer blocks starts with the length of its compressed bytes and leaves
+ * its remaining entries as -1, the others are stored as they are. A write to a compressed file writes the chunks that
+ * it touches to new blocks and then releases the old ones, so shared blocks are never changed.
+ * <p>
+ * If the container deduplicates its blocks, every block that is written goes through storeBlocks(), which looks its
+ * content up in BlockFingerprints and references an existing block with the same content instead of writing it. No
+ * block is written in place then: writes store the blocks they touch again and release the old ones.
+ */
 public class FileSystem {
 
 	public static final byte BYTE_MAX = (byte) 0xff; // 255
 
+	/**
+	 * The maximum amount of bytes in contiguous data blocks that are transferred with a single container read/write.
+	 */
+	static final int MAX_BATCH_BYTES = 64 * 1024;
+
+	/**
+	 * The maximum amount of bytes in contiguous data blocks that are transferred between a host file and the
+	 * container with a single channel transfer.
+	 */
+	static final int MAX_TRANSFER_BYTES = 8 * 1024 * 1024;
+
+	/**
+	 * The amount of index nodes that a single task reads while the index node table is scanned during mounting.
+	 */
+	static final int MOUNT_CHUNK_INODES = 4096;
+
+	/**
+	 * The maximum amount of index node blocks that are kept in memory during a batch.
+	 */
+	static final int BATCH_INODE_BLOCKS = 4096;
+
+	/**
+	 * The maximum amount of nodes that a single task handles while a subtree is removed or copied.
+	 */
+	static final int SUBTREE_TASK_NODES = 32;
+
+	/**
+	 * The amount of threads that read host files ahead of the writer during a recursive import.
+	 */
+	static final int IMPORT_READER_THREADS = 4;
+
+	/**
+	 * The maximum amount of host files that are read ahead of the writer during a recursive import.
+	 */
+	static final int IMPORT_READ_AHEAD_FILES = 256;
+
+	/**
+	 * The maximum amount of bytes of host files that are read ahead of the writer during a recursive import.
+	 */
+	static final long IMPORT_READ_AHEAD_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * The size above which a host file isn't read ahead during a recursive import, but is transferred to the
+	 * container directly, like by importFile().
+	 */
+	static final long IMPORT_BUFFERED_FILE_BYTES = 1024 * 1024;
+
+	/**
+	 * The amount of file data that is compressed together, as a single chunk, in a compressed file.
+	 */
+	static final int COMPRESSION_CHUNK_BYTES = 64 * 1024;
+
+	/**
+	 * The minimum amount of blocks in a chunk of a compressed file, so even large blocks leave room for compression.
+	 */
+	static final int MIN_CHUNK_BLOCKS = 4;
+
 	RandomAccessFile containerFile;
+	ContainerStorage storage;
+	ContainerStorage dataStorage;
+	ContainerStorage metadata;
+	MetadataJournal journal;
+	FileSystemOptions options;
 	String systemPath;
 	DirectoryTree tree;
+	final FileSystemMetrics metrics = new FileSystemMetrics();
 	SuperBlock superBlock;
 	IndexNode rootNode;
-	IndexNode currentNode;
-	DataBlock currentDataBlock;
-	Bitmap currentInodeBitmapBlock;
-	Bitmap currentDataBitmapBlock;
-	int currentInodeBitmapIndex;
-	int currentDataBitmapIndex;
+	FreeSpaceMap inodeMap;
+	FreeSpaceMap dataMap;
+	ReferenceCounts referenceCounts;
+	BlockFingerprints fingerprints;
+	IndexNodeLocks indexNodeLocks;
+	final ReentrantReadWriteLock treeLock = new ReentrantReadWriteLock();
+	final ThreadLocal<BlockMapper> blockMappers =
+			ThreadLocal.withInitial(() -> new BlockMapper(metadata, superBlock, dataMap, journal));
+	volatile CachedContainerStorage batchIndexNodes;
 
 	/**
 	 * Constructs a FileSystem object, creating/overriding a file at the given path and creating a container with
@@ -39,14 +160,22 @@ public class FileSystem {
 	 */
 	public FileSystem(String systemPath, long size)
 			throws FileSystemException {
+		this(systemPath, size, new FileSystemOptions());
+	}
+
+	/**
+	 * Constructs a FileSystem object with the given startup options, creating/overriding a file at the given path
+	 * and creating a container with the given size (in bytes) there.
+	 * @param systemPath the path to the file where the container should be created.
+	 * @param size the maximum size in bytes of the file system's data segment.
+	 * @param options the startup options of the file system.
+	 * @throws FileSystemException if an error occurs while initializing the container or the object.
+	 */
+	public FileSystem(String systemPath, long size, FileSystemOptions options)
+			throws FileSystemException {
 		this.systemPath = systemPath;
-		currentNode = new IndexNode();
-		currentInodeBitmapBlock = new Bitmap();
-		currentDataBitmapBlock = new Bitmap();
-		currentInodeBitmapIndex = 0;
-		currentDataBitmapIndex = 0;
-		currentDataBlock = new DataBlock();
-		tree = new DirectoryTree("root", 0);
+		this.options = options;
+		tree = new DirectoryTree("root", 0, metrics.treeLookups());
 		try {
 			containerFile = new RandomAccessFile(systemPath, "rw");
 			initialize(size);
@@ -54,6 +183,34 @@ public class FileSystem {
 			throw new FileSystemException(
 					"An i/o error occurred while initializing the file system");
 		}
+		registerMetrics();
+	}
+
+	/**
+	 * Constructs a FileSystem object by mounting the existing container at the given path. Nothing in the container
+	 * is overridden.
+	 * @param systemPath the path to the container file.
+	 * @param options the startup options of the file system.
+	 * @throws FileSystemException if the file is not a valid container, or if an i/o error occurs while mounting it.
+	 */
+	public FileSystem(String systemPath, FileSystemOptions options)
+			throws FileSystemException {
+		this.systemPath = systemPath;
+		this.options = options;
+		tree = new DirectoryTree("root", 0, metrics.treeLookups());
+		try {
+			containerFile = new RandomAccessFile(systemPath, "rw");
+			try {
+				mount();
+			} catch (FileSystemException e) {
+				containerFile.close();
+				throw e;
+			}
+		} catch (IOException e) {
+			throw new FileSystemException(
+					"An i/o error occurred while mounting the file system");
+		}
+		registerMetrics();
 	}
 
 	/**
@@ -65,30 +222,11 @@ public class FileSystem {
 	 */
 	public void makeFile(String name, FileType type)
 			throws FileSystemException {
-		if (tree.fileExists(name) || tree.dirExists(name)) {
-			throw new FileSystemException(
-					"A file/directory with the same name already exists");
-		}
+		Lock lock = lockTree(true);
 		try {
-			int newInode = allocateInodeBlock();
-			int parent = tree.getCurrentDir().inodeNumber;
-
-			if (newInode != -1) {
-				IndexNode resultNode = new IndexNode();
-				resultNode.setName(name);
-				resultNode.setType(type);
-				resultNode.addDirectBlock(parent);
-				writeIndexNode(resultNode, newInode);
-
-				IndexNode parentNode = new IndexNode();
-				readIndexNode(parentNode, parent);
-				parentNode.addDirectBlock(newInode);
-				writeIndexNode(parentNode, parent);
-			}
-			tree.addChild(name, newInode, type);
-		} catch (IOException e) {
-			throw new FileSystemException(
-					"An i/o error occurred while creating the file");
+			createFile(name, type);
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -98,8 +236,11 @@ public class FileSystem {
 	 */
 	public void removeDir()
 			throws FileSystemException {
+		Lock lock = lockTree(true);
 		try {
+			validateCurrentDir();
 			int currentIndex = tree.getCurrentDir().inodeNumber;
+			IndexNode currentNode = new IndexNode();
 			readIndexNode(currentNode, currentIndex);
 			if (!currentNode.isEmpty()) {
 				throw new FileSystemException(
@@ -112,6 +253,8 @@ public class FileSystem {
 		} catch (IOException e) {
 			throw new FileSystemException(
 					"An i/o error occurred while removing the current directory");
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -119,10 +262,23 @@ public class FileSystem {
 	 * Prints a list of the content in the current directory on the screen.
 	 */
 	public void listCurrentDir() {
-		LinkedList<DirectoryTree.Node> nodes =
-				tree.getCurrentDir().childNodes;
-		System.out.print(".. ");
-		nodes.print();
+		listCurrentDir(System.out);
+	}
+
+	/**
+	 * Prints a list of the content in the current directory to the given stream.
+	 * @param out the stream to print the list to.
+	 */
+	public void listCurrentDir(PrintStream out) {
+		Lock lock = lockTree(false);
+		try {
+			LinkedList<DirectoryTree.Node> nodes =
+					tree.getCurrentDir().childNodes;
+			out.print(".. ");
+			nodes.print(out);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -132,17 +288,22 @@ public class FileSystem {
 	 */
 	public void changeDir(String path)
 			throws FileSystemException {
-		if ("/".equals(path)) {
-			tree.goToRoot();
-			return;
-		}
-		if ("..".equals(path)) {
-			goToParentDir();
-			return;
+		Lock lock = lockTree(true);
+		try {
+			if ("/".equals(path)) {
+				tree.goToRoot();
+				return;
+			}
+			if ("..".equals(path)) {
+				goToParentDir();
+				return;
+			}
+			String[] sequence =
+					StringManipulator.split(path, '/');
+			tree.goTo(sequence);
+		} finally {
+			lock.unlock();
 		}
-		String[] sequence =
-				StringManipulator.split(path, '/');
-		tree.goTo(sequence);
 	}
 
 	/**
@@ -154,17 +315,27 @@ public class FileSystem {
 	 */
 	public void copyFile(String sourceName, String destinationName)
 			throws FileSystemException {
-		validateCopy(sourceName, destinationName);
+		Lock lock = lockTree(true);
 		try {
-			makeFile(destinationName, FileType.FILE);
-			int sourceNumber =
-					tree.getChild(sourceName).inodeNumber;
-			int destNumber =
-					tree.getChild(destinationName).inodeNumber;
-			copyFileBlocks(sourceNumber, destNumber);
+			validateCopy(sourceName, destinationName);
+			createFile(destinationName, FileType.FILE);
+			int sourceNumber = fileIndexNode(sourceName);
+			int destNumber = fileIndexNode(destinationName);
+			boolean sourceFirst = sourceNumber < destNumber;
+			Lock first = lockIndexNode(sourceFirst ? sourceNumber : destNumber, !sourceFirst);
+			Lock second = lockIndexNode(sourceFirst ? destNumber : sourceNumber, sourceFirst);
+			lock = downgradeTree();
+			try {
+				copyFileBlocks(sourceNumber, destNumber);
+			} finally {
+				second.unlock();
+				first.unlock();
+			}
 		} catch (IOException e) {
 			throw new FileSystemException(
 					"An i/o error occurred while copying the file");
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -175,22 +346,118 @@ public class FileSystem {
 	 */
 	public void deleteFile(String fileName)
 			throws FileSystemException {
-		if (!tree.fileExists(fileName)) {
-			throw new FileSystemException(
-					"The specified file does not exist");
-		}
+		Lock lock = lockTree(true);
 		try {
-			int inodeNumber = tree.getChild(fileName).inodeNumber;
-			readIndexNode(currentNode, inodeNumber);
-			for (int i = 1; i < currentNode.getAllocatedBlockCount(); i++) {
-				wipeDataBlock(currentNode.getDirectBlocks()[i]);
+			int inodeNumber = fileIndexNode(fileName);
+			IndexNode node = new IndexNode();
+			readIndexNode(node, inodeNumber);
+			for (int block : releaseDataBlocks(dataBlocks(node))) {
+				wipeDataBlock(block);
 			}
-			removeDirectBlock(tree.getChild(fileName).inodeNumber, inodeNumber);
+			blockMapper().freeIndirectBlocks(node);
+			removeDirectBlock(node.getParent(), inodeNumber);
 			freeInodeBlock(inodeNumber);
 			tree.removeChild(fileName);
 		} catch (IOException e) {
 			throw new FileSystemException(
 					"An i/o error occurred while deleting the file");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Deletes the file or directory with the given name, together with everything below it. The index nodes of the
+	 * subtree are released in parallel, and the freed index nodes and data blocks are marked as free with a single
+	 * pass over each bitmap.
+	 * @param name the name of the file or directory to delete.
+	 * @return the amount of deleted files and directories.
+	 * @throws FileSystemException if the file or directory doesn't exist, or if an i/o error occurs.
+	 */
+	public int removeRecursive(String name)
+			throws FileSystemException {
+		Lock lock = lockTree(true);
+		try {
+			validateCurrentDir();
+			DirectoryTree.Node top = tree.getChild(name);
+			if (top == null) {
+				throw new FileSystemException(
+						"The specified file/directory does not exist");
+			}
+			Subtree subtree = new Subtree(top);
+			int[][] released = new int[subtree.nodes.length][];
+			forEachNode(subtree, i -> released[i] = releaseIndexNode(subtree.nodes[i].inodeNumber));
+			int[] inodes = new int[subtree.nodes.length];
+			for (int i = 0; i < inodes.length; i++) {
+				inodes[i] = subtree.nodes[i].inodeNumber;
+			}
+			dataMap.freeBlocks(concat(released));
+			inodeMap.freeBlocks(inodes);
+			removeDirectBlock(tree.getCurrentDir().inodeNumber, top.inodeNumber);
+			tree.removeChild(name);
+			return inodes.length;
+		} catch (IOException e) {
+			throw new FileSystemException(
+					"An i/o error occurred while deleting the file/directory");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Copies the file or directory with the given name, together with everything below it, to a new file or
+	 * directory in the current directory. The index nodes of the copies are allocated together, and they are
+	 * written in parallel. File data is shared or copied like in copyFile().
+	 * @param sourceName the name of the source file or directory.
+	 * @param destinationName the name of the copy.
+	 * @return the amount of copied files and directories.
+	 * @throws FileSystemException if the source doesn't exist, if the destination already exists, if there isn't
+	 * enough free space, or if an i/o error occurs.
+	 */
+	public int copyRecursive(String sourceName, String destinationName)
+			throws FileSystemException {
+		Lock lock = lockTree(true);
+		try {
+			validateCurrentDir();
+			DirectoryTree.Node source = tree.getChild(sourceName);
+			if (source == null) {
+				throw new FileSystemException(
+						"The specified file/directory to copy does not exist");
+			}
+			int parent = validateSubtreeDestination(destinationName);
+			Subtree subtree = new Subtree(source);
+			int[] inodes = inodeMap.allocateBlocks(subtree.nodes.length);
+			if (inodes.length < subtree.nodes.length) {
+				throw new FileSystemException(
+						"There are not enough free index nodes in the file system");
+			}
+			boolean[] written = new boolean[inodes.length];
+			try {
+				forEachNode(subtree, i -> {
+					copyIndexNode(subtree, i, i == 0 ? destinationName : subtree.nodes[i].name,
+							i == 0 ? parent : inodes[subtree.parents[i]], inodes);
+					written[i] = true;
+				});
+			} catch (IOException | FileSystemException e) {
+				releaseCreated(inodes, written);
+				throw e;
+			}
+			IndexNode parentNode = new IndexNode();
+			readIndexNode(parentNode, parent);
+			blockMapper().append(parentNode, inodes[0]);
+			writeIndexNode(parentNode, parent);
+			DirectoryTree.Node[] copies = new DirectoryTree.Node[inodes.length];
+			copies[0] = tree.addChild(tree.getCurrentDir(), destinationName, inodes[0], source.type);
+			for (int i = 1; i < copies.length; i++) {
+				DirectoryTree.Node node = subtree.nodes[i];
+				copies[i] = tree.addChild(copies[subtree.parents[i]], node.name, inodes[i], node.type);
+			}
+			return inodes.length;
+		} catch (IOException e) {
+			throw new FileSystemException(
+					"An i/o error occurred while copying the file/directory");
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -201,12 +468,32 @@ public class FileSystem {
 	 */
 	public void printFile(String fileName)
 			throws FileSystemException {
-		validatePrint(fileName);
+		printFile(fileName, System.out);
+	}
+
+	/**
+	 * Writes the content of the file to the given stream. The stream is not flushed.
+	 * @param fileName the name of the file.
+	 * @param out the stream to write the content to.
+	 * @throws FileSystemException if the file does not exist or is a directory, or if an i/o error occurs.
+	 */
+	public void printFile(String fileName, OutputStream out)
+			throws FileSystemException {
+		Lock lock = lockTree(false);
 		try {
-			printBlocks(tree.getChild(fileName).inodeNumber);
+			validatePrint(fileName);
+			int inodeNumber = tree.getChild(fileName).inodeNumber;
+			Lock nodeLock = lockIndexNode(inodeNumber, false);
+			try {
+				printBlocks(inodeNumber, out);
+			} finally {
+				nodeLock.unlock();
+			}
 		} catch (IOException e) {
 			throw new FileSystemException(
 					"An i/o error occurred while printing the file");
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -218,41 +505,126 @@ public class FileSystem {
 	 */
 	public void writeToFile(String fileName, byte[] bytes)
 			throws FileSystemException {
-		validateWrite(fileName);
+		createFileIfMissing(fileName);
+		Lock lock = lockTree(false);
 		try {
-			makeFile(fileName, FileType.FILE);
-			int inodeNumber = tree.getChild(fileName).inodeNumber;
-			int neededBlocks = calculateNeededBlocks(bytes.length);
-			writeBytesToBlocks(bytes, inodeNumber, neededBlocks);
+			int inodeNumber = fileIndexNode(fileName);
+			Lock nodeLock = lockIndexNode(inodeNumber, true);
+			try {
+				replaceBlocks(bytes, inodeNumber);
+			} finally {
+				nodeLock.unlock();
+			}
 		} catch (IOException e) {
 			throw new FileSystemException(
 					"An i/o error occurred while writing to the file");
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	/**
 	 * Appends the given bytes at the end of the specified file.
-	 * If the file does not exist, this method calls writeToFile().
+	 * If the file does not exist, it gets created.
 	 * @param fileName the name of the file.
 	 * @param bytes the bytes to be appended to the file.
 	 * @throws FileSystemException if the file name points to a directory or if an i/o error occurs.
 	 */
 	public void appendToFile(String fileName, byte[] bytes)
 			throws FileSystemException {
+		createFileIfMissing(fileName);
+		Lock lock = lockTree(false);
 		try {
-			if (tree.dirExists(fileName)) {
-				throw new FileSystemException(
-						"The given name points to a directory");
-			}
-			if (!tree.fileExists(fileName)) {
-				writeToFile(fileName, bytes);
-				return;
+			int inodeNumber = fileIndexNode(fileName);
+			Lock nodeLock = lockIndexNode(inodeNumber, true);
+			try {
+				appendBytesToBlocks(bytes, inodeNumber);
+			} finally {
+				nodeLock.unlock();
 			}
-			int inodeNumber = tree.getChild(fileName).inodeNumber;
-			appendBytesToBlocks(bytes, inodeNumber);
 		} catch (IOException e) {
 			throw new FileSystemException(
 					"An i/o error occurred while appending to the file");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads up to the given amount of bytes from the specified file, starting at the given offset. Only the data
+	 * blocks that contain the requested bytes are read.
+	 * @param fileName the name of the file.
+	 * @param offset the offset of the first byte to read.
+	 * @param length the maximum amount of bytes to read.
+	 * @return the bytes that were read, fewer than requested if the end of the file is reached.
+	 * @throws FileSystemException if the file does not exist or is a directory, if the offset or the length is
+	 * negative, or if an i/o error occurs.
+	 */
+	public byte[] readAt(String fileName, long offset, int length)
+			throws FileSystemException {
+		Lock lock = lockTree(false);
+		try {
+			validatePositional(fileName, offset, length);
+			int inodeNumber = fileIndexNode(fileName);
+			Lock nodeLock = lockIndexNode(inodeNumber, false);
+			try {
+				IndexNode node = new IndexNode();
+				readIndexNode(node, inodeNumber);
+				long fileLength = node.getSize();
+				if (offset >= fileLength) {
+					return new byte[0];
+				}
+				byte[] bytes = new byte[(int) Math.min(length, fileLength - offset)];
+				if (node.isCompressed()) {
+					readCompressedAt(node, offset, bytes);
+				} else {
+					transferBytesAt(node, offset, bytes, false);
+				}
+				return bytes;
+			} finally {
+				nodeLock.unlock();
+			}
+		} catch (IOException e) {
+			throw new FileSystemException(
+					"An i/o error occurred while reading the file");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the given bytes to the specified file, starting at the given offset. Only the data blocks that contain
+	 * the given range are written, and the index node is written once, if the file grows. If the offset is past the
+	 * end of the file, the gap is filled with zeros. If the file does not exist, it gets created.
+	 * @param fileName the name of the file.
+	 * @param offset the offset in the file to write the first byte at.
+	 * @param bytes the bytes to write.
+	 * @throws FileSystemException if the file name points to a directory, if the offset is negative,
+	 * if the maximum file size is reached, or if an i/o error occurs.
+	 */
+	public void writeAt(String fileName, long offset, byte[] bytes)
+			throws FileSystemException {
+		if (offset < 0) {
+			throw new FileSystemException(
+					"The offset and the length cannot be negative");
+		}
+		createFileIfMissing(fileName);
+		Lock lock = lockTree(false);
+		try {
+			int inodeNumber = fileIndexNode(fileName);
+			Lock nodeLock = lockIndexNode(inodeNumber, true);
+			try {
+				IndexNode node = new IndexNode();
+				readIndexNode(node, inodeNumber);
+				writeBytesAt(node, inodeNumber, offset, bytes);
+			} finally {
+				nodeLock.unlock();
+			}
+		} catch (IOException e) {
+			throw new FileSystemException(
+					"An i/o error occurred while writing to the file");
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -265,13 +637,113 @@ public class FileSystem {
 	 */
 	public void importFile(String externalPath, String destinationFile)
 			throws FileSystemException {
-		validateImport(externalPath, destinationFile);
-		makeFile(destinationFile, FileType.FILE);
+		Lock lock = lockTree(true);
 		try {
-			importBlocks(externalPath, destinationFile);
+			validateImport(externalPath, destinationFile);
+			createFile(destinationFile, FileType.FILE);
+			int inodeNumber = fileIndexNode(destinationFile);
+			Lock nodeLock = lockIndexNode(inodeNumber, true);
+			lock = downgradeTree();
+			try {
+				importBlocks(externalPath, inodeNumber);
+			} finally {
+				nodeLock.unlock();
+			}
 		} catch (IOException e) {
 			throw new FileSystemException(
 					"An i/o error occurred while importing the file");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Imports the given directory of the external file system, together with everything below it, to a new
+	 * directory in the current directory. The host tree is listed and the index nodes of the whole tree are allocated
+	 * together before anything is written. Reader threads read the host files ahead into a bounded window, while the
+	 * calling thread writes them to the container one after another, so their data is laid out sequentially. Files
+	 * larger than IMPORT_BUFFERED_FILE_BYTES are transferred directly, like by importFile(). Anything that isn't a
+	 * regular file or a directory, such as a symbolic link to a directory, is skipped.
+	 * <p>
+	 * The imported files can't be reached until the import is finished, so they are written under a shared hold of
+	 * the tree lock, taken again for every file. The tree lock is only taken exclusively at the end, to link the new
+	 * directory into the current one.
+	 * @param externalPath the path to the external directory.
+	 * @param destinationName the name of the new directory.
+	 * @return the amount of imported files and directories.
+	 * @throws FileSystemException if the external directory doesn't exist, if a name in it is too long, if the
+	 * destination already exists, if there isn't enough free space, or if an i/o error occurs.
+	 */
+	public int importRecursive(String externalPath, String destinationName)
+			throws FileSystemException {
+		Path top = Path.of(externalPath);
+		if (!Files.isDirectory(top)) {
+			throw new FileSystemException(
+					"The external directory does not exist");
+		}
+		ExecutorService readers = null;
+		try {
+			HostTree hostTree = new HostTree(top);
+			int parent;
+			int[] inodes;
+			Lock lock = lockTree(false);
+			try {
+				parent = validateSubtreeDestination(destinationName);
+				inodes = inodeMap.allocateBlocks(hostTree.paths.length);
+			} finally {
+				lock.unlock();
+			}
+			if (inodes.length < hostTree.paths.length) {
+				throw new FileSystemException(
+						"There are not enough free index nodes in the file system");
+			}
+			boolean[] written = new boolean[inodes.length];
+			readers = Executors.newFixedThreadPool(IMPORT_READER_THREADS, task -> {
+				Thread thread = new Thread(task, "import-reader");
+				thread.setDaemon(true);
+				return thread;
+			});
+			try {
+				writeHostTree(hostTree, destinationName, parent, inodes, written, readers);
+			} catch (IOException | FileSystemException e) {
+				lock = lockTree(false);
+				try {
+					releaseCreated(inodes, written);
+				} finally {
+					lock.unlock();
+				}
+				throw e;
+			}
+			lock = lockTree(true);
+			try {
+				// another session may have taken the name or removed the current directory in the meantime
+				try {
+					validateSubtreeDestination(destinationName);
+				} catch (IOException | FileSystemException e) {
+					releaseCreated(inodes, written);
+					throw e;
+				}
+				IndexNode parentNode = new IndexNode();
+				readIndexNode(parentNode, parent);
+				blockMapper().append(parentNode, inodes[0]);
+				writeIndexNode(parentNode, parent);
+				DirectoryTree.Node[] nodes = new DirectoryTree.Node[inodes.length];
+				nodes[0] = tree.addChild(tree.getCurrentDir(), destinationName, inodes[0], FileType.DIRECTORY);
+				for (int i = 1; i < nodes.length; i++) {
+					nodes[i] = tree.addChild(nodes[hostTree.parents[i]], hostTree.names[i], inodes[i],
+							hostTree.directories[i] ? FileType.DIRECTORY : FileType.FILE);
+				}
+				return inodes.length;
+			} finally {
+				lock.unlock();
+			}
+		} catch (IOException e) {
+			throw new FileSystemException(
+					"An i/o error occurred while importing the directory");
+		} finally {
+			if (readers != null) {
+				readers.shutdownNow();
+			}
 		}
 	}
 
@@ -284,14 +756,21 @@ public class FileSystem {
 	 */
 	public void exportFile(String file, String externalPath)
 			throws FileSystemException {
-		validateExport(file, externalPath);
-
+		Lock lock = lockTree(false);
 		try {
-			exportBlocks(file, externalPath);
-		}
-		catch (IOException e) {
+			validateExport(file, externalPath);
+			int inodeNumber = tree.getChild(file).inodeNumber;
+			Lock nodeLock = lockIndexNode(inodeNumber, false);
+			try {
+				exportBlocks(inodeNumber, externalPath);
+			} finally {
+				nodeLock.unlock();
+			}
+		} catch (IOException e) {
 			throw new FileSystemException(
 					"An i/o error occurred while exporting the file");
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -302,27 +781,7 @@ public class FileSystem {
 	 */
 	public int allocateInodeBlock()
 			throws IOException {
-		int oldIndex = currentInodeBitmapIndex;
-		int inodeBitmapLength =
-				superBlock.getDataBitmapOffset() - superBlock.getInodeBitmapOffset();
-
-		for (int i = 0; i < inodeBitmapLength; i++) {
-			readBitmap(
-					currentInodeBitmapBlock,
-					superBlock.getInodeBitmapOffset(), i);
-			int firstFreeBit =
-					currentInodeBitmapBlock.getFirstFreeBit();
-			if (firstFreeBit != -1) {
-				currentInodeBitmapBlock.resetBit(firstFreeBit);
-				writeBitmap(
-						currentInodeBitmapBlock,
-						superBlock.getInodeBitmapOffset(),
-						currentInodeBitmapIndex);
-				return (i * superBlock.getBlockSize()) + firstFreeBit;
-			}
-		}
-		currentInodeBitmapIndex = oldIndex;
-		return -1;
+		return inodeMap.allocate();
 	}
 
 	/**
@@ -332,16 +791,7 @@ public class FileSystem {
 	 */
 	public void freeInodeBlock(int inodeBlockNumber)
 			throws IOException {
-		int blockToSeek = inodeBlockNumber / 4096;
-		readBitmap(
-				currentInodeBitmapBlock,
-				superBlock.getInodeBitmapOffset(), blockToSeek);
-		currentInodeBitmapBlock.setBit(
-				(blockToSeek * 4096) + inodeBlockNumber);
-		writeBitmap(
-				currentInodeBitmapBlock,
-				superBlock.getInodeBitmapOffset(),
-				currentInodeBitmapIndex);
+		inodeMap.free(inodeBlockNumber);
 	}
 
 	/**
@@ -351,25 +801,19 @@ public class FileSystem {
 	 */
 	public int allocateDataBlock()
 			throws IOException {
-		int oldIndex = currentDataBitmapIndex;
-		int dataBitmapLength =
-				superBlock.getInodeBlockOffset() - superBlock.getDataBitmapOffset();
-		for (int i = 0; i < dataBitmapLength; i++) {
-			readBitmap(
-					currentDataBitmapBlock,
-					superBlock.getDataBitmapOffset(), i);
-			int firstFreeBit =
-					currentDataBitmapBlock.getFirstFreeBit();
-			if (firstFreeBit != -1) {
-				currentDataBitmapBlock.resetBit(firstFreeBit);
-				writeBitmap(
-						currentDataBitmapBlock,
-						superBlock.getDataBitmapOffset(), currentDataBitmapIndex);
-				return (i * superBlock.getBlockSize()) + firstFreeBit;
-			}
-		}
-		currentDataBitmapIndex = oldIndex;
-		return -1;
+		return dataMap.allocate();
+	}
+
+	/**
+	 * Marks the given amount of blocks as allocated in the data bitmap, preferring a single contiguous run of blocks.
+	 * If there isn't a long enough run, the longest run is used, followed by the free runs after it.
+	 *
+	 * @param count the amount of blocks to allocate.
+	 * @return the numbers of the blocks that were allocated, an empty array if there aren't enough free blocks.
+	 */
+	public int[] allocateDataBlocks(int count)
+			throws IOException {
+		return dataMap.allocateBlocks(count);
 	}
 
 	/**
@@ -379,15 +823,7 @@ public class FileSystem {
 	 */
 	public void freeDataBlock(int dataBlockNumber)
 			throws IOException {
-		int blockToSeek = dataBlockNumber / 4096;
-		readBitmap(
-				currentDataBitmapBlock,
-				superBlock.getDataBitmapOffset(), blockToSeek);
-		currentDataBitmapBlock.setBit(
-				(blockToSeek * 4096) + dataBlockNumber);
-		writeBitmap(
-				currentDataBitmapBlock,
-				superBlock.getDataBitmapOffset(), currentDataBitmapIndex);
+		dataMap.free(dataBlockNumber);
 	}
 
 	/**
@@ -398,17 +834,7 @@ public class FileSystem {
 	 */
 	public void readIndexNode(IndexNode node, int indexNodeNumber)
 			throws IOException {
-		int blockToSeek =
-				superBlock.getInodeBlockOffset() +
-				indexNodeNumber / (superBlock.getBlockSize() / IndexNode.INODE_SIZE);
-		long additional = 0;
-		if (indexNodeNumber % 2 != 0) {
-			additional = 256;
-		}
-
-		containerFile.seek(
-				(long) blockToSeek * superBlock.getBlockSize() + additional);
-		node.read(containerFile);
+		node.read(indexNodeStorage(), indexNodePosition(indexNodeNumber));
 	}
 
 	/**
@@ -419,17 +845,28 @@ public class FileSystem {
 	 */
 	public void writeIndexNode(IndexNode node, int indexNodeNumber)
 			throws IOException {
-		int blockToSeek =
-				superBlock.getInodeBlockOffset() +
-				indexNodeNumber / (superBlock.getBlockSize() / IndexNode.INODE_SIZE);
-		long additional = 0;
-		if (indexNodeNumber % 2 != 0) {
-			additional = 256;
-		}
+		node.write(indexNodeStorage(), indexNodePosition(indexNodeNumber));
+	}
 
-		containerFile.seek(
-				(long) blockToSeek * superBlock.getBlockSize() + additional);
-		node.write(containerFile);
+	/**
+	 * Returns the storage that index nodes are read from and written to, which is the batch cache during a batch.
+	 *
+	 * @return the storage for index nodes.
+	 */
+	private ContainerStorage indexNodeStorage() {
+		return batchIndexNodes != null ? batchIndexNodes : metadata;
+	}
+
+	/**
+	 * Calculates the position of the given index node in the container. Index nodes are stored one after another,
+	 * starting from the first block of the index node region.
+	 *
+	 * @param indexNodeNumber the number of the index node.
+	 * @return the position of the index node in bytes.
+	 */
+	private long indexNodePosition(int indexNodeNumber) {
+		return (long) superBlock.getInodeBlockOffset() * superBlock.getBlockSize()
+				+ (long) indexNodeNumber * IndexNode.INODE_SIZE;
 	}
 
 	/**
@@ -442,9 +879,10 @@ public class FileSystem {
 	 */
 	public void addDirectBlock(int indexNodeNumber, int blockToAdd)
 			throws IOException, FileSystemException {
-		readIndexNode(currentNode, indexNodeNumber);
-		currentNode.addDirectBlock(blockToAdd);
-		writeIndexNode(currentNode, indexNodeNumber);
+		IndexNode node = new IndexNode();
+		readIndexNode(node, indexNodeNumber);
+		blockMapper().append(node, blockToAdd);
+		writeIndexNode(node, indexNodeNumber);
 	}
 
 	/**
@@ -457,9 +895,10 @@ public class FileSystem {
 	 */
 	public void removeDirectBlock(int indexNodeNumber, int blockToRemove)
 			throws IOException {
-		readIndexNode(currentNode, indexNodeNumber);
-		currentNode.removeDirectBlock(blockToRemove);
-		writeIndexNode(currentNode, indexNodeNumber);
+		IndexNode node = new IndexNode();
+		readIndexNode(node, indexNodeNumber);
+		blockMapper().remove(node, blockToRemove);
+		writeIndexNode(node, indexNodeNumber);
 	}
 
 	/**
@@ -472,9 +911,8 @@ public class FileSystem {
 			throws IOException {
 		int blockToSeek =
 				superBlock.getDataBlockOffset() + dataBlockNumber;
-		containerFile.seek(
+		block.read(dataStorage,
 				(long) blockToSeek * superBlock.getBlockSize());
-		block.read(containerFile);
 	}
 
 	/**
@@ -487,373 +925,1827 @@ public class FileSystem {
 			throws IOException {
 		int blockToSeek =
 				superBlock.getDataBlockOffset() + dataBlockNumber;
-		containerFile.seek(
+		block.write(dataStorage,
 				(long) blockToSeek * superBlock.getBlockSize());
-		block.write(containerFile);
-	}
-
-	public String getSystemPath() {
-		return tree.getPath();
 	}
 
 	/**
-	 * Reads the specified bitmap from the container into the given Bitmap object.
-	 *
-	 * @param bitmap       the destination for the read bitmap.
-	 * @param offset       the offset for either the inode bitmap or the data bitmap, the corresponding current bitmap index
-	 *                     will be updated accordingly.
-	 * @param bitmapNumber the number of the bitmap.
+	 * Creates a new cursor for the directory tree, which starts at the root directory. A cursor holds a current
+	 * directory, independent of the current directories of the other cursors.
+	 * @return the new cursor.
 	 */
-	private void readBitmap(Bitmap bitmap, int offset, int bitmapNumber)
-			throws IOException {
-		int blockToSeek = offset + bitmapNumber;
-		if (bitmapNumber == superBlock.getInodeBitmapOffset()) {
-			currentInodeBitmapIndex = bitmapNumber;
-		} else {
-			currentDataBitmapIndex = bitmapNumber;
-		}
-
-		containerFile.seek(
-				(long) blockToSeek * superBlock.getBlockSize());
-		bitmap.read(containerFile);
+	public DirectoryTree.Cursor newCursor() {
+		return tree.newCursor();
 	}
 
 	/**
-	 * Writes the specified bitmap to the container.
-	 *
-	 * @param bitmap       the bitmap to be written to the file.
-	 * @param offset       the offset for either the inode bitmap or the data bitmap, the corresponding current bitmap index
-	 *                     will be updated accordingly.
-	 * @param bitmapNumber the number of the bitmap.
+	 * Binds the given cursor to the calling thread, so that the operations of the thread are relative to the
+	 * current directory of the cursor.
+	 * @param cursor the cursor to bind, null to use the shared cursor of the file system again.
 	 */
-	private void writeBitmap(Bitmap bitmap, int offset, int bitmapNumber)
-			throws IOException {
-		int blockToSeek = offset + bitmapNumber;
-		if (bitmapNumber == superBlock.getInodeBitmapOffset()) {
-			currentInodeBitmapIndex = bitmapNumber;
-		} else {
-			currentDataBitmapIndex = bitmapNumber;
-		}
+	public void useCursor(DirectoryTree.Cursor cursor) {
+		tree.useCursor(cursor);
+	}
 
-		containerFile.seek(
-				(long) blockToSeek * superBlock.getBlockSize());
-		bitmap.write(containerFile);
+	public String getSystemPath() {
+		Lock lock = lockTree(false);
+		try {
+			return tree.getPath();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
-	 * Initializes the super block of the file system and creates the container.
-	 * @param size the maximum size of the data segment (in bytes).
-	 * @throws IOException if an i/o error occurs.
-	 * @throws FileSystemException if a file system error occurs.
+	 * Writes all cached changes to the container and forces them to the underlying device. If the file system is
+	 * journaled, the metadata changes are committed to the journal.
+	 * @throws FileSystemException if an i/o error occurs while writing the changes.
 	 */
-	private void initialize(long size)
-			throws IOException, FileSystemException {
-		superBlock = new SuperBlock();
-		superBlock.initialize(size);
-		createFileSystem();
+	public void sync()
+			throws FileSystemException {
+		try {
+			writeDeferredMetadata();
+			if (journal != null) {
+				journal.commit();
+			}
+			storage.force();
+		} catch (IOException e) {
+			throw new FileSystemException(
+					"An i/o error occurred while syncing the file system");
+		}
 	}
 
 	/**
-	 * Overrides the container file, and segments it for a new file system.
-	 * @throws IOException if an i/o error occurs.
-	 * @throws FileSystemException if a file system error occurs.
+	 * Starts a batch of operations. Until the batch ends, the changes to the index nodes and the bitmaps are kept in
+	 * memory and coalesced, and they are only written to the container by flushMetadata(), sync() or endBatch().
+	 * @throws FileSystemException if an i/o error occurs.
 	 */
-	private void createFileSystem()
+	public void beginBatch()
+			throws FileSystemException {
+		if (batchIndexNodes != null) {
+			return;
+		}
+		try {
+			batchIndexNodes = new CachedContainerStorage(metadata, superBlock.getBlockSize(), BATCH_INODE_BLOCKS);
+			inodeMap.setDeferred(true);
+			dataMap.setDeferred(true);
+		} catch (IOException e) {
+			throw new FileSystemException(
+					"An i/o error occurred while starting the batch");
+		}
+	}
+
+	/**
+	 * Writes the index node and bitmap changes, deferred by the current batch, to the container.
+	 * The batch continues after the call.
+	 * @throws FileSystemException if an i/o error occurs while writing the changes.
+	 */
+	public void flushMetadata()
+			throws FileSystemException {
+		try {
+			writeDeferredMetadata();
+		} catch (IOException e) {
+			throw new FileSystemException(
+					"An i/o error occurred while writing the metadata");
+		}
+	}
+
+	/**
+	 * Ends the current batch, writing the deferred changes to the container and forcing them to the underlying
+	 * device.
+	 * @throws FileSystemException if an i/o error occurs while writing the changes.
+	 */
+	public void endBatch()
+			throws FileSystemException {
+		if (batchIndexNodes == null) {
+			return;
+		}
+		sync();
+		try {
+			inodeMap.setDeferred(false);
+			dataMap.setDeferred(false);
+		} catch (IOException e) {
+			throw new FileSystemException(
+					"An i/o error occurred while ending the batch");
+		} finally {
+			batchIndexNodes = null;
+		}
+	}
+
+	/**
+	 * Returns the metrics of the file system, which count the work done by its operations.
+	 * @return the metrics.
+	 */
+	public FileSystemMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Prints the metrics of the file system to the given stream.
+	 * @param out the stream to print the metrics to.
+	 */
+	public void printStats(PrintStream out) {
+		metrics.print(out);
+	}
+
+	/**
+	 * Forces all changes to the container and closes it. The journal is checkpointed, so it is empty afterwards.
+	 * @throws FileSystemException if an i/o error occurs while closing the container.
+	 */
+	public void close()
+			throws FileSystemException {
+		unregisterMetrics();
+		try {
+			writeDeferredMetadata();
+			if (journal != null) {
+				journal.close();
+			}
+			storage.force();
+			storage.close();
+		} catch (IOException e) {
+			throw new FileSystemException(
+					"An i/o error occurred while closing the file system");
+		}
+	}
+
+	/**
+	 * Writes the index node blocks and bitmap words that were changed during the current batch to the storage.
+	 * The tree lock is held exclusively, so a journal commit can't see only a part of the changes.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void writeDeferredMetadata()
+			throws IOException {
+		if (batchIndexNodes == null) {
+			return;
+		}
+		Lock lock = lockTree(true);
+		try {
+			batchIndexNodes.flush();
+			inodeMap.flush();
+			dataMap.flush();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Creates a file with the given name and file type. The caller must hold the tree lock exclusively.
+	 * @param name the name of the new file.
+	 * @param type the type of the new file.
+	 * @throws FileSystemException if a file or directory with the same name already exists,
+	 * or if the maximum directory size if reached, or if an i/o error occurs.
+	 */
+	private void createFile(String name, FileType type)
+			throws FileSystemException {
+		validateCurrentDir();
+		if (tree.fileExists(name) || tree.dirExists(name)) {
+			throw new FileSystemException(
+					"A file/directory with the same name already exists");
+		}
+		try {
+			int parent = tree.getCurrentDir().inodeNumber;
+			IndexNode parentNode = new IndexNode();
+			readIndexNode(parentNode, parent);
+			if (blockMapper().getFreeSlots(parentNode) == 0) {
+				throw parentNode.maxSizeException();
+			}
+			int newInode = allocateInodeBlock();
+			if (newInode == -1) {
+				throw new FileSystemException(
+						"There are no free index nodes in the file system");
+			}
+
+			IndexNode resultNode = new IndexNode();
+			resultNode.setName(name);
+			resultNode.setType(type);
+			resultNode.setCompressed(type == FileType.FILE && options.isCompressed());
+			resultNode.addDirectBlock(parent);
+			writeIndexNode(resultNode, newInode);
+
+			blockMapper().append(parentNode, newInode);
+			writeIndexNode(parentNode, parent);
+			tree.addChild(name, newInode, type);
+		} catch (IOException e) {
+			throw new FileSystemException(
+					"An i/o error occurred while creating the file");
+		}
+	}
+
+	/**
+	 * Creates the given file if it doesn't exist yet. The tree lock is only taken exclusively if the file is missing.
+	 * @param fileName the name of the file.
+	 * @throws FileSystemException if the name points to a directory, or if the file can't be created.
+	 */
+	private void createFileIfMissing(String fileName)
+			throws FileSystemException {
+		Lock lock = lockTree(false);
+		try {
+			if (tree.fileExists(fileName)) {
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		lock = lockTree(true);
+		try {
+			validateWrite(fileName);
+			if (!tree.fileExists(fileName)) {
+				createFile(fileName, FileType.FILE);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the index node number of the given file in the current directory.
+	 * @param fileName the name of the file.
+	 * @return the number of the index node of the file.
+	 * @throws FileSystemException if the file does not exist.
+	 */
+	private int fileIndexNode(String fileName)
+			throws FileSystemException {
+		if (!tree.fileExists(fileName)) {
+			throw new FileSystemException(
+					"The specified file does not exist");
+		}
+		return tree.getChild(fileName).inodeNumber;
+	}
+
+	/**
+	 * Acquires the tree lock. The cached indirect blocks of the calling thread are dropped, since other threads
+	 * may have changed them before the lock was acquired.
+	 * @param write true to acquire the lock exclusively, false to share it.
+	 * @return the acquired lock, which has to be unlocked by the caller.
+	 */
+	private Lock lockTree(boolean write) {
+		Lock lock = write ? treeLock.writeLock() : treeLock.readLock();
+		lock.lock();
+		blockMapper().invalidate();
+		return lock;
+	}
+
+	/**
+	 * Turns the exclusive hold of the tree lock by the calling thread into a shared one, without letting another
+	 * thread take the lock exclusively in between. Used after a file is created, to fill it without blocking other
+	 * sessions, while the index node lock taken before the downgrade keeps them away from the new file.
+	 * @return the shared lock, which has to be unlocked by the caller.
+	 */
+	private Lock downgradeTree() {
+		Lock lock = treeLock.readLock();
+		lock.lock();
+		treeLock.writeLock().unlock();
+		return lock;
+	}
+
+	/**
+	 * Acquires the lock of the given index node, dropping the cached indirect blocks of the calling thread.
+	 * The caller must hold the tree lock.
+	 * @param inodeNumber the number of the index node.
+	 * @param write true to acquire the lock exclusively, false to share it with other readers.
+	 * @return the acquired lock, which has to be unlocked by the caller.
+	 */
+	private Lock lockIndexNode(int inodeNumber, boolean write) {
+		Lock lock = indexNodeLocks.lock(inodeNumber, write);
+		blockMapper().invalidate();
+		return lock;
+	}
+
+	/**
+	 * Returns the block mapper of the calling thread.
+	 * @return the block mapper.
+	 */
+	private BlockMapper blockMapper() {
+		return blockMappers.get();
+	}
+
+	/**
+	 * Initializes the super block of the file system and creates the container.
+	 * @param size the maximum size of the data segment (in bytes).
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if a file system error occurs.
+	 */
+	private void initialize(long size)
+			throws IOException, FileSystemException {
+		if (!SuperBlock.isValidBlockSize(options.getBlockSize())) {
+			throw new FileSystemException(
+					"The block size must be a power of two between " + SuperBlock.MIN_BLOCK_SIZE + " and "
+							+ SuperBlock.MAX_BLOCK_SIZE + " bytes");
+		}
+		superBlock = new SuperBlock();
+		superBlock.initialize(size, options.getBlockSize(), options.isJournaled());
+		createFileSystem();
+	}
+
+	/**
+	 * Reads the super block and the bitmaps of an existing container and rebuilds the directory tree from its
+	 * index nodes.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if the container is not a valid file system.
+	 */
+	private void mount()
+			throws IOException, FileSystemException {
+		superBlock = new SuperBlock();
+		superBlock.read(new FileContainerStorage(containerFile));
+		openStorage();
+		openJournal(false);
+		createFreeSpaceMaps();
+		inodeMap.load();
+		dataMap.load();
+		if (referenceCounts != null) {
+			referenceCounts.load();
+		}
+		if (inodeMap.isFree(0)) {
+			throw new FileSystemException(
+					"The container does not have a root directory");
+		}
+		rootNode = new IndexNode();
+		readIndexNode(rootNode, 0);
+		IndexNode[] nodes = readAllocatedIndexNodes();
+		nodes[0] = null;
+		addChildNodes(tree.getRoot(), rootNode, nodes);
+		startJournal();
+	}
+
+	/**
+	 * Reads all allocated index nodes from the container. The index node region is split in chunks, which are read
+	 * in parallel. Each chunk only reads the range between its first and last allocated index node, so free parts
+	 * of the region are never read.
+	 * @return the allocated index nodes, indexed by their number. Free index nodes are null.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private IndexNode[] readAllocatedIndexNodes()
+			throws IOException {
+		int inodeCount = inodeMap.getBitCount();
+		IndexNode[] nodes = new IndexNode[inodeCount];
+		int chunkCount = (inodeCount + MOUNT_CHUNK_INODES - 1) / MOUNT_CHUNK_INODES;
+		FileChannel channel = containerFile.getChannel();
+		try {
+			IntStream.range(0, chunkCount)
+					.parallel()
+					.forEach(chunk -> readIndexNodeChunk(channel, nodes, chunk));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return nodes;
+	}
+
+	/**
+	 * Reads the allocated index nodes of a single chunk of the index node region, using positional reads so it can
+	 * run in parallel with the other chunks.
+	 * @param channel the channel of the container file.
+	 * @param nodes the array to store the read index nodes in.
+	 * @param chunk the number of the chunk.
+	 */
+	private void readIndexNodeChunk(FileChannel channel, IndexNode[] nodes, int chunk) {
+		int first = chunk * MOUNT_CHUNK_INODES;
+		int end = Math.min(first + MOUNT_CHUNK_INODES, nodes.length);
+		while (first < end && inodeMap.isFree(first)) {
+			first++;
+		}
+		while (end > first && inodeMap.isFree(end - 1)) {
+			end--;
+		}
+		if (first == end) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((end - first) * IndexNode.INODE_SIZE);
+		long position = indexNodePosition(first);
+		try {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) == -1) {
+					throw new EOFException("The index node region is truncated");
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		for (int i = first; i < end; i++) {
+			if (!inodeMap.isFree(i)) {
+				buffer.position((i - first) * IndexNode.INODE_SIZE);
+				IndexNode node = new IndexNode();
+				node.read(buffer);
+				nodes[i] = node;
+			}
+		}
+	}
+
+	/**
+	 * Adds the children of the given directory to the directory tree, recursively for every child directory.
+	 * Each index node is removed from the array once it is added, so an index node can't be added twice.
+	 * @param parent the tree node of the directory.
+	 * @param parentNode the index node of the directory.
+	 * @param nodes the allocated index nodes, indexed by their number.
+	 * @throws IOException if an i/o error occurs while reading an indirect block.
+	 */
+	private void addChildNodes(DirectoryTree.Node parent, IndexNode parentNode, IndexNode[] nodes)
+			throws IOException {
+		for (int child : blockMapper().getAll(parentNode, 1)) {
+			if (child < 0 || child >= nodes.length || nodes[child] == null) {
+				continue;
+			}
+			IndexNode childNode = nodes[child];
+			nodes[child] = null;
+			DirectoryTree.Node treeNode =
+					tree.addChild(parent, childNode.getName(), child, childNode.getType());
+			if (childNode.getType() == FileType.DIRECTORY) {
+				addChildNodes(treeNode, childNode, nodes);
+			}
+		}
+	}
+
+	/**
+	 * Overrides the container file, and segments it for a new file system.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if a file system error occurs.
+	 */
+	private void createFileSystem()
 			throws IOException, FileSystemException {
 		deleteExistingFileContent();
 		containerFile.seek(
-				superBlock.getTotalBlockCount() * 512L);
+				(long) superBlock.getTotalBlockCount() * superBlock.getBlockSize());
 		containerFile.writeByte(0);
-		containerFile.seek(0);
-		superBlock.write(containerFile);
-		initializeBitmaps();
+		openStorage();
+		superBlock.write(storage);
+		openJournal(true);
+		createFreeSpaceMaps();
+		inodeMap.format();
+		dataMap.format();
+		if (referenceCounts != null) {
+			referenceCounts.format();
+		}
 		initializeRootNode();
+		if (journal != null) {
+			journal.checkpoint();
+		}
+		startJournal();
+	}
+
+	/**
+	 * Opens the storage through which the container is accessed, depending on the startup options.
+	 * The container file must already have its final size. All accesses that reach the container file, after the
+	 * block cache, are recorded in the metrics. File data bypasses the block cache through dataStorage, so runs of
+	 * data blocks are read and written with single accesses, and only the metadata and the directories are cached.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void openStorage()
+			throws IOException {
+		if (options.isMemoryMapped()) {
+			storage = new MappedContainerStorage(containerFile);
+		} else {
+			storage = new FileContainerStorage(containerFile);
+		}
+		metrics.setLayout(superBlock);
+		storage = new MeteredContainerStorage(storage, metrics);
+		dataStorage = storage;
+		if (options.getCacheCapacity() > 0) {
+			CachedContainerStorage cache = new CachedContainerStorage(
+					storage, superBlock.getBlockSize(), options.getCacheCapacity());
+			storage = cache;
+			dataStorage = cache.uncached();
+		}
+	}
+
+	/**
+	 * Opens the journal of the container, if it has a journal region. When mounting, the committed changes in the
+	 * journal are replayed first, even if the journal is disabled by the startup options. The metadata is accessed
+	 * through the journal if it is enabled, otherwise directly.
+	 * @param format whether to write an empty journal instead of replaying the existing one.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void openJournal(boolean format)
+			throws IOException {
+		metadata = storage;
+		journal = null;
+		if (!superBlock.hasJournal()) {
+			return;
+		}
+		MetadataJournal opened = new MetadataJournal(storage, dataStorage, superBlock, treeLock.writeLock());
+		if (format) {
+			opened.format();
+		} else {
+			opened.recover();
+		}
+		if (options.isJournaled()) {
+			journal = opened;
+			metadata = opened;
+		}
+	}
+
+	/**
+	 * Starts the background commits of the journal, if the metadata is journaled.
+	 */
+	private void startJournal() {
+		if (journal != null) {
+			journal.start(options.getCommitInterval());
+		}
+	}
+
+	/**
+	 * Creates the in-memory maps of the inode bitmap, the data bitmap and the reference count regions. The blocks of
+	 * the reference count and journal regions are not part of the data bitmap.
+	 */
+	private void createFreeSpaceMaps() {
+		int blockSize = superBlock.getBlockSize();
+		int inodeCount =
+				(superBlock.getDataBlockOffset() - superBlock.getInodeBlockOffset()) * (blockSize / IndexNode.INODE_SIZE);
+		int dataBlockCount =
+				superBlock.getDataBlockCount();
+		inodeMap = new FreeSpaceMap(
+				metadata, (long) superBlock.getInodeBitmapOffset() * blockSize, inodeCount,
+				SuperBlock.INODE_BITMAP_WATERMARK_POSITION, metrics.inodeScanLengths());
+		dataMap = new FreeSpaceMap(
+				metadata, (long) superBlock.getDataBitmapOffset() * blockSize, dataBlockCount,
+				SuperBlock.DATA_BITMAP_WATERMARK_POSITION, metrics.dataScanLengths());
+		referenceCounts = null;
+		if (superBlock.hasReferenceCounts()) {
+			referenceCounts = new ReferenceCounts(
+					metadata, (long) superBlock.getReferenceCountOffset() * blockSize, dataBlockCount,
+					SuperBlock.REFERENCE_COUNT_WATERMARK_POSITION);
+		}
+		fingerprints = null;
+		if (referenceCounts != null && options.isDeduplicated()) {
+			fingerprints = new BlockFingerprints(referenceCounts);
+		}
+		indexNodeLocks = new IndexNodeLocks(inodeCount);
+	}
+
+	/**
+	 * Registers the metrics as an MBean under the path of the container, if the startup options ask for it.
+	 * A failure is reported, but doesn't stop the file system from being used.
+	 */
+	private void registerMetrics() {
+		if (!options.isJmx()) {
+			return;
+		}
+		try {
+			metrics.register(systemPath);
+		} catch (JMException e) {
+			System.err.println("Error while registering the metrics MBean.");
+		}
+	}
+
+	private void unregisterMetrics() {
+		try {
+			metrics.unregister();
+		} catch (JMException e) {
+			System.err.println("Error while unregistering the metrics MBean.");
+		}
+	}
+
+	/**
+	 * Deletes the existing content in the container file.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void deleteExistingFileContent()
+			throws IOException {
+		new PrintWriter(systemPath).close();
+	}
+
+	/**
+	 * Initializes the root index node and writes it to the container file.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if a file system error occurs.
+	 */
+	private void initializeRootNode()
+			throws IOException, FileSystemException {
+		rootNode = new IndexNode();
+		rootNode.setName("root");
+		rootNode.addDirectBlock(allocateInodeBlock());
+		rootNode.write(storage,
+				(long) superBlock.getInodeBlockOffset() * superBlock.getBlockSize());
+	}
+
+	/**
+	 * Changes the current directory to the parent directory,
+	 * if it exists (if it does not exist, the current dir is root).
+	 */
+	private void goToParentDir() {
+		if (tree.getCurrentDir().parent == null) {
+			return;
+		}
+		tree.goToParent();
+	}
+
+	/**
+	 * Validates that the current directory still exists, since another cursor may have removed it.
+	 * @throws FileSystemException if the current directory has been removed.
+	 */
+	private void validateCurrentDir()
+			throws FileSystemException {
+		if (tree.isCurrentDirRemoved()) {
+			throw new FileSystemException(
+					"The current directory has been removed");
+		}
+	}
+
+	/**
+	 * Validates the destination of a copied or imported subtree in the current directory.
+	 * @param name the name of the destination.
+	 * @return the number of the index node of the current directory.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if the current directory has been removed or can't have more children, or if a
+	 * file or directory with the given name already exists.
+	 */
+	private int validateSubtreeDestination(String name)
+			throws IOException, FileSystemException {
+		validateCurrentDir();
+		if (tree.fileExists(name) || tree.dirExists(name)) {
+			throw new FileSystemException(
+					"A file/directory with the same name as the destination already exists");
+		}
+		int parent = tree.getCurrentDir().inodeNumber;
+		IndexNode parentNode = new IndexNode();
+		readIndexNode(parentNode, parent);
+		if (blockMapper().getFreeSlots(parentNode) == 0) {
+			throw parentNode.maxSizeException();
+		}
+		return parent;
+	}
+
+	/**
+	 * Validates the source and destination for a copyFile() call.
+	 * @param src the name of the source file.
+	 * @param dest the name of the destination file.
+	 * @throws FileSystemException if the source file doesn't exist or is a directory, or if the destination file
+	 * already exists or is a directory.
+	 */
+	private void validateCopy(String src, String dest)
+			throws FileSystemException {
+		if (!tree.fileExists(src)) {
+			throw new FileSystemException(
+					"The specified file to copy does not exist or is a directory");
+		}
+		if (tree.fileExists(dest) || tree.dirExists(dest)) {
+			throw new FileSystemException(
+					"A file/directory with the same name as the destination file already exists");
+		}
+	}
+
+	/**
+	 * Copies the blocks from the source index node to the destination index node.
+	 * @param sourceNumber the number of the source index node.
+	 * @param destNumber the number of the destination index node.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if the maximum file size is reached.
+	 */
+	private void copyFileBlocks(int sourceNumber, int destNumber)
+			throws IOException, FileSystemException {
+		IndexNode sourceNode = new IndexNode();
+		IndexNode destinationNode = new IndexNode();
+		readIndexNode(sourceNode, sourceNumber);
+		readIndexNode(destinationNode, destNumber);
+
+		copyDataBlocks(sourceNode, destinationNode);
+		writeIndexNode(destinationNode, destNumber);
+	}
+
+	/**
+	 * Copies the data blocks from one index node to another. If the container has reference counts, the blocks are
+	 * shared instead of copied, so only the block list is written. Otherwise, or if a block can't be shared anymore,
+	 * the content of the blocks is copied to newly allocated blocks. The chunks of a compressed file are copied as they
+	 * are, without decompressing them, and the copy is compressed as well. If the copy fails, the references and
+	 * blocks that it acquired are released, and the block list of the destination is restored.
+	 * @param from the index node to copy the blocks from.
+	 * @param to the index node to copy the blocks to.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if the maximum file size is reached.
+	 */
+	private void copyDataBlocks(IndexNode from, IndexNode to)
+			throws IOException, FileSystemException {
+		int[] sourceEntries = blockMapper().getAll(from, 1);
+		int[] sourceBlocks = from.isCompressed() ? withoutHoles(sourceEntries) : sourceEntries;
+		if (sourceEntries.length > blockMapper().getFreeSlots(to)) {
+			throw to.maxSizeException();
+		}
+		int entryCount = to.getAllocatedBlockCount();
+		to.setCompressed(from.isCompressed());
+		if (referenceCounts != null && referenceCounts.addReferences(sourceBlocks)) {
+			try {
+				blockMapper().append(to, sourceEntries);
+			} catch (IOException | FileSystemException e) {
+				blockMapper().truncate(to, entryCount);
+				referenceCounts.removeReferences(sourceBlocks);
+				throw e;
+			}
+			to.setSize(from.getSize());
+			return;
+		}
+		int[] allocatedBlocks =
+				allocateDataBlocksFor(to, sourceBlocks.length);
+		try {
+			copyDataRuns(sourceBlocks, allocatedBlocks);
+			int[] entries = sourceEntries.clone();
+			for (int i = 0, copied = 0; i < entries.length; i++) {
+				if (entries[i] != -1) {
+					entries[i] = allocatedBlocks[copied++];
+				}
+			}
+			blockMapper().append(to, entries);
+		} catch (IOException | FileSystemException e) {
+			blockMapper().truncate(to, entryCount);
+			dataMap.freeBlocks(allocatedBlocks);
+			throw e;
+		}
+		to.setSize(from.getSize());
+	}
+
+	/**
+	 * Copies the content of the given data blocks to other data blocks. Blocks that follow each other in both arrays
+	 * are copied with a single container read and write.
+	 * @param from the numbers of the blocks to copy.
+	 * @param to the numbers of the blocks to copy to, in the same order.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void copyDataRuns(int[] from, int[] to)
+			throws IOException {
+		int blockSize = superBlock.getBlockSize();
+		byte[] buffer = new byte[Math.min(batchBlocks(), from.length) * blockSize];
+		for (int i = 0; i < from.length; ) {
+			int length = Math.min(runLength(from, i), runLength(to, i));
+			dataStorage.read(dataBlockPosition(from[i]), buffer, 0, length * blockSize);
+			dataStorage.write(dataBlockPosition(to[i]), buffer, 0, length * blockSize);
+			i += length;
+		}
+	}
+
+	/**
+	 * Allocates the given amount of data blocks for the given index node.
+	 * @param node the index node that the blocks will be added to.
+	 * @param count the amount of blocks to allocate.
+	 * @return the numbers of the allocated blocks.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if the blocks don't fit in the index node, or if there isn't enough free space.
+	 */
+	private int[] allocateDataBlocksFor(IndexNode node, int count)
+			throws IOException, FileSystemException {
+		if (count <= 0) {
+			return new int[0];
+		}
+		if (count > blockMapper().getFreeSlots(node)) {
+			throw node.maxSizeException();
+		}
+		int[] blocks = allocateDataBlocks(count);
+		if (blocks.length < count) {
+			throw new FileSystemException(
+					"There is not enough free space in the file system");
+		}
+		return blocks;
+	}
+
+	/**
+	 * Counts the blocks that follow each other in the given array, starting from the given index.
+	 * The count is limited to batchBlocks().
+	 * @param blocks the block numbers.
+	 * @param from the index of the first block of the run.
+	 * @return the length of the run.
+	 */
+	private int runLength(int[] blocks, int from) {
+		return runLength(blocks, from, batchBlocks());
+	}
+
+	/**
+	 * Counts the blocks that follow each other in the given array, starting from the given index.
+	 * @param blocks the block numbers.
+	 * @param from the index of the first block of the run.
+	 * @param maxLength the maximum length of the run.
+	 * @return the length of the run.
+	 */
+	private static int runLength(int[] blocks, int from, int maxLength) {
+		int length = 1;
+		while (from + length < blocks.length
+				&& length < maxLength
+				&& blocks[from + length] == blocks[from] + length) {
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the maximum amount of contiguous data blocks that are transferred with a single container read/write.
+	 * @return the amount of blocks in MAX_BATCH_BYTES, at least 1.
+	 */
+	private int batchBlocks() {
+		return Math.max(MAX_BATCH_BYTES / superBlock.getBlockSize(), 1);
+	}
+
+	/**
+	 * Returns the maximum amount of contiguous data blocks that are transferred between a host file and the container
+	 * with a single channel transfer.
+	 * @return the amount of blocks in MAX_TRANSFER_BYTES, at least 1.
+	 */
+	private int transferBlocks() {
+		return Math.max(MAX_TRANSFER_BYTES / superBlock.getBlockSize(), 1);
+	}
+
+	/**
+	 * Calculates the position of the given data block in the container.
+	 * @param dataBlockNumber the number of the data block.
+	 * @return the position of the data block in bytes.
+	 */
+	private long dataBlockPosition(int dataBlockNumber) {
+		return (long) (superBlock.getDataBlockOffset() + dataBlockNumber) * superBlock.getBlockSize();
+	}
+
+	/**
+	 * Writes the given bytes to a run of contiguous data blocks with a single container write.
+	 * The part of the last block that isn't covered by the bytes is filled with zeros.
+	 * @param firstBlock the number of the first data block of the run.
+	 * @param blockCount the amount of blocks in the run.
+	 * @param bytes the bytes to write.
+	 * @param offset the offset of the first byte to write.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void writeDataRun(int firstBlock, int blockCount, byte[] bytes, int offset)
+			throws IOException {
+		int runSize = blockCount * superBlock.getBlockSize();
+		long position = dataBlockPosition(firstBlock);
+		if (bytes.length - offset >= runSize) {
+			dataStorage.write(position, bytes, offset, runSize);
+			return;
+		}
+		byte[] padded = new byte[runSize];
+		System.arraycopy(bytes, offset, padded, 0, bytes.length - offset);
+		dataStorage.write(position, padded);
+	}
+
+	/**
+	 * Removes a reference to each of the given data blocks, which are no longer used by a file.
+	 * @param blocks the numbers of the data blocks.
+	 * @return the blocks that are no longer used by any file and have to be freed.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private int[] releaseDataBlocks(int[] blocks)
+			throws IOException {
+		if (referenceCounts == null) {
+			return blocks;
+		}
+		if (fingerprints != null) {
+			return fingerprints.release(blocks);
+		}
+		return referenceCounts.removeReferences(blocks);
+	}
+
+	/**
+	 * Releases the data blocks and indirect blocks of the given index node, as part of removing a subtree.
+	 * The data blocks that are no longer used by any file are zeroed, but not freed, so the caller can free them
+	 * together with the rest of the subtree. The index node itself is not changed.
+	 * @param inodeNumber the number of the index node.
+	 * @return the data blocks that have to be freed.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private int[] releaseIndexNode(int inodeNumber)
+			throws IOException {
+		IndexNode node = new IndexNode();
+		readIndexNode(node, inodeNumber);
+		int[] blocks = new int[0];
+		if (node.getType() == FileType.FILE) {
+			blocks = releaseDataBlocks(dataBlocks(node));
+			zeroDataBlocks(blocks);
+		}
+		blockMapper().freeIndirectBlocks(node);
+		return blocks;
+	}
+
+	/**
+	 * Writes zeros over the given data blocks, with a single container write per run of contiguous blocks.
+	 * @param blocks the numbers of the data blocks, in any order.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void zeroDataBlocks(int[] blocks)
+			throws IOException {
+		if (blocks.length == 0) {
+			return;
+		}
+		int[] sorted = blocks.clone();
+		Arrays.sort(sorted);
+		byte[] zeros = new byte[Math.min(sorted.length, batchBlocks()) * superBlock.getBlockSize()];
+		for (int i = 0; i < sorted.length; ) {
+			int length = runLength(sorted, i);
+			dataStorage.write(dataBlockPosition(sorted[i]), zeros, 0, length * superBlock.getBlockSize());
+			i += length;
+		}
+	}
+
+	/**
+	 * Writes the copy of a single node of a subtree. A directory gets the index nodes of the copies of its children,
+	 * and a file gets the data blocks of its source, through copyDataBlocks(). If the copy fails before its index
+	 * node is written, the blocks and references that it acquired are released here, because releaseCreated() only
+	 * releases the index nodes that have been written.
+	 * @param subtree the subtree that is copied.
+	 * @param index the index of the node in the subtree.
+	 * @param name the name of the copy.
+	 * @param parent the number of the index node of the parent of the copy.
+	 * @param inodes the numbers of the index nodes of the copies, in the order of the subtree.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if the maximum file size is reached, or if there isn't enough free space.
+	 */
+	private void copyIndexNode(Subtree subtree, int index, String name, int parent, int[] inodes)
+			throws IOException, FileSystemException {
+		IndexNode sourceNode = new IndexNode();
+		readIndexNode(sourceNode, subtree.nodes[index].inodeNumber);
+		IndexNode copy = new IndexNode();
+		copy.setName(name);
+		copy.setType(sourceNode.getType());
+		copy.addDirectBlock(parent);
+		try {
+			if (sourceNode.getType() == FileType.DIRECTORY) {
+				int first = subtree.firstChildren[index];
+				blockMapper().append(copy, Arrays.copyOfRange(inodes, first, first + subtree.childCounts[index]));
+			} else {
+				copyDataBlocks(sourceNode, copy);
+			}
+			writeIndexNode(copy, inodes[index]);
+		} catch (IOException | FileSystemException e) {
+			if (copy.getType() == FileType.FILE) {
+				int[] blocks = releaseDataBlocks(dataBlocks(copy));
+				zeroDataBlocks(blocks);
+				dataMap.freeBlocks(blocks);
+			}
+			blockMapper().freeIndirectBlocks(copy);
+			throw e;
+		}
+	}
+
+	/**
+	 * Releases the index nodes of a subtree whose copy or import failed, together with their blocks.
+	 * @param inodes the numbers of the allocated index nodes.
+	 * @param written true for each index node that has been written.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void releaseCreated(int[] inodes, boolean[] written)
+			throws IOException {
+		int[][] released = new int[inodes.length][];
+		for (int i = 0; i < inodes.length; i++) {
+			released[i] = written[i] ? releaseIndexNode(inodes[i]) : new int[0];
+		}
+		dataMap.freeBlocks(concat(released));
+		inodeMap.freeBlocks(inodes);
+	}
+
+	/**
+	 * Runs the given action for every node of the given subtree, in parallel in the common fork/join pool.
+	 * The caller must hold the tree lock exclusively, so the actions of all nodes belong to the same operation.
+	 * After the first failure, the remaining actions are skipped.
+	 * @param subtree the subtree.
+	 * @param action the action to run for each index in the subtree.
+	 * @throws IOException if an action fails with an i/o error.
+	 * @throws FileSystemException if an action fails with a file system error.
+	 */
+	private void forEachNode(Subtree subtree, NodeAction action)
+			throws IOException, FileSystemException {
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		ForkJoinPool.commonPool().invoke(new SubtreeTask(action, 0, subtree.nodes.length, failure));
+		blockMapper().invalidate();
+		Exception e = failure.get();
+		if (e instanceof IOException ioException) {
+			throw ioException;
+		}
+		if (e instanceof FileSystemException fileSystemException) {
+			throw fileSystemException;
+		}
+	}
+
+	/**
+	 * Joins the given arrays into a single array.
+	 * @param arrays the arrays to join.
+	 * @return the joined array.
+	 */
+	private static int[] concat(int[][] arrays) {
+		int length = 0;
+		for (int[] array : arrays) {
+			length += array.length;
+		}
+		int[] result = new int[length];
+		int position = 0;
+		for (int[] array : arrays) {
+			System.arraycopy(array, 0, result, position, array.length);
+			position += array.length;
+		}
+		return result;
+	}
+
+	/**
+	 * Gives the file its own copy of every shared data block in the given part of its block list, so the blocks can
+	 * be written in place. The content of a shared block is only copied if the block isn't completely overwritten by
+	 * the following write. The block list is changed in memory, the caller has to write the index node.
+	 * @param node the index node of the file.
+	 * @param from the index of the first entry in the block list.
+	 * @param to the index after the last entry in the block list.
+	 * @param offset the offset in the file of the first byte that will be written.
+	 * @param end the offset in the file after the last byte that will be written.
+	 * @return true if any block was replaced, false otherwise.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if there isn't enough free space for the copies.
+	 */
+	private boolean unshareBlocks(IndexNode node, int from, int to, long offset, long end)
+			throws IOException, FileSystemException {
+		if (referenceCounts == null || from >= to) {
+			return false;
+		}
+		int[] shared = new int[to - from];
+		int sharedCount = 0;
+		for (int index = from; index < to; index++) {
+			if (referenceCounts.isShared(blockMapper().get(node, index))) {
+				shared[sharedCount++] = index;
+			}
+		}
+		if (sharedCount == 0) {
+			return false;
+		}
+		int[] copies = allocateDataBlocks(sharedCount);
+		if (copies.length < sharedCount) {
+			throw new FileSystemException(
+					"There is not enough free space in the file system");
+		}
+		byte[] content = new byte[superBlock.getBlockSize()];
+		for (int i = 0; i < sharedCount; i++) {
+			int index = shared[i];
+			int block = blockMapper().get(node, index);
+			long blockStart = (long) (index - 1) * content.length;
+			if (blockStart < offset || blockStart + content.length > end) {
+				dataStorage.read(dataBlockPosition(block), content);
+				dataStorage.write(dataBlockPosition(copies[i]), content);
+			}
+			blockMapper().replace(node, index, copies[i]);
+			for (int unreferenced : releaseDataBlocks(new int[] {block})) {
+				freeDataBlock(unreferenced);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Deletes the contents of a data block in the container, setting them to the byte value of 0.
+	 * @param dataBlockNumber the number of the data block.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void wipeDataBlock(int dataBlockNumber)
+			throws IOException {
+		dataStorage.write(dataBlockPosition(dataBlockNumber), new byte[superBlock.getBlockSize()]);
+		freeDataBlock(dataBlockNumber);
+	}
+
+	/**
+	 * Validates the name of the file for a printFile() call.
+	 * @param fileName the name of the file.
+	 * @throws FileSystemException if the file does not exist or if it's a directory.
+	 */
+	private void validatePrint(String fileName)
+			throws FileSystemException {
+		if (!tree.fileExists(fileName)) {
+			throw new FileSystemException(
+					"The specified file does not exist");
+		}
+		if (tree.getChild(fileName).type == FileType.DIRECTORY) {
+			throw new FileSystemException(
+					"Directories cannot be printed");
+		}
+	}
+
+	/**
+	 * Writes the content of the data blocks, pointed to by the block list of the given index node, to the given
+	 * stream, followed by a new line. Contiguous blocks are read with a single container read and written to the
+	 * stream as they are, without building any strings. Only the bytes up to the size of the file are written.
+	 * @param inodeNumber the number of the index node.
+	 * @param out the stream to write the content to.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void printBlocks(int inodeNumber, OutputStream out)
+			throws IOException {
+		IndexNode node = new IndexNode();
+		readIndexNode(node, inodeNumber);
+		if (node.isCompressed()) {
+			byte[] chunk = new byte[chunkBytes()];
+			for (int i = 0; i < chunkCount(node.getSize()); i++) {
+				out.write(chunk, 0, readChunk(node, i, chunk));
+			}
+			out.write('\n');
+			return;
+		}
+		int[] blocks =
+				blockMapper().getAll(node, 1);
+		int blockSize = superBlock.getBlockSize();
+		byte[] buffer = new byte[batchBlocks() * blockSize];
+		long remaining = node.getSize();
+		for (int i = 0; i < blocks.length && remaining > 0; ) {
+			int length = runLength(blocks, i);
+			int runSize = (int) Math.min(remaining, (long) length * blockSize);
+			dataStorage.read(dataBlockPosition(blocks[i]), buffer, 0, runSize);
+			out.write(buffer, 0, runSize);
+			remaining -= runSize;
+			i += length;
+		}
+		out.write('\n');
+	}
+
+	/**
+	 * Validates the given file name for a writeToFile() call.
+	 * @param fileName the name of the file
+	 * @throws FileSystemException if the name points to an existing directory.
+	 */
+	private void validateWrite(String fileName)
+			throws FileSystemException {
+		if (tree.dirExists(fileName)) {
+			throw new FileSystemException(
+					"The given name points to a directory");
+		}
+	}
+
+	/**
+	 * Validates the file name, the offset and the length for a readAt() or writeAt() call.
+	 * @param fileName the name of the file.
+	 * @param offset the offset in the file.
+	 * @param length the amount of bytes to read/write.
+	 * @throws FileSystemException if the name points to an existing directory or if the offset or length is negative.
+	 */
+	private void validatePositional(String fileName, long offset, int length)
+			throws FileSystemException {
+		if (tree.dirExists(fileName)) {
+			throw new FileSystemException(
+					"The given name points to a directory");
+		}
+		if (offset < 0 || length < 0) {
+			throw new FileSystemException(
+					"The offset and the length cannot be negative");
+		}
+	}
+
+	/**
+	 * Calculates the needed amount of blocks for the specified amount of bytes.
+	 * @param amountOfBytes the amount of bytes.
+	 * @return the calculated amount of blocks.
+	 */
+	private int calculateNeededBlocks(int amountOfBytes) {
+		return calculateNeededBlocks((long) amountOfBytes);
+	}
+
+	/**
+	 * Calculates the needed amount of blocks for the specified amount of bytes.
+	 * @param amountOfBytes the amount of bytes.
+	 * @return the calculated amount of blocks.
+	 */
+	private int calculateNeededBlocks(long amountOfBytes) {
+		int blockSize = superBlock.getBlockSize();
+		return (int) ((amountOfBytes + blockSize - 1) / blockSize);
+	}
+
+	/**
+	 * Replaces the content of the file at the given index node number with the given bytes. The data blocks that
+	 * the file already has are overwritten in place, missing blocks are allocated and the blocks that are no longer
+	 * needed are freed. If the container deduplicates its blocks, the content is stored in new blocks instead, and
+	 * all old blocks are released.
+	 * @param bytes the new content of the file.
+	 * @param inodeNumber the number of the index node.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if the maximum file size is reached.
+	 */
+	private void replaceBlocks(byte[] bytes, int inodeNumber)
+			throws IOException, FileSystemException {
+		IndexNode node = new IndexNode();
+		readIndexNode(node, inodeNumber);
+		int neededBlocks = calculateNeededBlocks(bytes.length);
+		if (node.isCompressed()) {
+			if (neededBlocks > blockMapper().getCapacity() - 1) {
+				throw node.maxSizeException();
+			}
+			for (int block : releaseDataBlocks(withoutHoles(blockMapper().truncate(node, 1)))) {
+				freeDataBlock(block);
+			}
+			node.setSize(0);
+			writeIndexNode(node, inodeNumber);
+			writeCompressedAt(node, inodeNumber, 0, bytes);
+			return;
+		}
+		if (fingerprints != null) {
+			if (neededBlocks > blockMapper().getCapacity() - 1) {
+				throw node.maxSizeException();
+			}
+			int[] blocks = storeBlocks(bytes, neededBlocks);
+			int[] old = blockMapper().truncate(node, 1);
+			blockMapper().append(node, blocks);
+			node.setSize(bytes.length);
+			writeIndexNode(node, inodeNumber);
+			for (int block : releaseDataBlocks(old)) {
+				freeDataBlock(block);
+			}
+			return;
+		}
+		int presentBlocks = node.getAllocatedBlockCount() - 1;
+		unshareBlocks(node, 1, Math.min(neededBlocks, presentBlocks) + 1, 0,
+				(long) neededBlocks * superBlock.getBlockSize());
+		if (neededBlocks <= presentBlocks) {
+			for (int block : releaseDataBlocks(blockMapper().truncate(node, neededBlocks + 1))) {
+				freeDataBlock(block);
+			}
+			writeBlocks(blockMapper().getAll(node, 1), bytes);
+			node.setSize(bytes.length);
+			writeIndexNode(node, inodeNumber);
+			return;
+		}
+		int[] addedBlocks = allocateDataBlocksFor(node, neededBlocks - presentBlocks);
+		int[] blocks = new int[neededBlocks];
+		System.arraycopy(blockMapper().getAll(node, 1), 0, blocks, 0, presentBlocks);
+		System.arraycopy(addedBlocks, 0, blocks, presentBlocks, addedBlocks.length);
+		writeBlocks(blocks, bytes);
+		blockMapper().append(node, addedBlocks);
+		node.setSize(bytes.length);
+		writeIndexNode(node, inodeNumber);
+	}
+
+	/**
+	 * Writes the given bytes to the given data blocks, one container write per run of contiguous blocks. The part
+	 * of the last block that isn't covered by the bytes is filled with zeros.
+	 * @param blocks the data blocks to write to, in file order.
+	 * @param bytes the bytes to write.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void writeBlocks(int[] blocks, byte[] bytes)
+			throws IOException {
+		for (int i = 0; i < blocks.length; ) {
+			int length = runLength(blocks, i);
+			writeDataRun(blocks[i], length, bytes, i * superBlock.getBlockSize());
+			i += length;
+		}
+	}
+
+	/**
+	 * Appends the given bytes to the file at the given index node number.
+	 * @param bytes the bytes to append.
+	 * @param inodeNumber the number of the index node.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if the maximum file size is reached.
+	 */
+	private void appendBytesToBlocks(byte[] bytes, int inodeNumber)
+			throws IOException, FileSystemException {
+		IndexNode node = new IndexNode();
+		readIndexNode(node, inodeNumber);
+		writeBytesAt(node, inodeNumber, node.getSize(), bytes);
+	}
+
+	/**
+	 * Writes the given bytes to the file with the given index node, starting at the given offset. The blocks that
+	 * are missing up to the end of the written range are allocated, and the parts of them that aren't covered by
+	 * the bytes are filled with zeros. Shared blocks in the written range are replaced by copies first. The index node
+	 * is written only if the file grows or a shared block was replaced. Compressed files are written through
+	 * writeCompressedAt(), and files in a container that deduplicates its blocks through writeDeduplicatedAt().
+	 * @param node the index node of the file.
+	 * @param inodeNumber the number of the index node.
+	 * @param offset the offset in the file to write the first byte at.
+	 * @param bytes the bytes to write.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if the maximum file size is reached.
+	 */
+	private void writeBytesAt(IndexNode node, int inodeNumber, long offset, byte[] bytes)
+			throws IOException, FileSystemException {
+		if (bytes.length == 0) {
+			return;
+		}
+		if (node.isCompressed()) {
+			writeCompressedAt(node, inodeNumber, offset, bytes);
+			return;
+		}
+		if (fingerprints != null) {
+			writeDeduplicatedAt(node, inodeNumber, offset, bytes);
+			return;
+		}
+		long end = offset + bytes.length;
+		int blockSize = superBlock.getBlockSize();
+		int presentBlocks = node.getAllocatedBlockCount() - 1;
+		long neededBlocks = (end + blockSize - 1) / blockSize;
+		if (end > Integer.MAX_VALUE || neededBlocks - presentBlocks > blockMapper().getFreeSlots(node)) {
+			throw node.maxSizeException();
+		}
+		boolean replaced = unshareBlocks(
+				node, (int) (offset / blockSize) + 1, (int) Math.min(neededBlocks, presentBlocks) + 1, offset, end);
+		if (neededBlocks > presentBlocks) {
+			int[] addedBlocks = allocateDataBlocksFor(node, (int) neededBlocks - presentBlocks);
+			zeroUncoveredBlocks(addedBlocks, (long) presentBlocks * blockSize, offset, end);
+			blockMapper().append(node, addedBlocks);
+		}
+		transferBytesAt(node, offset, bytes, true);
+		if (end > node.getSize()) {
+			node.setSize((int) end);
+			writeIndexNode(node, inodeNumber);
+		} else if (replaced) {
+			writeIndexNode(node, inodeNumber);
+		}
 	}
 
 	/**
-	 * Deletes the existing content in the container file.
+	 * Fills the newly allocated data blocks that won't be completely covered by a write with zeros.
+	 * @param blocks the newly allocated data blocks, in file order.
+	 * @param firstBlockStart the offset in the file where the first of the blocks starts.
+	 * @param offset the offset in the file of the first written byte.
+	 * @param end the offset in the file after the last written byte.
 	 * @throws IOException if an i/o error occurs.
 	 */
-	private void deleteExistingFileContent()
+	private void zeroUncoveredBlocks(int[] blocks, long firstBlockStart, long offset, long end)
 			throws IOException {
-		new PrintWriter(systemPath).close();
+		byte[] empty = new byte[0];
+		int blockSize = superBlock.getBlockSize();
+		int maxLength = batchBlocks();
+		for (int i = 0; i < blocks.length; ) {
+			long blockStart = firstBlockStart + (long) i * blockSize;
+			if (blockStart >= offset && blockStart + blockSize <= end) {
+				i++;
+				continue;
+			}
+			int length = 1;
+			while (i + length < blocks.length
+					&& length < maxLength
+					&& blocks[i + length] == blocks[i] + length
+					&& blockStart + (long) (length + 1) * blockSize <= offset) {
+				length++;
+			}
+			writeDataRun(blocks[i], length, empty, 0);
+			i += length;
+		}
 	}
 
 	/**
-	 * Initializes the bitmap blocks of the file system and writee them to the container file.
+	 * Reads or writes the given range of the file with the given index node, with a single container read/write
+	 * for each run of contiguous data blocks. The range must be covered by the blocks of the file.
+	 * @param node the index node of the file.
+	 * @param offset the offset in the file of the first byte of the range.
+	 * @param bytes the array to read the range into, or the bytes to write to the range.
+	 * @param write true to write the bytes, false to read them.
 	 * @throws IOException if an i/o error occurs.
 	 */
-	private void initializeBitmaps()
+	private void transferBytesAt(IndexNode node, long offset, byte[] bytes, boolean write)
 			throws IOException {
-		byte[] bitmapBytes = new byte[512];
-		ArrayManipulator.fillArray(bitmapBytes, BYTE_MAX);
-		Bitmap bitmap = new Bitmap(bitmapBytes);
-
-		containerFile.seek(
-				superBlock.getInodeBitmapOffset() * 512L);
-		long bitmapBlockCount =
-				superBlock.getInodeBlockOffset() - superBlock.getInodeBitmapOffset();
-		for (int i = 0; i < bitmapBlockCount; i++) {
-			bitmap.write(containerFile);
+		int blockSize = superBlock.getBlockSize();
+		int done = 0;
+		while (done < bytes.length) {
+			long position = offset + done;
+			int index = (int) (position / blockSize) + 1;
+			int offsetInBlock = (int) (position % blockSize);
+			int firstBlock = blockMapper().get(node, index);
+			int length = Math.min(blockSize - offsetInBlock, bytes.length - done);
+			int runBlocks = 1;
+			while (done + length < bytes.length
+					&& blockMapper().get(node, index + runBlocks) == firstBlock + runBlocks) {
+				length += Math.min(blockSize, bytes.length - done - length);
+				runBlocks++;
+			}
+			long containerPosition = dataBlockPosition(firstBlock) + offsetInBlock;
+			if (write) {
+				dataStorage.write(containerPosition, bytes, done, length);
+			} else {
+				dataStorage.read(containerPosition, bytes, done, length);
+			}
+			done += length;
 		}
 	}
 
 	/**
-	 * Initializes the root index node and writes it to the container file.
-	 * @throws IOException if an i/o error occurs.
-	 * @throws FileSystemException if a file system error occurs.
+	 * Reads the given range of a compressed file into the given array, decompressing the chunks that contain it.
+	 * @param node the index node of the file.
+	 * @param offset the offset in the file of the first byte of the range.
+	 * @param bytes the array to read the range into. The range must end before the end of the file.
+	 * @throws IOException if an i/o error occurs, or if a chunk is corrupted.
 	 */
-	private void initializeRootNode()
-			throws IOException, FileSystemException {
-		rootNode = new IndexNode();
-		rootNode.setName("root");
-		rootNode.addDirectBlock(allocateInodeBlock());
-		containerFile.seek(
-				superBlock.getInodeBlockOffset() * 512L);
-		rootNode.write(containerFile);
+	private void readCompressedAt(IndexNode node, long offset, byte[] bytes)
+			throws IOException {
+		int chunkBytes = chunkBytes();
+		byte[] chunk = new byte[chunkBytes];
+		int done = 0;
+		while (done < bytes.length) {
+			long position = offset + done;
+			int index = (int) (position / chunkBytes);
+			int offsetInChunk = (int) (position % chunkBytes);
+			int length = Math.min(readChunk(node, index, chunk) - offsetInChunk, bytes.length - done);
+			System.arraycopy(chunk, offsetInChunk, bytes, done, length);
+			done += length;
+		}
 	}
 
 	/**
-	 * Changes the current directory to the parent directory,
-	 * if it exists (if it does not exist, the current dir is root).
+	 * Writes the given bytes to a compressed file, starting at the given offset. Every chunk that the bytes touch, and
+	 * every chunk of the gap if the offset is past the end of the file, is decompressed, changed, compressed again and
+	 * written to newly allocated blocks, after which its old blocks are released. The index node is always written,
+	 * even if the write fails halfway, so the block list and the size never go out of step.
+	 * @param node the index node of the file.
+	 * @param inodeNumber the number of the index node.
+	 * @param offset the offset in the file to write the first byte at.
+	 * @param bytes the bytes to write.
+	 * @throws IOException if an i/o error occurs, or if a chunk is corrupted.
+	 * @throws FileSystemException if the maximum file size is reached, or if there isn't enough free space.
 	 */
-	private void goToParentDir() {
-		if (tree.getCurrentDir().parent == null) {
+	private void writeCompressedAt(IndexNode node, int inodeNumber, long offset, byte[] bytes)
+			throws IOException, FileSystemException {
+		if (bytes.length == 0) {
 			return;
 		}
-		tree.goToParent();
+		long end = offset + bytes.length;
+		long size = node.getSize();
+		long newSize = Math.max(size, end);
+		int presentBlocks = node.getAllocatedBlockCount() - 1;
+		if (newSize > Integer.MAX_VALUE
+				|| calculateNeededBlocks(newSize) - presentBlocks > blockMapper().getFreeSlots(node)) {
+			throw node.maxSizeException();
+		}
+		int chunkBlocks = chunkBlocks();
+		int chunkBytes = chunkBytes();
+		int oldChunks = chunkCount(size);
+		int lastChunk = (int) ((end - 1) / chunkBytes);
+		try {
+			for (int chunk = (int) (Math.min(offset, size) / chunkBytes); chunk <= lastChunk; chunk++) {
+				long chunkStart = (long) chunk * chunkBytes;
+				byte[] data = new byte[(int) Math.min(chunkBytes, newSize - chunkStart)];
+				if (chunk < oldChunks) {
+					readChunk(node, chunk, data);
+				}
+				long from = Math.max(offset, chunkStart);
+				long to = Math.min(end, chunkStart + data.length);
+				if (from < to) {
+					System.arraycopy(bytes, (int) (from - offset), data, (int) (from - chunkStart), (int) (to - from));
+				}
+				int[] entries = writeChunk(data);
+				int first = 1 + chunk * chunkBlocks;
+				int[] old;
+				if (chunk < oldChunks - 1) {
+					old = new int[chunkBlocks];
+					for (int i = 0; i < chunkBlocks; i++) {
+						old[i] = blockMapper().get(node, first + i);
+						blockMapper().replace(node, first + i, entries[i]);
+					}
+				} else {
+					old = chunk == oldChunks - 1 ? blockMapper().truncate(node, first) : new int[0];
+					blockMapper().append(node, entries);
+					node.setSize((int) Math.max(node.getSize(), chunkStart + data.length));
+				}
+				for (int block : releaseDataBlocks(withoutHoles(old))) {
+					freeDataBlock(block);
+				}
+			}
+		} finally {
+			writeIndexNode(node, inodeNumber);
+		}
 	}
 
 	/**
-	 * Validates the source and destination for a copyFile() call.
-	 * @param src the name of the source file.
-	 * @param dest the name of the destination file.
-	 * @throws FileSystemException if the source file doesn't exist or is a directory, or if the destination file
-	 * already exists or is a directory.
+	 * Reads a chunk of a compressed file, decompressing it if it is stored compressed.
+	 * @param node the index node of the file.
+	 * @param chunk the index of the chunk.
+	 * @param destination the array to read the chunk into, at least as long as the chunk.
+	 * @return the length of the chunk, chunkBytes() for all but the last chunk of the file.
+	 * @throws IOException if an i/o error occurs, or if the chunk is corrupted.
 	 */
-	private void validateCopy(String src, String dest)
-			throws FileSystemException {
-		if (!tree.fileExists(src)) {
-			throw new FileSystemException(
-					"The specified file to copy does not exist or is a directory");
+	private int readChunk(IndexNode node, int chunk, byte[] destination)
+			throws IOException {
+		int blockSize = superBlock.getBlockSize();
+		int length = (int) Math.min(chunkBytes(), node.getSize() - (long) chunk * chunkBytes());
+		int[] blocks = new int[calculateNeededBlocks(length)];
+		int first = 1 + chunk * chunkBlocks();
+		int storedBlocks = 0;
+		while (storedBlocks < blocks.length) {
+			blocks[storedBlocks] = blockMapper().get(node, first + storedBlocks);
+			if (blocks[storedBlocks] == -1) {
+				break;
+			}
+			storedBlocks++;
 		}
-		if (tree.fileExists(dest) || tree.dirExists(dest)) {
-			throw new FileSystemException(
-					"A file/directory with the same name as the destination file already exists");
+		if (storedBlocks == blocks.length) {
+			readStoredBlocks(blocks, destination, length);
+			return length;
+		}
+		byte[] compressed = new byte[storedBlocks * blockSize];
+		readStoredBlocks(Arrays.copyOf(blocks, storedBlocks), compressed, compressed.length);
+		int compressedLength = storedBlocks == 0 ? -1 : ByteBuffer.wrap(compressed).getInt();
+		if (compressedLength < 0 || compressedLength > compressed.length - Integer.BYTES
+				|| Lz4Codec.decompress(compressed, Integer.BYTES, compressedLength, destination, 0, length) != length) {
+			throw new IOException("Chunk " + chunk + " of a compressed file is corrupted");
 		}
+		return length;
 	}
 
 	/**
-	 * Copies the blocks from the source index node to the destination index node.
-	 * @param sourceNumber the number of the source index node.
-	 * @param destNumber the number of the destination index node.
+	 * Reads the given data blocks into the given array, with a single container read per run of contiguous blocks.
+	 * @param blocks the data blocks, in file order.
+	 * @param destination the array to read the blocks into.
+	 * @param length the amount of bytes to read, at most the size of the blocks.
 	 * @throws IOException if an i/o error occurs.
-	 * @throws FileSystemException if the maximum file size is reached.
 	 */
-	private void copyFileBlocks(int sourceNumber, int destNumber)
-			throws IOException, FileSystemException {
-		IndexNode sourceNode = new IndexNode();
-		IndexNode destinationNode = new IndexNode();
-		readIndexNode(sourceNode, sourceNumber);
-		readIndexNode(destinationNode, destNumber);
-
-		copyDataBlocks(sourceNode, destinationNode);
-		writeIndexNode(destinationNode, destNumber);
+	private void readStoredBlocks(int[] blocks, byte[] destination, int length)
+			throws IOException {
+		int blockSize = superBlock.getBlockSize();
+		for (int i = 0; i < blocks.length; ) {
+			int runLength = runLength(blocks, i);
+			int offset = i * blockSize;
+			dataStorage.read(dataBlockPosition(blocks[i]), destination, offset,
+					Math.min(runLength * blockSize, length - offset));
+			i += runLength;
+		}
 	}
 
 	/**
-	 * Copies the direct blocks from one index node to another.
-	 * @param from the index node to copy the blocks from.
-	 * @param to the index node to copy the blocks to.
+	 * Compresses the given chunk of a file and writes it to newly allocated data blocks. The chunk is stored as it is
+	 * if compressing it doesn't save at least one block.
+	 * @param data the content of the chunk, at most chunkBytes() long.
+	 * @return the entries of the chunk in the block list, -1 for the entries that the chunk doesn't use.
 	 * @throws IOException if an i/o error occurs.
-	 * @throws FileSystemException if the maximum file size is reached.
+	 * @throws FileSystemException if there isn't enough free space.
 	 */
-	private void copyDataBlocks(IndexNode from, IndexNode to)
+	private int[] writeChunk(byte[] data)
 			throws IOException, FileSystemException {
-		for (int i = 1; i < from.getAllocatedBlockCount(); i++) {
-			readDataBlock(
-					currentDataBlock,
-					from.getDirectBlocks()[i]);
-			int allocatedBlock = allocateDataBlock();
-			if (allocatedBlock != -1) {
-				to.addDirectBlock(allocatedBlock);
-				writeDataBlock(currentDataBlock, allocatedBlock);
+		int blockSize = superBlock.getBlockSize();
+		int[] entries = new int[calculateNeededBlocks(data.length)];
+		byte[] stored = data;
+		int storedBlocks = entries.length;
+		if (entries.length > 1) {
+			byte[] compressed = new byte[(entries.length - 1) * blockSize];
+			int compressedLength = Lz4Codec.compress(data, 0, data.length,
+					compressed, Integer.BYTES, compressed.length - Integer.BYTES);
+			if (compressedLength >= 0) {
+				ByteBuffer.wrap(compressed).putInt(compressedLength);
+				stored = compressed;
+				storedBlocks = calculateNeededBlocks(Integer.BYTES + compressedLength);
 			}
 		}
+		int[] blocks = storeBlocks(stored, storedBlocks);
+		Arrays.fill(entries, -1);
+		System.arraycopy(blocks, 0, entries, 0, storedBlocks);
+		return entries;
 	}
 
 	/**
-	 * Deletes the contents of a data block in the container, setting them to the byte value of 0.
-	 * @param dataBlockNumber the number of the data block.
+	 * Writes the given bytes to a file in a container that deduplicates its blocks, starting at the given offset.
+	 * The blocks that the bytes touch, and the blocks of the gap if the offset is past the end of the file, are
+	 * stored again through storeBlocks(), a batch at a time, and their old blocks are released. Blocks are never
+	 * written in place, so a block in the fingerprint index keeps its content for as long as it is referenced. The
+	 * index node is always written, even if the write fails halfway.
+	 * @param node the index node of the file.
+	 * @param inodeNumber the number of the index node.
+	 * @param offset the offset in the file to write the first byte at.
+	 * @param bytes the bytes to write.
 	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if the maximum file size is reached, or if there isn't enough free space.
 	 */
-	private void wipeDataBlock(int dataBlockNumber)
-			throws IOException {
-		readDataBlock(
-				currentDataBlock,
-				dataBlockNumber);
-		ArrayManipulator.fillArray(
-				currentDataBlock.getBytes(), (byte) 0);
-		freeDataBlock(dataBlockNumber);
-		writeDataBlock(
-				currentDataBlock,
-				dataBlockNumber);
+	private void writeDeduplicatedAt(IndexNode node, int inodeNumber, long offset, byte[] bytes)
+			throws IOException, FileSystemException {
+		long end = offset + bytes.length;
+		int blockSize = superBlock.getBlockSize();
+		int presentBlocks = node.getAllocatedBlockCount() - 1;
+		if (end > Integer.MAX_VALUE || calculateNeededBlocks(end) - presentBlocks > blockMapper().getFreeSlots(node)) {
+			throw node.maxSizeException();
+		}
+		int firstBlock = (int) Math.min(offset / blockSize, presentBlocks);
+		int lastBlock = (int) ((end - 1) / blockSize);
+		try {
+			for (int from = firstBlock; from <= lastBlock; from += batchBlocks()) {
+				int count = Math.min(batchBlocks(), lastBlock + 1 - from);
+				long contentStart = (long) from * blockSize;
+				byte[] content = new byte[count * blockSize];
+				for (int i = 0; i < count && from + i < presentBlocks; i++) {
+					long blockStart = contentStart + (long) i * blockSize;
+					if (blockStart < offset || blockStart + blockSize > end) {
+						dataStorage.read(dataBlockPosition(blockMapper().get(node, from + i + 1)), content, i * blockSize,
+								blockSize);
+					}
+				}
+				long copyFrom = Math.max(offset, contentStart);
+				long copyTo = Math.min(end, contentStart + content.length);
+				if (copyFrom < copyTo) {
+					System.arraycopy(bytes, (int) (copyFrom - offset), content, (int) (copyFrom - contentStart),
+							(int) (copyTo - copyFrom));
+				}
+				int[] blocks = storeBlocks(content, count);
+				int[] old = new int[Math.max(Math.min(count, presentBlocks - from), 0)];
+				for (int i = 0; i < old.length; i++) {
+					old[i] = blockMapper().get(node, from + i + 1);
+					blockMapper().replace(node, from + i + 1, blocks[i]);
+				}
+				blockMapper().append(node, Arrays.copyOfRange(blocks, old.length, count));
+				node.setSize((int) Math.max(node.getSize(), copyTo));
+				for (int block : releaseDataBlocks(old)) {
+					freeDataBlock(block);
+				}
+			}
+		} finally {
+			writeIndexNode(node, inodeNumber);
+		}
 	}
 
 	/**
-	 * Validates the name of the file for a printFile() call.
-	 * @param fileName the name of the file.
-	 * @throws FileSystemException if the file does not exist or if it's a directory.
+	 * Imports the content of the given host file to an empty file in a container that deduplicates its blocks, a
+	 * batch of blocks at a time.
+	 * @param neededBlocksCount the amount of blocks needed to store the host file's bytes.
+	 * @param file the host file.
+	 * @param dest the index node of the file to import the bytes to.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if the maximum file size is reached, or if there isn't enough free space.
 	 */
-	private void validatePrint(String fileName)
-			throws FileSystemException {
-		if (!tree.fileExists(fileName)) {
-			throw new FileSystemException(
-					"The specified file does not exist");
+	private void importDeduplicatedBlocks(int neededBlocksCount, RandomAccessFile file, IndexNode dest)
+			throws IOException, FileSystemException {
+		if (neededBlocksCount > blockMapper().getFreeSlots(dest)) {
+			throw dest.maxSizeException();
 		}
-		if (tree.getChild(fileName).type == FileType.DIRECTORY) {
-			throw new FileSystemException(
-					"Directories cannot be printed");
+		byte[] buffer = new byte[batchBlocks() * superBlock.getBlockSize()];
+		for (long remaining = file.length(); remaining > 0; ) {
+			int length = (int) Math.min(buffer.length, remaining);
+			file.readFully(buffer, 0, length);
+			Arrays.fill(buffer, length, buffer.length, (byte) 0);
+			blockMapper().append(dest, storeBlocks(buffer, calculateNeededBlocks(length)));
+			remaining -= length;
 		}
 	}
 
 	/**
-	 * Prints the content of the data blocks, pointed to by the direct blocks of the given index node.
-	 * @param inodeNumber the number of the index node.
+	 * Writes the given bytes to data blocks for the given index node, through storeBlocks(). The blocks are not
+	 * added to the block list of the index node.
+	 * @param node the index node that the blocks will be added to.
+	 * @param bytes the bytes to write.
+	 * @param count the amount of blocks to write.
+	 * @return the numbers of the blocks, in the order of the bytes.
 	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if the blocks don't fit in the index node, or if there isn't enough free space.
 	 */
-	private void printBlocks(int inodeNumber)
-			throws IOException {
-		DataBlock buffer = new DataBlock();
-		StringAppender result = new StringAppender();
-		readIndexNode(currentNode, inodeNumber);
-		int[] blocks =
-				currentNode.getAllocatedDirectBlocks();
-		for (int block : blocks) {
-			readDataBlock(buffer, block);
-			appendValidChars(
-					result,
-					new String(buffer.getBytes()));
-			System.out.print(result);
-			result = new StringAppender();
+	private int[] storeBlocksFor(IndexNode node, byte[] bytes, int count)
+			throws IOException, FileSystemException {
+		if (count > blockMapper().getFreeSlots(node)) {
+			throw node.maxSizeException();
 		}
-		System.out.println();
+		return storeBlocks(bytes, count);
 	}
 
 	/**
-	 * Appends the characters whose value is different from the byte value for 0.
-	 * @param appender the appender to append the characters to.
-	 * @param chars the characters to append.
+	 * Writes the given bytes to data blocks that no file references yet, with a single container write per run of
+	 * contiguous blocks. If the container deduplicates its blocks, a block whose content is already stored in a
+	 * block of the fingerprint index, or in an earlier block of the same bytes, references that block instead of
+	 * being written, and the newly written blocks are added to the index.
+	 * @param bytes the bytes to write. The part of the last block that isn't covered by them is filled with zeros.
+	 * @param count the amount of blocks to write, which must all contain some of the bytes.
+	 * @return the numbers of the blocks, in the order of the bytes.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if there isn't enough free space.
 	 */
-	private void appendValidChars(StringAppender appender, String chars) {
-		for (int i = 0; i < chars.length(); i++) {
-			if (chars.charAt(i) != (char)(byte)0) {
-				appender.append(
-						String.valueOf(chars.charAt(i)));
+	private int[] storeBlocks(byte[] bytes, int count)
+			throws IOException, FileSystemException {
+		if (fingerprints == null) {
+			int[] blocks = allocateDataBlocks(count);
+			if (blocks.length < count) {
+				for (int block : blocks) {
+					freeDataBlock(block);
+				}
+				throw new FileSystemException(
+						"There is not enough free space in the file system");
+			}
+			writeBlocks(blocks, bytes);
+			return blocks;
+		}
+		int blockSize = superBlock.getBlockSize();
+		int[] blocks = new int[count];
+		long[] hashes = new long[count];
+		boolean[] written = new boolean[count];
+		HashMap<Long, Integer> firstWritten = new HashMap<>();
+		byte[] content = new byte[blockSize];
+		byte[] existing = new byte[blockSize];
+		int stored = 0;
+		int deduplicated = 0;
+		try {
+			for (int i = 0; i < count; i++) {
+				blockContent(bytes, i, content);
+				hashes[i] = BlockFingerprints.fingerprint(content, 0, blockSize);
+				blocks[i] = fingerprints.share(hashes[i]);
+				if (blocks[i] != -1) {
+					stored = i + 1;
+					dataStorage.read(dataBlockPosition(blocks[i]), existing);
+					if (Arrays.equals(content, existing)) {
+						deduplicated++;
+						continue;
+					}
+					stored = i;
+					for (int block : releaseDataBlocks(new int[] {blocks[i]})) {
+						freeDataBlock(block);
+					}
+				}
+				Integer earlier = firstWritten.get(hashes[i]);
+				if (earlier != null) {
+					blockContent(bytes, earlier, existing);
+					if (Arrays.equals(content, existing)
+							&& referenceCounts.addReferences(new int[] {blocks[earlier]})) {
+						blocks[i] = blocks[earlier];
+						stored = i + 1;
+						deduplicated++;
+						continue;
+					}
+				}
+				blocks[i] = allocateDataBlock();
+				if (blocks[i] == -1) {
+					throw new FileSystemException(
+							"There is not enough free space in the file system");
+				}
+				stored = i + 1;
+				written[i] = true;
+				firstWritten.putIfAbsent(hashes[i], i);
+			}
+			for (int i = 0; i < count; ) {
+				if (!written[i]) {
+					i++;
+					continue;
+				}
+				int length = 1;
+				while (i + length < count && length < batchBlocks() && written[i + length]
+						&& blocks[i + length] == blocks[i] + length) {
+					length++;
+				}
+				writeDataRun(blocks[i], length, bytes, i * blockSize);
+				i += length;
+			}
+		} catch (IOException | FileSystemException e) {
+			for (int block : releaseDataBlocks(Arrays.copyOf(blocks, stored))) {
+				freeDataBlock(block);
+			}
+			throw e;
+		}
+		for (int i = 0; i < count; i++) {
+			if (written[i]) {
+				fingerprints.add(hashes[i], blocks[i]);
 			}
 		}
+		metrics.recordDeduplicated(deduplicated);
+		return blocks;
 	}
 
 	/**
-	 * Validates the given file name for a writeToFile() call, deleting the content of the file if it already exists.
-	 * @param fileName the name of the file
-	 * @throws FileSystemException if the name points to an existing directory.
+	 * Copies the content of a single block of the given bytes to the given array, filling the part that isn't
+	 * covered by the bytes with zeros.
+	 * @param bytes the bytes.
+	 * @param index the index of the block in the bytes.
+	 * @param destination the array to copy the block to, as long as a block.
 	 */
-	private void validateWrite(String fileName)
-			throws FileSystemException {
-		if (tree.dirExists(fileName)) {
-			throw new FileSystemException(
-					"The given name points to a directory");
-		}
-		if (tree.fileExists(fileName)) {
-			deleteFile(fileName);
+	private static void blockContent(byte[] bytes, int index, byte[] destination) {
+		int from = index * destination.length;
+		int length = Math.min(destination.length, bytes.length - from);
+		System.arraycopy(bytes, from, destination, 0, length);
+		Arrays.fill(destination, length, destination.length, (byte) 0);
+	}
+
+	/**
+	 * Imports the content of the given host file to an empty compressed file, a chunk at a time.
+	 * @param file the host file.
+	 * @param node the index node of the compressed file.
+	 * @param inodeNumber the number of the index node.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if the maximum file size is reached, or if there isn't enough free space.
+	 */
+	private void importChunks(RandomAccessFile file, IndexNode node, int inodeNumber)
+			throws IOException, FileSystemException {
+		long length = file.length();
+		byte[] chunk = new byte[chunkBytes()];
+		for (long position = 0; position < length; position += chunk.length) {
+			int chunkLength = (int) Math.min(chunk.length, length - position);
+			file.readFully(chunk, 0, chunkLength);
+			writeCompressedAt(node, inodeNumber, position,
+					chunkLength == chunk.length ? chunk : Arrays.copyOf(chunk, chunkLength));
 		}
 	}
 
 	/**
-	 * Calculates the needed amount of blocks for the specified amount of bytes.
-	 * @param amountOfBytes the amount of bytes.
-	 * @return the calculated amount of blocks.
+	 * Returns the data blocks of the given file. The unused entries of the chunks of a compressed file are left out.
+	 * @param node the index node of the file.
+	 * @return the numbers of the data blocks.
+	 * @throws IOException if an i/o error occurs while reading an indirect block.
 	 */
-	private int calculateNeededBlocks(int amountOfBytes) {
-		return (int) Math.ceil(amountOfBytes / 512f);
+	private int[] dataBlocks(IndexNode node)
+			throws IOException {
+		int[] entries = blockMapper().getAll(node, 1);
+		return node.isCompressed() ? withoutHoles(entries) : entries;
 	}
 
 	/**
-	 * Calculates the needed amount of blocks for the specified amount of bytes.
-	 * @param amountOfBytes the amount of bytes.
-	 * @return the calculated amount of blocks.
+	 * Removes the unused entries, -1, from the given entries of a block list.
+	 * @param entries the entries.
+	 * @return the entries that point to data blocks, in the same order.
 	 */
-	private int calculateNeededBlocks(long amountOfBytes) {
-		return (int) Math.ceil(amountOfBytes / 512f);
+	private static int[] withoutHoles(int[] entries) {
+		return Arrays.stream(entries).filter(entry -> entry != -1).toArray();
 	}
 
 	/**
-	 * Writes the given bytes to the file at the given index node number.
-	 * @param bytes the bytes to write.
-	 * @param inodeNumber the number of the index node.
-	 * @param neededBlocksCount the amount of needed blocks to write the bytes to.
-	 * @throws IOException if an i/o error occurs.
-	 * @throws FileSystemException if the maximum file size is reached.
+	 * Returns the amount of blocks that a chunk of a compressed file takes in the block list.
+	 * @return the amount of blocks in COMPRESSION_CHUNK_BYTES, at least MIN_CHUNK_BLOCKS.
 	 */
-	private void writeBytesToBlocks(byte[] bytes, int inodeNumber, int neededBlocksCount)
-			throws IOException, FileSystemException {
-		byte[] buffer;
-		int allocatedBlock;
-		for (int i = 0; i < neededBlocksCount; i++) {
-			int start = i * 512;
-			int end = 512;
-			if (i == neededBlocksCount - 1) {
-				end = bytes.length;
-			}
-			buffer = ArrayManipulator.subArray(bytes, start, end);
-			allocatedBlock = allocateDataBlock();
-			if (allocatedBlock != -1) {
-				addDirectBlock(inodeNumber, allocatedBlock);
-				currentDataBlock = new DataBlock(buffer);
-				writeDataBlock(currentDataBlock, allocatedBlock);
-			}
-		}
+	private int chunkBlocks() {
+		return Math.max(COMPRESSION_CHUNK_BYTES / superBlock.getBlockSize(), MIN_CHUNK_BLOCKS);
 	}
 
 	/**
-	 * Appends the given bytes to the file at the given index node number.
-	 * @param bytes the bytes to append.
-	 * @param inodeNumber the number of the index node.
-	 * @throws IOException if an i/o error occurs.
-	 * @throws FileSystemException if the maximum file size is reached.
+	 * Returns the amount of file data in a chunk of a compressed file.
+	 * @return the size of a chunk in bytes.
 	 */
-	private void appendBytesToBlocks(byte[] bytes, int inodeNumber)
-			throws IOException, FileSystemException {
-		readIndexNode(currentNode, inodeNumber);
-		readDataBlock(
-				currentDataBlock,
-				currentNode.getLastAllocatedBlock());
-		int lastBlockFreeBytes =
-				512 - ArrayManipulator.getElementCount(currentDataBlock.getBytes());
-		int neededBlocks =
-				calculateBlocksAppend(bytes, lastBlockFreeBytes);
-		if (lastBlockFreeBytes != 0) {
-			currentDataBlock.appendBytes(
-					ArrayManipulator.subArray(bytes, 0, lastBlockFreeBytes));
-			writeDataBlock(
-					currentDataBlock,
-					currentNode.getLastAllocatedBlock());
-			bytes = ArrayManipulator.subArray(bytes, lastBlockFreeBytes, bytes.length);
-		}
-		writeBytesToBlocks(bytes, inodeNumber, neededBlocks);
-	}
-
-	/**
-	 * Calculates the amount of needed blocks for the append operation.
-	 * @param bytes the bytes to calculate the needed blocks for.
-	 * @param lastBlockFreeBytes the amount of free bytes in the last block of the file where bytes are written.
-	 * @return the calculated amount of blocks.
+	private int chunkBytes() {
+		return chunkBlocks() * superBlock.getBlockSize();
+	}
+
+	/**
+	 * Returns the amount of chunks in a compressed file of the given size.
+	 * @param size the size of the file.
+	 * @return the amount of chunks.
 	 */
-	private int calculateBlocksAppend(byte[] bytes, int lastBlockFreeBytes) {
-		int bytesLeft = bytes.length;
-		bytesLeft -= lastBlockFreeBytes;
-		return calculateNeededBlocks(bytesLeft);
+	private int chunkCount(long size) {
+		return (int) ((size + chunkBytes() - 1) / chunkBytes());
 	}
 
 	/**
@@ -878,23 +2770,33 @@ public class FileSystem {
 	/**
 	 * Imports the blocks from the external source file to the destination file.
 	 * @param src the path to the source file in the external file system.
-	 * @param dest the name of the destination file.
+	 * @param inodeNumber the number of the index node of the destination file.
 	 * @throws IOException if an i/o error occurs.
 	 * @throws FileSystemException if the maximum file size is reached.
 	 */
-	private void importBlocks(String src, String dest)
+	private void importBlocks(String src, int inodeNumber)
 			throws IOException, FileSystemException {
 		try (RandomAccessFile srcFile = new RandomAccessFile(src, "r")) {
 			long len = srcFile.length();
 			int neededBlocks = calculateNeededBlocks(len);
 			IndexNode destNode = new IndexNode();
-			readIndexNode(
-					destNode,
-					tree.getChild(dest).inodeNumber);
-			importBlocksFromFile(neededBlocks, srcFile, destNode);
-			writeIndexNode(
-					destNode,
-					tree.getChild(dest).inodeNumber);
+			readIndexNode(destNode, inodeNumber);
+			if (len > Integer.MAX_VALUE) {
+				throw destNode.maxSizeException();
+			}
+			if (destNode.isCompressed()) {
+				importChunks(srcFile, destNode, inodeNumber);
+				metrics.recordImport(len);
+				return;
+			}
+			if (fingerprints != null) {
+				importDeduplicatedBlocks(neededBlocks, srcFile, destNode);
+			} else {
+				importBlocksFromFile(neededBlocks, srcFile, destNode);
+			}
+			destNode.setSize((int) len);
+			writeIndexNode(destNode, inodeNumber);
+			metrics.recordImport(len);
 		}
 	}
 
@@ -909,20 +2811,119 @@ public class FileSystem {
 	 */
 	private void importBlocksFromFile(int neededBlocksCount, RandomAccessFile file, IndexNode dest)
 			throws IOException, FileSystemException {
-		byte[] buffer = new byte[512];
-		for (int i = 0; i < neededBlocksCount; i++) {
-			if (i == neededBlocksCount - 1) {
-				buffer = new byte[512];
-				file.read(buffer, 0, (int)(file.length() - (i * 512)));
-			} else {
-				file.read(buffer, 0, 512);
+		int[] blocks = allocateDataBlocksFor(dest, neededBlocksCount);
+		FileChannel source = file.getChannel();
+		long remaining = file.length();
+		for (int i = 0; i < blocks.length; ) {
+			int length = runLength(blocks, i, transferBlocks());
+			long runSize = (long) length * superBlock.getBlockSize();
+			long toTransfer = Math.min(remaining, runSize);
+			long position = dataBlockPosition(blocks[i]);
+			dataStorage.transferFrom(source, position, toTransfer);
+			if (toTransfer < runSize) {
+				dataStorage.write(position + toTransfer, new byte[(int) (runSize - toTransfer)]);
+			}
+			remaining -= toTransfer;
+			i += length;
+		}
+		blockMapper().append(dest, blocks);
+	}
+
+	/**
+	 * Writes the index nodes and the data of an imported host tree, in the order of the tree. The small files are
+	 * read by the given readers, up to IMPORT_READ_AHEAD_FILES files and IMPORT_READ_AHEAD_BYTES bytes ahead of the
+	 * file that is being written, and the data of files that get neighbouring blocks is written together. The tree
+	 * lock is shared while each file is written and released between the files, so journal commits and operations
+	 * that need the tree lock exclusively aren't held up by the whole import. The caller must not hold the tree lock.
+	 * @param hostTree the host tree.
+	 * @param name the name of the top directory.
+	 * @param parent the number of the index node of the directory that the tree is imported to.
+	 * @param inodes the numbers of the index nodes of the imported files and directories, in the order of the tree.
+	 * @param written the array in which each index node that is written is marked.
+	 * @param readers the threads that read the host files.
+	 * @throws IOException if an i/o error occurs.
+	 * @throws FileSystemException if a directory has too many children, if a file is too large, or if there isn't
+	 * enough free space.
+	 */
+	private void writeHostTree(HostTree hostTree, String name, int parent, int[] inodes, boolean[] written,
+			ExecutorService readers)
+			throws IOException, FileSystemException {
+		ArrayDeque<Future<byte[]>> readAhead = new ArrayDeque<>();
+		long readAheadBytes = 0;
+		int next = 0;
+		SequentialWriter writer = new SequentialWriter();
+		for (int i = 0; i < inodes.length; i++) {
+			while (next < inodes.length && readAhead.size() < IMPORT_READ_AHEAD_FILES
+					&& readAheadBytes < IMPORT_READ_AHEAD_BYTES) {
+				if (hostTree.isBuffered(next)) {
+					Path path = hostTree.paths[next];
+					readAhead.add(readers.submit(() -> Files.readAllBytes(path)));
+					readAheadBytes += hostTree.sizes[next];
+				}
+				next++;
+			}
+			byte[] bytes = null;
+			if (hostTree.isBuffered(i)) {
+				bytes = awaitRead(readAhead.poll());
+				readAheadBytes -= hostTree.sizes[i];
+			}
+			Lock lock = lockTree(false);
+			try {
+				IndexNode node = new IndexNode();
+				node.setName(i == 0 ? name : hostTree.names[i]);
+				node.setType(hostTree.directories[i] ? FileType.DIRECTORY : FileType.FILE);
+				node.setCompressed(!hostTree.directories[i] && options.isCompressed());
+				node.addDirectBlock(i == 0 ? parent : inodes[hostTree.parents[i]]);
+				if (hostTree.directories[i]) {
+					int first = hostTree.firstChildren[i];
+					blockMapper().append(node, Arrays.copyOfRange(inodes, first, first + hostTree.childCounts[i]));
+					writeIndexNode(node, inodes[i]);
+				} else if (bytes != null) {
+					if (node.isCompressed()) {
+						writeIndexNode(node, inodes[i]);
+						writeCompressedAt(node, inodes[i], 0, bytes);
+					} else if (fingerprints != null) {
+						blockMapper().append(node, storeBlocksFor(node, bytes, calculateNeededBlocks(bytes.length)));
+						node.setSize(bytes.length);
+						writeIndexNode(node, inodes[i]);
+					} else {
+						int[] blocks = allocateDataBlocksFor(node, calculateNeededBlocks(bytes.length));
+						writer.write(blocks, bytes);
+						blockMapper().append(node, blocks);
+						node.setSize(bytes.length);
+						writeIndexNode(node, inodes[i]);
+					}
+					metrics.recordImport(bytes.length);
+				} else {
+					writeIndexNode(node, inodes[i]);
+					importBlocks(hostTree.paths[i].toString(), inodes[i]);
+				}
+				written[i] = true;
+			} finally {
+				lock.unlock();
 			}
-			int allocatedBlock = allocateDataBlock();
-			if (allocatedBlock != -1) {
-				dest.addDirectBlock(allocatedBlock);
-				DataBlock newBlock = new DataBlock(buffer);
-				writeDataBlock(newBlock, allocatedBlock);
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Waits until the given read of a host file is finished.
+	 * @param read the read.
+	 * @return the content of the file.
+	 * @throws IOException if the read failed, or if the calling thread is interrupted while it waits.
+	 */
+	private static byte[] awaitRead(Future<byte[]> read)
+			throws IOException {
+		try {
+			return read.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException cause) {
+				throw cause;
 			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading a host file");
 		}
 	}
 
@@ -946,24 +2947,253 @@ public class FileSystem {
 
 	/**
 	 * Exports the blocks from the given internal file to the external file, pointed to by the given path.
-	 * @param from the file to copy the blocks from.
+	 * @param inodeNumber the number of the index node of the file to copy the blocks from.
 	 * @param to the path to the external file to copy the blocks to.
 	 * @throws IOException if an i/o error occurs.
 	 */
-	private void exportBlocks(String from, String to)
+	private void exportBlocks(int inodeNumber, String to)
 			throws IOException {
 		try (RandomAccessFile ext = new RandomAccessFile(to, "rw")) {
-			int inodeNumber = tree.getChild(from).inodeNumber;
-			readIndexNode(currentNode, inodeNumber);
-			for (int i = 1; i < currentNode.getAllocatedBlockCount(); i++) {
-				readDataBlock(currentDataBlock, currentNode.getDirectBlocks()[i]);
-				if (i == currentNode.getAllocatedBlockCount() - 1) {
-					ext.write(ArrayManipulator.subArray(
-							currentDataBlock.getBytes(),
-							0,
-							ArrayManipulator.getElementCount(currentDataBlock.getBytes())));
-				} else {
-					ext.write(currentDataBlock.getBytes());
+			IndexNode node = new IndexNode();
+			readIndexNode(node, inodeNumber);
+			if (node.isCompressed()) {
+				byte[] chunk = new byte[chunkBytes()];
+				for (int i = 0; i < chunkCount(node.getSize()); i++) {
+					ext.write(chunk, 0, readChunk(node, i, chunk));
+				}
+				metrics.recordExport(node.getSize());
+				return;
+			}
+			int[] blocks = blockMapper().getAll(node, 1);
+			FileChannel target = ext.getChannel();
+			long remaining = node.getSize();
+			for (int i = 0; i < blocks.length && remaining > 0; ) {
+				int length = runLength(blocks, i, transferBlocks());
+				long runSize = Math.min(remaining, (long) length * superBlock.getBlockSize());
+				dataStorage.transferTo(dataBlockPosition(blocks[i]), runSize, target);
+				remaining -= runSize;
+				i += length;
+			}
+			metrics.recordExport(node.getSize());
+		}
+	}
+
+	/**
+	 * An action that is run for a single node of a subtree.
+	 */
+	private interface NodeAction {
+		void run(int index)
+				throws IOException, FileSystemException;
+	}
+
+	/**
+	 * The nodes of a subtree of the directory tree, in breadth-first order, so every node comes after its parent and
+	 * the children of every directory are next to each other.
+	 */
+	private static class Subtree {
+		final DirectoryTree.Node[] nodes;
+		final int[] parents;
+		final int[] firstChildren;
+		final int[] childCounts;
+
+		Subtree(DirectoryTree.Node top) {
+			ArrayList<DirectoryTree.Node> order = new ArrayList<>();
+			ArrayList<Integer> parentOrder = new ArrayList<>();
+			order.add(top);
+			parentOrder.add(-1);
+			for (int i = 0; i < order.size(); i++) {
+				for (Object child : order.get(i).childNodes.toArray()) {
+					order.add((DirectoryTree.Node) child);
+					parentOrder.add(i);
+				}
+			}
+			nodes = order.toArray(new DirectoryTree.Node[0]);
+			parents = new int[nodes.length];
+			firstChildren = new int[nodes.length];
+			childCounts = new int[nodes.length];
+			indexChildren(parentOrder, parents, firstChildren, childCounts);
+		}
+	}
+
+	/**
+	 * A directory of the external file system and everything below it, in breadth-first order like a Subtree.
+	 * Only directories and regular files are included, and symbolic links to directories are not followed.
+	 */
+	private static class HostTree {
+		final Path[] paths;
+		final String[] names;
+		final boolean[] directories;
+		final long[] sizes;
+		final int[] parents;
+		final int[] firstChildren;
+		final int[] childCounts;
+
+		HostTree(Path top)
+				throws IOException, FileSystemException {
+			ArrayList<Path> order = new ArrayList<>();
+			ArrayList<Integer> parentOrder = new ArrayList<>();
+			ArrayList<Boolean> directoryOrder = new ArrayList<>();
+			ArrayList<Long> sizeOrder = new ArrayList<>();
+			order.add(top);
+			parentOrder.add(-1);
+			directoryOrder.add(true);
+			sizeOrder.add(0L);
+			IndexNode probe = new IndexNode();
+			for (int i = 0; i < order.size(); i++) {
+				if (!directoryOrder.get(i)) {
+					continue;
+				}
+				Path[] children;
+				try (Stream<Path> listing = Files.list(order.get(i))) {
+					children = listing.sorted().toArray(Path[]::new);
+				}
+				for (Path child : children) {
+					BasicFileAttributes attributes =
+							Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					if (attributes.isSymbolicLink()) {
+						attributes = Files.readAttributes(child, BasicFileAttributes.class);
+						if (!attributes.isRegularFile()) {
+							continue;
+						}
+					} else if (!attributes.isDirectory() && !attributes.isRegularFile()) {
+						continue;
+					}
+					try {
+						probe.setName(child.getFileName().toString());
+					} catch (FileSystemException e) {
+						throw new FileSystemException(
+								"The name of the external file " + child + " is too long");
+					}
+					order.add(child);
+					parentOrder.add(i);
+					directoryOrder.add(attributes.isDirectory());
+					sizeOrder.add(attributes.isDirectory() ? 0 : attributes.size());
+				}
+			}
+			paths = order.toArray(new Path[0]);
+			names = new String[paths.length];
+			directories = new boolean[paths.length];
+			sizes = new long[paths.length];
+			for (int i = 0; i < paths.length; i++) {
+				names[i] = paths[i].getFileName() == null ? "" : paths[i].getFileName().toString();
+				directories[i] = directoryOrder.get(i);
+				sizes[i] = sizeOrder.get(i);
+			}
+			parents = new int[paths.length];
+			firstChildren = new int[paths.length];
+			childCounts = new int[paths.length];
+			indexChildren(parentOrder, parents, firstChildren, childCounts);
+		}
+
+		/**
+		 * Checks whether the given file is small enough to be read ahead of the writer.
+		 * @param index the index of the file in the tree.
+		 * @return true if the file is read ahead, false if it is a directory or a large file.
+		 */
+		boolean isBuffered(int index) {
+			return !directories[index] && sizes[index] <= IMPORT_BUFFERED_FILE_BYTES;
+		}
+	}
+
+	/**
+	 * Collects the data of files that are written to neighbouring data blocks, so it is written to the container with
+	 * a single write per MAX_BATCH_BYTES instead of a write per file. The part of the last block of a file that isn't
+	 * covered by its data is filled with zeros.
+	 */
+	private class SequentialWriter {
+		final int blockSize = superBlock.getBlockSize();
+		final byte[] buffer = new byte[batchBlocks() * blockSize];
+		int firstBlock;
+		int blockCount;
+
+		/**
+		 * Adds the data of a file to the buffer, writing the buffer first whenever a block doesn't follow the
+		 * buffered blocks or doesn't fit.
+		 * @param blocks the data blocks of the file, in file order.
+		 * @param bytes the data of the file.
+		 * @throws IOException if an i/o error occurs.
+		 */
+		void write(int[] blocks, byte[] bytes)
+				throws IOException {
+			for (int i = 0; i < blocks.length; i++) {
+				if (blockCount > 0 && (blocks[i] != firstBlock + blockCount
+						|| (blockCount + 1) * blockSize > buffer.length)) {
+					flush();
+				}
+				if (blockCount == 0) {
+					firstBlock = blocks[i];
+				}
+				int offset = i * blockSize;
+				int length = Math.min(blockSize, bytes.length - offset);
+				System.arraycopy(bytes, offset, buffer, blockCount * blockSize, length);
+				Arrays.fill(buffer, blockCount * blockSize + length, (blockCount + 1) * blockSize, (byte) 0);
+				blockCount++;
+			}
+		}
+
+		/**
+		 * Writes the buffered blocks to the container.
+		 * @throws IOException if an i/o error occurs.
+		 */
+		void flush()
+				throws IOException {
+			if (blockCount > 0) {
+				dataStorage.write(dataBlockPosition(firstBlock), buffer, 0, blockCount * blockSize);
+				blockCount = 0;
+			}
+		}
+	}
+
+	/**
+	 * Fills in the parent and the range of children of every node of a tree in breadth-first order, in which the
+	 * children of every node are next to each other.
+	 * @param parentOrder the index of the parent of every node, -1 for the top node.
+	 * @param parents the array to store the parents in.
+	 * @param firstChildren the array to store the index of the first child of every node in.
+	 * @param childCounts the array to store the amount of children of every node in.
+	 */
+	private static void indexChildren(ArrayList<Integer> parentOrder, int[] parents, int[] firstChildren,
+			int[] childCounts) {
+		for (int i = 0; i < parents.length; i++) {
+			parents[i] = parentOrder.get(i);
+			if (i > 0 && childCounts[parents[i]]++ == 0) {
+				firstChildren[parents[i]] = i;
+			}
+		}
+	}
+
+	/**
+	 * Runs a NodeAction for a range of the nodes of a subtree. Ranges with more than SUBTREE_TASK_NODES nodes are
+	 * split in halves, which run in parallel. The first failure is kept, and the actions after it are skipped.
+	 */
+	private class SubtreeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final NodeAction action;
+		final int from;
+		final int to;
+		final AtomicReference<Exception> failure;
+
+		SubtreeTask(NodeAction action, int from, int to, AtomicReference<Exception> failure) {
+			this.action = action;
+			this.from = from;
+			this.to = to;
+			this.failure = failure;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > SUBTREE_TASK_NODES) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new SubtreeTask(action, from, middle, failure), new SubtreeTask(action, middle, to, failure));
+				return;
+			}
+			blockMapper().invalidate();
+			for (int i = from; i < to && failure.get() == null; i++) {
+				try {
+					action.run(i);
+				} catch (IOException | FileSystemException e) {
+					failure.compareAndSet(null, e);
 				}
 			}
 		}
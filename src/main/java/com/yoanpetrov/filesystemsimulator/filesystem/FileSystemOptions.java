@@ -0,0 +1,165 @@
+package com.yoanpetrov.filesystemsimulator.filesystem;
+
+import com.yoanpetrov.filesystemsimulator.filestructures.container.SuperBlock;
+
+/**
+ * Startup options of a FileSystem object. The default options match the behaviour of a plain FileSystem.
+ */
+public class FileSystemOptions {
+
+	/**
+	 * The default amount of blocks kept in the block cache.
+	 */
+	public static final int DEFAULT_CACHE_CAPACITY = 1024;
+
+	/**
+	 * The default time between two commits of the metadata journal, in milliseconds.
+	 */
+	public static final long DEFAULT_COMMIT_INTERVAL = 50;
+
+	boolean memoryMapped;
+	int cacheCapacity;
+	boolean format;
+	boolean journaled;
+	long commitInterval;
+	int blockSize;
+	boolean jmx;
+	boolean compressed;
+	boolean deduplicated;
+
+	public FileSystemOptions() {
+		memoryMapped = false;
+		cacheCapacity = DEFAULT_CACHE_CAPACITY;
+		format = false;
+		journaled = true;
+		commitInterval = DEFAULT_COMMIT_INTERVAL;
+		blockSize = SuperBlock.DEFAULT_BLOCK_SIZE;
+		jmx = false;
+		compressed = false;
+		deduplicated = false;
+	}
+
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * Sets whether the container should be accessed through memory-mapped buffers instead of seeking in the file.
+	 *
+	 * @param memoryMapped true to map the container into memory, false to use regular file i/o.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	public boolean isFormat() {
+		return format;
+	}
+
+	/**
+	 * Sets whether an existing container should always be formatted instead of mounted.
+	 *
+	 * @param format true to always format the container, false to mount it if it is a valid file system.
+	 */
+	public void setFormat(boolean format) {
+		this.format = format;
+	}
+
+	public int getCacheCapacity() {
+		return cacheCapacity;
+	}
+
+	/**
+	 * Sets the maximum amount of blocks kept in the write-back block cache.
+	 *
+	 * @param cacheCapacity the capacity of the cache in blocks, 0 disables the cache.
+	 */
+	public void setCacheCapacity(int cacheCapacity) {
+		this.cacheCapacity = cacheCapacity;
+	}
+
+	public boolean isJournaled() {
+		return journaled;
+	}
+
+	/**
+	 * Sets whether the metadata should be written through the journal. A new container only gets a journal region if
+	 * this is set. The journal of an existing container is always replayed when it is mounted.
+	 *
+	 * @param journaled true to journal the metadata, false to write it directly to the container.
+	 */
+	public void setJournaled(boolean journaled) {
+		this.journaled = journaled;
+	}
+
+	public long getCommitInterval() {
+		return commitInterval;
+	}
+
+	/**
+	 * Sets the time between two background commits of the metadata journal.
+	 *
+	 * @param commitInterval the interval in milliseconds, 0 to only commit on sync, when the journal fills up and on
+	 *                       close.
+	 */
+	public void setCommitInterval(long commitInterval) {
+		this.commitInterval = commitInterval;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Sets the block size of a new container. Existing containers keep the block size they were formatted with.
+	 *
+	 * @param blockSize the block size in bytes, a power of two between 512 and 65536.
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	public boolean isJmx() {
+		return jmx;
+	}
+
+	/**
+	 * Sets whether the metrics of the file system should be registered as an MBean, so they can be read over JMX.
+	 * The metrics are always recorded, this only makes them visible outside the process. Starting the platform
+	 * MBean server takes a noticeable time, so it is off by default.
+	 *
+	 * @param jmx true to register the metrics MBean, false otherwise.
+	 */
+	public void setJmx(boolean jmx) {
+		this.jmx = jmx;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Sets whether new files should store their data compressed. Existing files keep the way they are stored, and
+	 * copies keep the way their source is stored.
+	 *
+	 * @param compressed true to compress the data of new files, false to store it as it is.
+	 */
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	public boolean isDeduplicated() {
+		return deduplicated;
+	}
+
+	/**
+	 * Sets whether written data blocks should be deduplicated: a block with the same content as a block written
+	 * since the file system was opened references that block instead of being written again. Blocks are then never
+	 * written in place. Only containers with a reference count region can deduplicate blocks.
+	 *
+	 * @param deduplicated true to deduplicate the written blocks, false to always write new blocks.
+	 */
+	public void setDeduplicated(boolean deduplicated) {
+		this.deduplicated = deduplicated;
+	}
+}
@@ -0,0 +1,718 @@
+package com.yoanpetrov.filesystemsimulator.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import com.yoanpetrov.filesystemsimulator.metrics.Histogram;
+import com.yoanpetrov.filesystemsimulator.storage.ContainerStorage;
+
+/**
+ * In-memory copy of a bitmap region of the container (either the index node bitmap or the data bitmap).
+ * The bitmap is kept as an array of 64-bit words, in the same bit order as the Bitmap blocks on disk:
+ * the bit for block 0 is the most significant bit of the first word, and a set bit means the block is free.
+ * <p>
+ * A second, smaller summary array has one bit per word, set when the word has at least one free bit, so finding
+ * a free block skips 4096 allocated blocks per summary word. Allocation starts at a roving cursor (next fit)
+ * instead of at block 0, and only the changed word is written back to the container.
+ * <p>
+ * In deferred mode, changed words are only marked as dirty and are written back by flush(), where neighbouring
+ * dirty words are coalesced into a single write.
+ * <p>
+ * A map can have a watermark, stored at a separate position of the container, which is the amount of words at the
+ * end of the region that have never been written. These words are free, so formatting a region only writes the
+ * watermark, and loading it only reads the words before the watermark. The watermark is lowered when a changed word
+ * is written past it, together with the free words between the watermark and the changed word.
+ * <p>
+ * The map can be used by several threads at once. Single blocks are allocated and freed under one of several striped
+ * locks, each guarding the words that share a summary word, so threads that work in different parts of the region
+ * don't wait for each other. Operations over the whole region, such as run allocation, loading and flushing, take
+ * the region lock exclusively.
+ */
+public class FreeSpaceMap {
+
+	/**
+	 * The amount of striped locks over the words of the map.
+	 */
+	static final int LOCK_STRIPES = 64;
+
+	/**
+	 * The maximum amount of bytes that are read or written at once when a whole region is loaded or formatted.
+	 */
+	static final int FORMAT_BATCH_BYTES = 1024 * 1024;
+
+	private final ContainerStorage storage;
+	private final long regionPosition;
+	private final long watermarkPosition;
+	private final int bitCount;
+	private final Histogram scanLengths;
+	private final long[] words;
+	private final long[] summary;
+	private final long[] dirtyWords;
+	private final ReentrantReadWriteLock regionLock;
+	private final ReentrantLock[] stripes;
+	private final AtomicInteger freeCount;
+	private volatile int cursor;
+	private volatile boolean deferred;
+	private volatile int writtenWords;
+
+	/**
+	 * Constructs an empty (fully allocated) map of a bitmap region without a watermark, so the whole region is
+	 * always written.
+	 *
+	 * @param storage        the container the bitmap region is stored in.
+	 * @param regionPosition the position of the bitmap region in the container, in bytes.
+	 * @param bitCount       the amount of blocks that the bitmap region maps.
+	 */
+	public FreeSpaceMap(ContainerStorage storage, long regionPosition, int bitCount) {
+		this(storage, regionPosition, bitCount, -1, null);
+	}
+
+	/**
+	 * Constructs an empty (fully allocated) map of a bitmap region with a watermark.
+	 *
+	 * @param storage           the container the bitmap region is stored in.
+	 * @param regionPosition    the position of the bitmap region in the container, in bytes.
+	 * @param bitCount          the amount of blocks that the bitmap region maps.
+	 * @param watermarkPosition the position of the 4-byte watermark in the container, -1 if the map has none.
+	 * @param scanLengths       the histogram to record the amount of words that each allocation skips from the
+	 *                          cursor to its first block in, null to not record them.
+	 */
+	public FreeSpaceMap(ContainerStorage storage, long regionPosition, int bitCount, long watermarkPosition,
+			Histogram scanLengths) {
+		this.storage = storage;
+		this.regionPosition = regionPosition;
+		this.watermarkPosition = watermarkPosition;
+		this.bitCount = bitCount;
+		this.scanLengths = scanLengths;
+		words = new long[(bitCount + 63) / 64];
+		summary = new long[(words.length + 63) / 64];
+		dirtyWords = new long[summary.length];
+		regionLock = new ReentrantReadWriteLock();
+		stripes = new ReentrantLock[LOCK_STRIPES];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+		freeCount = new AtomicInteger();
+		cursor = 0;
+		writtenWords = words.length;
+	}
+
+	/**
+	 * Marks every block as free and writes the change to the container. If the map has a watermark, only the
+	 * watermark is written, above the whole region. Otherwise the whole region is written.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public void format()
+			throws IOException {
+		initializeFree();
+		regionLock.writeLock().lock();
+		try {
+			if (watermarkPosition >= 0) {
+				writtenWords = 0;
+				writeWatermark();
+				return;
+			}
+			if (words.length > 0) {
+				write(0, words.length - 1);
+			}
+		} finally {
+			regionLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Marks every block as free in memory, without touching the container.
+	 * Used right after the bitmap region was formatted.
+	 */
+	public void initializeFree() {
+		regionLock.writeLock().lock();
+		try {
+			Arrays.fill(words, -1L);
+			maskLastWord();
+			Arrays.fill(summary, -1L);
+			if ((words.length & 63) != 0) {
+				summary[summary.length - 1] = -1L << (64 - (words.length & 63));
+			}
+			if (words.length > 0) {
+				updateSummary(words.length - 1);
+			}
+			freeCount.set(bitCount);
+			cursor = 0;
+		} finally {
+			regionLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Loads the bitmap region from the container, up to its watermark. The words past the watermark are free.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public void load()
+			throws IOException {
+		regionLock.writeLock().lock();
+		try {
+			writtenWords = words.length;
+			if (watermarkPosition >= 0) {
+				byte[] watermark = new byte[4];
+				storage.read(watermarkPosition, watermark);
+				int unwrittenWords = ByteBuffer.wrap(watermark).getInt();
+				if (unwrittenWords < 0 || unwrittenWords > words.length) {
+					throw new IOException("The watermark of the bitmap region is corrupted");
+				}
+				writtenWords = words.length - unwrittenWords;
+			}
+			byte[] buffer = new byte[Math.min(FORMAT_BATCH_BYTES, writtenWords * 8)];
+			int wordIndex = 0;
+			while (wordIndex < writtenWords) {
+				int count = Math.min(buffer.length / 8, writtenWords - wordIndex);
+				storage.read(regionPosition + wordIndex * 8L, buffer, 0, count * 8);
+				for (int i = 0; i < count; i++) {
+					words[wordIndex + i] = toWord(buffer, i * 8);
+				}
+				wordIndex += count;
+			}
+			Arrays.fill(words, writtenWords, words.length, -1L);
+			maskLastWord();
+			int free = 0;
+			for (int i = 0; i < words.length; i++) {
+				updateSummary(i);
+				free += Long.bitCount(words[i]);
+			}
+			freeCount.set(free);
+			cursor = 0;
+		} finally {
+			regionLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Allocates the first free block at or after the cursor, wrapping around to the beginning of the map.
+	 *
+	 * @return the number of the allocated block, -1 if there are no free blocks.
+	 * @throws IOException if an i/o error occurs while persisting the change.
+	 */
+	public int allocate()
+			throws IOException {
+		regionLock.readLock().lock();
+		try {
+			int start = cursor;
+			while (freeCount.get() > 0) {
+				// the word is found without a lock, so it is checked again once its stripe is locked
+				int word = findFreeWord(start);
+				if (word == -1) {
+					word = findFreeWord(0);
+				}
+				if (word == -1) {
+					// another thread took the last free bit and hasn't updated the free count yet
+					Thread.onSpinWait();
+					continue;
+				}
+				ReentrantLock stripe = stripeOf(word);
+				stripe.lock();
+				try {
+					if (words[word] == 0) {
+						continue;
+					}
+					int bit = word * 64 + Long.numberOfLeadingZeros(words[word]);
+					words[word] &= ~(Long.MIN_VALUE >>> (bit & 63));
+					updateSummary(word);
+					freeCount.decrementAndGet();
+					cursor = word;
+					persist(word);
+					recordScan(start, word);
+					return bit;
+				} finally {
+					stripe.unlock();
+				}
+			}
+			return -1;
+		} finally {
+			regionLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Allocates the given amount of blocks, preferring a single contiguous run. The first run at or after the
+	 * cursor that is long enough is used. If there is no such run, the longest run in the map is used, followed by
+	 * the free runs after it, in a single sweep that wraps around to the beginning of the map, until enough blocks
+	 * are allocated. Each run is persisted with a single write.
+	 *
+	 * @param count the amount of blocks to allocate.
+	 * @return the numbers of the allocated blocks in ascending order within each run,
+	 * or an empty array if there aren't enough free blocks.
+	 * @throws IOException if an i/o error occurs while persisting the changes.
+	 */
+	public int[] allocateBlocks(int count)
+			throws IOException {
+		regionLock.writeLock().lock();
+		try {
+			if (count > freeCount.get()) {
+				return new int[0];
+			}
+			int[] result = new int[count];
+			long run = findRun(count);
+			int start = (int) (run >>> 32);
+			int length = Math.min((int) run, count);
+			recordScan(cursor, start / 64);
+			int filled = 0;
+			while (true) {
+				allocateRange(start, length);
+				for (int i = 0; i < length; i++) {
+					result[filled++] = start + i;
+				}
+				if (filled == count) {
+					return result;
+				}
+				// the free count was checked above, so the sweep finds the remaining blocks before it gets back here
+				start = nextFree(start + length);
+				if (start == -1) {
+					start = nextFree(0);
+				}
+				length = nextAllocated(start, start + count - filled) - start;
+			}
+		} finally {
+			regionLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Marks the given block as free.
+	 *
+	 * @param bit the number of the block.
+	 * @throws IOException if an i/o error occurs while persisting the change.
+	 */
+	public void free(int bit)
+			throws IOException {
+		if (bit < 0 || bit >= bitCount) {
+			return;
+		}
+		int word = bit / 64;
+		regionLock.readLock().lock();
+		ReentrantLock stripe = stripeOf(word);
+		stripe.lock();
+		try {
+			if (isFree(bit)) {
+				return;
+			}
+			words[word] |= Long.MIN_VALUE >>> (bit & 63);
+			updateSummary(word);
+			freeCount.incrementAndGet();
+			persist(word);
+		} finally {
+			stripe.unlock();
+			regionLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Marks the given blocks as free, under a single hold of the region lock. The changed words are persisted with
+	 * a single write per run of neighbouring words, instead of a write per block.
+	 *
+	 * @param bits the numbers of the blocks, in any order.
+	 * @throws IOException if an i/o error occurs while persisting the changes.
+	 */
+	public void freeBlocks(int[] bits)
+			throws IOException {
+		int[] sorted = bits.clone();
+		Arrays.sort(sorted);
+		regionLock.writeLock().lock();
+		try {
+			int firstWord = -1;
+			int lastWord = -1;
+			for (int bit : sorted) {
+				if (bit < 0 || bit >= bitCount || isFree(bit)) {
+					continue;
+				}
+				int word = bit / 64;
+				words[word] |= Long.MIN_VALUE >>> (bit & 63);
+				updateSummary(word);
+				freeCount.incrementAndGet();
+				if (firstWord != -1 && word > lastWord + 1) {
+					persist(firstWord, lastWord);
+					firstWord = -1;
+				}
+				if (firstWord == -1) {
+					firstWord = word;
+				}
+				lastWord = word;
+			}
+			if (firstWord != -1) {
+				persist(firstWord, lastWord);
+			}
+		} finally {
+			regionLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Sets whether changes should be deferred until flush() is called instead of being written back immediately.
+	 * Turning the deferred mode off flushes the pending changes.
+	 *
+	 * @param deferred true to defer the changes, false to write them back immediately.
+	 * @throws IOException if an i/o error occurs while flushing the pending changes.
+	 */
+	public void setDeferred(boolean deferred)
+			throws IOException {
+		regionLock.writeLock().lock();
+		try {
+			this.deferred = deferred;
+			if (!deferred) {
+				flush();
+			}
+		} finally {
+			regionLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the words changed in deferred mode back to the container, with a single write per run of neighbouring
+	 * changed words.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public void flush()
+			throws IOException {
+		regionLock.writeLock().lock();
+		try {
+			int word = nextDirtyWord(0);
+			while (word != -1) {
+				int lastWord = word;
+				while (lastWord + 1 < words.length && isDirty(lastWord + 1)) {
+					lastWord++;
+				}
+				write(word, lastWord);
+				for (int i = word; i <= lastWord; i++) {
+					dirtyWords[i >>> 6] &= ~(Long.MIN_VALUE >>> (i & 63));
+				}
+				word = nextDirtyWord(lastWord + 1);
+			}
+		} finally {
+			regionLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks whether the given block is free.
+	 *
+	 * @param bit the number of the block.
+	 * @return true if the block is free, false otherwise.
+	 */
+	public boolean isFree(int bit) {
+		return (words[bit / 64] & (Long.MIN_VALUE >>> (bit & 63))) != 0;
+	}
+
+	public int getFreeCount() {
+		return freeCount.get();
+	}
+
+	public int getBitCount() {
+		return bitCount;
+	}
+
+	/**
+	 * Finds a run of free blocks for an allocation of the given length. The map is searched from the cursor to the
+	 * end and then from the beginning to the cursor. The first run that is long enough is returned, otherwise the
+	 * longest run in the map is returned. The map must have at least one free block.
+	 *
+	 * @param wanted the wanted length of the run.
+	 * @return the start of the run in the upper 32 bits and the length of the run in the lower 32 bits.
+	 */
+	private long findRun(int wanted) {
+		int bestStart = -1;
+		int bestLength = 0;
+		int from = cursor * 64;
+		int to = bitCount;
+		for (int pass = 0; pass < 2; pass++) {
+			int start = nextFree(from);
+			while (start != -1 && start < to) {
+				int end = nextAllocated(start, start + wanted);
+				int length = end - start;
+				if (length >= wanted) {
+					return ((long) start << 32) | wanted;
+				}
+				if (length > bestLength) {
+					bestStart = start;
+					bestLength = length;
+				}
+				start = nextFree(end);
+			}
+			to = from;
+			from = 0;
+		}
+		return ((long) bestStart << 32) | bestLength;
+	}
+
+	/**
+	 * Marks the given range of free blocks as allocated and persists the changed words with a single write.
+	 *
+	 * @param start  the number of the first block in the range.
+	 * @param length the amount of blocks in the range.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void allocateRange(int start, int length)
+			throws IOException {
+		int end = start + length;
+		int firstWord = start / 64;
+		int lastWord = (end - 1) / 64;
+		for (int word = firstWord; word <= lastWord; word++) {
+			long mask = -1L;
+			if (word == firstWord) {
+				mask &= -1L >>> (start & 63);
+			}
+			if (word == lastWord && (end & 63) != 0) {
+				mask &= -1L << (64 - (end & 63));
+			}
+			words[word] &= ~mask;
+			updateSummary(word);
+		}
+		freeCount.addAndGet(-length);
+		cursor = lastWord;
+		persist(firstWord, lastWord);
+	}
+
+	/**
+	 * Records the amount of words between the word the search for free blocks started at and the word it found,
+	 * wrapping around the end of the map.
+	 *
+	 * @param from  the index of the word the search started at.
+	 * @param found the index of the found word.
+	 */
+	private void recordScan(int from, int found) {
+		if (scanLengths != null) {
+			scanLengths.record(found >= from ? found - from : words.length - from + found);
+		}
+	}
+
+	/**
+	 * Finds the first free block at or after the given block.
+	 *
+	 * @param from the number of the block to start from.
+	 * @return the number of the found block, -1 if there is no such block.
+	 */
+	private int nextFree(int from) {
+		if (from >= bitCount) {
+			return -1;
+		}
+		int word = from / 64;
+		long bits = words[word] & (-1L >>> (from & 63));
+		if (bits != 0) {
+			return word * 64 + Long.numberOfLeadingZeros(bits);
+		}
+		word = findFreeWord(word + 1);
+		if (word == -1) {
+			return -1;
+		}
+		return word * 64 + Long.numberOfLeadingZeros(words[word]);
+	}
+
+	/**
+	 * Finds the first allocated block at or after the given block. The search stops at the given limit, so a run
+	 * that is already long enough isn't scanned to its end.
+	 *
+	 * @param from  the number of the block to start from.
+	 * @param limit the number of the block to stop the search at.
+	 * @return the number of the found block, or the limit or the amount of blocks in the map, whichever comes first,
+	 * if there is no such block before them.
+	 */
+	private int nextAllocated(int from, int limit) {
+		int end = (int) Math.min(Math.max(limit, 0L), bitCount);
+		int word = from / 64;
+		long bits = ~words[word] & (-1L >>> (from & 63));
+		while (bits == 0) {
+			word++;
+			if (word >= words.length || word * 64 >= end) {
+				return end;
+			}
+			bits = ~words[word];
+		}
+		return Math.min(word * 64 + Long.numberOfLeadingZeros(bits), end);
+	}
+
+	/**
+	 * Finds the first word at or after the given word that has a free bit, using the summary array.
+	 *
+	 * @param from the index of the word to start from.
+	 * @return the index of the found word, -1 if there is no such word.
+	 */
+	private int findFreeWord(int from) {
+		int summaryIndex = from / 64;
+		if (summaryIndex >= summary.length) {
+			return -1;
+		}
+		long bits = summary[summaryIndex] & (-1L >>> (from & 63));
+		while (bits == 0) {
+			summaryIndex++;
+			if (summaryIndex >= summary.length) {
+				return -1;
+			}
+			bits = summary[summaryIndex];
+		}
+		return summaryIndex * 64 + Long.numberOfLeadingZeros(bits);
+	}
+
+	/**
+	 * Returns the striped lock that guards the given word. All words that share a summary word share a lock, so the
+	 * summary and dirty words are only changed under that lock.
+	 *
+	 * @param word the index of the word.
+	 * @return the lock of the word.
+	 */
+	private ReentrantLock stripeOf(int word) {
+		return stripes[(word >>> 6) % LOCK_STRIPES];
+	}
+
+	/**
+	 * Updates the summary bit of the given word.
+	 *
+	 * @param word the index of the word.
+	 */
+	private void updateSummary(int word) {
+		long mask = Long.MIN_VALUE >>> (word & 63);
+		if (words[word] != 0) {
+			summary[word / 64] |= mask;
+		} else {
+			summary[word / 64] &= ~mask;
+		}
+	}
+
+	/**
+	 * Clears the bits of the last word that don't map to an existing block, so they are never allocated.
+	 */
+	private void maskLastWord() {
+		int usedBits = bitCount & 63;
+		if (usedBits != 0 && words.length > 0) {
+			words[words.length - 1] &= -1L << (64 - usedBits);
+		}
+	}
+
+	/**
+	 * Writes the given word back to the bitmap region of the container.
+	 *
+	 * @param word the index of the word.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void persist(int word)
+			throws IOException {
+		if (deferred) {
+			dirtyWords[word >>> 6] |= Long.MIN_VALUE >>> (word & 63);
+			return;
+		}
+		write(word, word);
+	}
+
+	/**
+	 * Writes the given range of words back to the bitmap region of the container with a single write.
+	 *
+	 * @param firstWord the index of the first word in the range.
+	 * @param lastWord  the index of the last word in the range (inclusive).
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void persist(int firstWord, int lastWord)
+			throws IOException {
+		if (deferred || firstWord == lastWord) {
+			for (int word = firstWord; word <= lastWord; word++) {
+				persist(word);
+			}
+			return;
+		}
+		write(firstWord, lastWord);
+	}
+
+	/**
+	 * Writes the given range of words to the bitmap region of the container with a single write. If the range ends
+	 * past the watermark, it is extended back to the watermark and the watermark is lowered after it.
+	 *
+	 * @param firstWord the index of the first word in the range.
+	 * @param lastWord  the index of the last word in the range (inclusive).
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void write(int firstWord, int lastWord)
+			throws IOException {
+		if (lastWord >= writtenWords) {
+			synchronized (this) {
+				if (lastWord >= writtenWords) {
+					writeWords(Math.min(firstWord, writtenWords), lastWord);
+					writtenWords = lastWord + 1;
+					writeWatermark();
+					return;
+				}
+			}
+		}
+		writeWords(firstWord, lastWord);
+	}
+
+	/**
+	 * Writes the given range of words to the bitmap region of the container, with a write per FORMAT_BATCH_BYTES.
+	 *
+	 * @param firstWord the index of the first word in the range.
+	 * @param lastWord  the index of the last word in the range (inclusive).
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void writeWords(int firstWord, int lastWord)
+			throws IOException {
+		while (firstWord <= lastWord) {
+			int count = Math.min(lastWord - firstWord + 1, FORMAT_BATCH_BYTES / 8);
+			byte[] bytes = new byte[count * 8];
+			for (int i = 0; i < count; i++) {
+				toBytes(words[firstWord + i], bytes, i * 8);
+			}
+			storage.write(regionPosition + firstWord * 8L, bytes);
+			firstWord += count;
+		}
+	}
+
+	/**
+	 * Writes the amount of words past the watermark to the container.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void writeWatermark()
+			throws IOException {
+		storage.write(watermarkPosition, ByteBuffer.allocate(4).putInt(words.length - writtenWords).array());
+	}
+
+	private boolean isDirty(int word) {
+		return (dirtyWords[word >>> 6] & (Long.MIN_VALUE >>> (word & 63))) != 0;
+	}
+
+	/**
+	 * Finds the first word at or after the given one that was changed in deferred mode.
+	 *
+	 * @param from the index of the word to start from.
+	 * @return the index of the found word, -1 if there are no more changed words.
+	 */
+	private int nextDirtyWord(int from) {
+		if (from >= words.length) {
+			return -1;
+		}
+		int index = from >>> 6;
+		long bits = dirtyWords[index] & (-1L >>> (from & 63));
+		while (bits == 0) {
+			if (++index == dirtyWords.length) {
+				return -1;
+			}
+			bits = dirtyWords[index];
+		}
+		return index * 64 + Long.numberOfLeadingZeros(bits);
+	}
+
+	private static void toBytes(long value, byte[] bytes, int offset) {
+		for (int i = 7; i >= 0; i--) {
+			bytes[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private static long toWord(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xff);
+		}
+		return value;
+	}
+}
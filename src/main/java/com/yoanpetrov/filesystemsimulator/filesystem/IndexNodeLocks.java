@@ -0,0 +1,46 @@
+package com.yoanpetrov.filesystemsimulator.filesystem;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A read/write lock for every index node of a container. The locks are created the first time their index node is
+ * locked, so index nodes that are never used don't take any memory.
+ */
+public class IndexNodeLocks {
+
+	private final AtomicReferenceArray<ReentrantReadWriteLock> locks;
+
+	/**
+	 * Constructs the locks for the given amount of index nodes.
+	 *
+	 * @param indexNodeCount the amount of index nodes in the container.
+	 */
+	public IndexNodeLocks(int indexNodeCount) {
+		locks = new AtomicReferenceArray<>(indexNodeCount);
+	}
+
+	/**
+	 * Acquires the lock of the given index node.
+	 *
+	 * @param indexNodeNumber the number of the index node.
+	 * @param write           true to acquire the lock exclusively, false to share it with other readers.
+	 * @return the acquired lock, which has to be unlocked by the caller.
+	 */
+	public Lock lock(int indexNodeNumber, boolean write) {
+		ReentrantReadWriteLock lock = lockOf(indexNodeNumber);
+		Lock acquired = write ? lock.writeLock() : lock.readLock();
+		acquired.lock();
+		return acquired;
+	}
+
+	private ReentrantReadWriteLock lockOf(int indexNodeNumber) {
+		ReentrantReadWriteLock lock = locks.get(indexNodeNumber);
+		if (lock == null) {
+			locks.compareAndSet(indexNodeNumber, null, new ReentrantReadWriteLock());
+			lock = locks.get(indexNodeNumber);
+		}
+		return lock;
+	}
+}
@@ -0,0 +1,626 @@
+package com.yoanpetrov.filesystemsimulator.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+import com.yoanpetrov.filesystemsimulator.filestructures.container.SuperBlock;
+import com.yoanpetrov.filesystemsimulator.storage.ContainerStorage;
+
+/**
+ * Write-ahead journal for the metadata of a container: the bitmaps, the index nodes and the indirect blocks.
+ * Metadata is written through the journal instead of directly to the container. Changed blocks are kept in memory,
+ * and all blocks changed since the last commit form the running transaction.
+ * <p>
+ * A commit appends the running transaction to the journal region as a single record and forces the container, so
+ * the scattered metadata writes of many operations become one sequential write. Threads that ask for a commit while
+ * another commit is being written wait for it and are covered by the next one (group commit). A background thread
+ * also commits the running transaction periodically, or sooner if it grows large.
+ * <p>
+ * The blocks are written to their home locations lazily, by a checkpoint, when the journal region is full or when
+ * the journal is closed. After a crash, recover() replays the records of the journal in order, so the metadata
+ * reflects exactly the committed transactions. A record is only replayed if its checksum matches, so a record that
+ * was only partially written is ignored.
+ * <p>
+ * Each record consists of a header block (magic, sequence number, entry count and checksum), the entry blocks with
+ * one long per entry, and the images of the journaled blocks. A non-negative entry is the number of a block whose
+ * image follows, a negative entry -(block + 1) revokes a block: the block was an indirect block that has been freed,
+ * so images of it from earlier records must not be replayed over the data that it may hold later. A revoked block is
+ * only released in the data bitmap after the revoking transaction is committed.
+ * <p>
+ * A commit has to see every operation either completely or not at all, so it takes the given barrier lock while it
+ * collects the running transaction. Operations must hold the shared side of the barrier while they change metadata,
+ * and must not ask for a commit while they hold it.
+ */
+public class MetadataJournal implements ContainerStorage {
+
+	static final int JOURNAL_MAGIC = 0x4A524E4C;
+	static final int RECORD_MAGIC = 0x4A524543;
+
+	/**
+	 * The running transaction is committed early once it has 1/COMMIT_THRESHOLD_DIVISOR of the journal's blocks.
+	 */
+	static final int COMMIT_THRESHOLD_DIVISOR = 8;
+
+	private final ContainerStorage backing;
+	private final ContainerStorage region;
+	private final Lock barrier;
+	private final int blockSize;
+	private final long regionPosition;
+	private final int regionBlocks;
+	private final Map<Long, byte[]> blocks;
+	private final HashSet<Long> running;
+	private final List<Revocation> revoked;
+	private final TreeMap<Long, byte[]> committed;
+	private final ReentrantLock commitLock;
+	private long sequence;
+	private long committedSequence;
+	private int head;
+	private boolean commitRequested;
+	private volatile boolean closed;
+	private Thread committer;
+
+	/**
+	 * Constructs the journal of the given container. The journal region has to be formatted or recovered before the
+	 * journal is used.
+	 *
+	 * @param backing    the container.
+	 * @param region     the container, as the journal region is accessed. The records are only read back on
+	 *                   recovery, so they can bypass a block cache that the other accesses go through.
+	 * @param superBlock the super block of the container, which must have a journal region.
+	 * @param barrier    the lock that keeps operations out while a commit collects the running transaction.
+	 */
+	public MetadataJournal(ContainerStorage backing, ContainerStorage region, SuperBlock superBlock, Lock barrier) {
+		this.backing = backing;
+		this.region = region;
+		this.barrier = barrier;
+		blockSize = superBlock.getBlockSize();
+		regionPosition = (long) superBlock.getJournalOffset() * blockSize;
+		regionBlocks = superBlock.getJournalBlockCount();
+		blocks = new HashMap<>();
+		running = new HashSet<>();
+		revoked = new ArrayList<>();
+		committed = new TreeMap<>();
+		commitLock = new ReentrantLock();
+		sequence = 1;
+		committedSequence = 0;
+		head = 1;
+	}
+
+	/**
+	 * Writes an empty journal to the journal region.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public void format()
+			throws IOException {
+		commitLock.lock();
+		try {
+			reset(sequence);
+		} finally {
+			commitLock.unlock();
+		}
+	}
+
+	/**
+	 * Replays the committed records of the journal to the home locations of their blocks and empties the journal.
+	 * Must be called before the metadata is read.
+	 *
+	 * @return the amount of replayed records.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public int recover()
+			throws IOException {
+		commitLock.lock();
+		try {
+			ByteBuffer header = ByteBuffer.wrap(readRegion(0, 1));
+			if (header.getInt() != JOURNAL_MAGIC) {
+				reset(sequence);
+				return 0;
+			}
+			long next = header.getLong();
+			List<Transaction> transactions = new ArrayList<>();
+			int position = 1;
+			Transaction transaction;
+			while ((transaction = readRecord(position, next)) != null) {
+				transactions.add(transaction);
+				position += transaction.recordBlocks();
+				next++;
+			}
+			Map<Long, Long> revokedIn = new HashMap<>();
+			for (Transaction t : transactions) {
+				for (Revocation revocation : t.revocations) {
+					revokedIn.merge(revocation.block, t.sequence, Math::max);
+				}
+			}
+			for (Transaction t : transactions) {
+				for (Map.Entry<Long, byte[]> image : t.images.entrySet()) {
+					Long revokedAt = revokedIn.get(image.getKey());
+					if (revokedAt == null || revokedAt < t.sequence) {
+						backing.write(image.getKey() * blockSize, image.getValue());
+					}
+				}
+			}
+			backing.force();
+			sequence = next;
+			committedSequence = next - 1;
+			reset(next);
+			return transactions.size();
+		} finally {
+			commitLock.unlock();
+		}
+	}
+
+	/**
+	 * Starts the background thread that commits the running transaction after every given interval.
+	 *
+	 * @param intervalMillis the time between two commits in milliseconds, 0 to only commit when asked to.
+	 */
+	public void start(long intervalMillis) {
+		committer = new Thread(() -> commitPeriodically(intervalMillis), "journal-commit");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	@Override
+	public synchronized void read(long position, byte[] destination, int offset, int length)
+			throws IOException {
+		while (length > 0) {
+			long block = position / blockSize;
+			int index = (int) (position % blockSize);
+			int count = Math.min(length, blockSize - index);
+			byte[] image = blocks.get(block);
+			if (image != null) {
+				System.arraycopy(image, index, destination, offset, count);
+			} else {
+				backing.read(position, destination, offset, count);
+			}
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	@Override
+	public synchronized void write(long position, byte[] source, int offset, int length)
+			throws IOException {
+		while (length > 0) {
+			long block = position / blockSize;
+			int index = (int) (position % blockSize);
+			int count = Math.min(length, blockSize - index);
+			byte[] image = blocks.get(block);
+			if (image == null) {
+				image = new byte[blockSize];
+				if (count < blockSize) {
+					backing.read(block * blockSize, image);
+				}
+				blocks.put(block, image);
+			}
+			System.arraycopy(source, offset, image, index, count);
+			running.add(block);
+			position += count;
+			offset += count;
+			length -= count;
+		}
+		if (running.size() >= regionBlocks / COMMIT_THRESHOLD_DIVISOR && !commitRequested) {
+			commitRequested = true;
+			notifyAll();
+		}
+	}
+
+	@Override
+	public long length()
+			throws IOException {
+		return backing.length();
+	}
+
+	/**
+	 * Commits the running transaction.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	@Override
+	public void force()
+			throws IOException {
+		commit();
+	}
+
+	/**
+	 * Stops the background commits and checkpoints the journal, so the journal is empty and all metadata is at its
+	 * home location. The underlying container is not closed.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	@Override
+	public void close()
+			throws IOException {
+		closed = true;
+		if (committer != null) {
+			synchronized (this) {
+				notifyAll();
+			}
+			try {
+				committer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		checkpoint();
+	}
+
+	/**
+	 * Revokes the given block, which was an indirect block and has been freed. The block is dropped from the journal
+	 * and is released in the given map once the running transaction is committed, so it can't be reused while the
+	 * committed metadata may still reference it.
+	 *
+	 * @param block the absolute number of the block in the container.
+	 * @param map   the map to release the block in.
+	 * @param bit   the number of the block in the map.
+	 */
+	public synchronized void revoke(long block, FreeSpaceMap map, int bit) {
+		blocks.remove(block);
+		running.remove(block);
+		revoked.add(new Revocation(block, map, bit));
+	}
+
+	/**
+	 * Commits the running transaction and waits until it is durably stored in the journal. If another commit is being
+	 * written, the call waits for it and returns without writing if that commit already covered the changes.
+	 * Must not be called while holding the barrier.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public void commit()
+			throws IOException {
+		long target;
+		synchronized (this) {
+			target = sequence;
+		}
+		commitLock.lock();
+		try {
+			if (committedSequence < target) {
+				commitRunning();
+			}
+		} finally {
+			commitLock.unlock();
+		}
+	}
+
+	/**
+	 * Commits the running transaction, writes all committed blocks to their home locations and empties the journal.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public void checkpoint()
+			throws IOException {
+		commitLock.lock();
+		try {
+			while (commitRunning()) {
+				// Releasing revoked blocks changes the bitmap, which is committed by the next round.
+			}
+			writeCheckpoint(null);
+		} finally {
+			commitLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the sequence number of the last committed transaction.
+	 *
+	 * @return the last committed sequence number.
+	 */
+	public long getCommittedSequence() {
+		commitLock.lock();
+		try {
+			return committedSequence;
+		} finally {
+			commitLock.unlock();
+		}
+	}
+
+	/**
+	 * Commits the running transaction after every interval, or as soon as a large transaction asks for it, until the
+	 * journal is closed. Runs on the background thread.
+	 *
+	 * @param intervalMillis the time between two commits in milliseconds, 0 to only commit when asked to.
+	 */
+	private void commitPeriodically(long intervalMillis) {
+		while (!closed) {
+			synchronized (this) {
+				try {
+					if (!commitRequested && !closed) {
+						wait(intervalMillis);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				commitRequested = false;
+			}
+			if (closed) {
+				return;
+			}
+			try {
+				commit();
+			} catch (IOException e) {
+				System.err.println("Error while committing the metadata journal.");
+			}
+		}
+	}
+
+	/**
+	 * Writes the running transaction to the journal and releases the blocks it revoked. The commit lock must be held.
+	 *
+	 * @return true if a transaction was written, false if nothing has changed.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private boolean commitRunning()
+			throws IOException {
+		Transaction transaction = collectRunning();
+		if (transaction == null) {
+			return false;
+		}
+		writeTransaction(transaction);
+		for (Revocation revocation : transaction.revocations) {
+			revocation.map.free(revocation.bit);
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the running transaction and starts a new one. The barrier is held while the images of the changed
+	 * blocks are copied, so no operation is halfway done.
+	 *
+	 * @return the closed transaction, null if nothing has changed.
+	 */
+	private Transaction collectRunning() {
+		barrier.lock();
+		try {
+			synchronized (this) {
+				if (running.isEmpty() && revoked.isEmpty()) {
+					return null;
+				}
+				Transaction transaction = new Transaction(sequence++);
+				for (Long block : running) {
+					transaction.images.put(block, blocks.get(block).clone());
+				}
+				transaction.revocations.addAll(revoked);
+				running.clear();
+				revoked.clear();
+				return transaction;
+			}
+		} finally {
+			barrier.unlock();
+		}
+	}
+
+	/**
+	 * Appends the given transaction to the journal and forces it. If the journal doesn't have enough space left, it
+	 * is checkpointed first. A transaction that is larger than the whole journal is written directly to the home
+	 * locations of its blocks, without the protection of the journal.
+	 *
+	 * @param transaction the transaction to write.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void writeTransaction(Transaction transaction)
+			throws IOException {
+		int size = transaction.recordBlocks();
+		if (head + size > regionBlocks) {
+			writeCheckpoint(transaction);
+		}
+		if (head + size > regionBlocks) {
+			for (Map.Entry<Long, byte[]> image : transaction.images.entrySet()) {
+				backing.write(image.getKey() * blockSize, image.getValue());
+			}
+			backing.force();
+			committedSequence = transaction.sequence;
+			reset(transaction.sequence + 1);
+			dropUnchanged(transaction.images.keySet(), null);
+			return;
+		}
+		region.write(regionPosition + (long) head * blockSize, transaction.encode());
+		backing.force();
+		head += size;
+		committed.putAll(transaction.images);
+		for (Revocation revocation : transaction.revocations) {
+			committed.remove(revocation.block);
+		}
+		committedSequence = transaction.sequence;
+	}
+
+	/**
+	 * Writes the committed images to their home locations in ascending block order, forces them and empties the
+	 * journal. The images that haven't changed since they were committed are dropped from memory, except for those
+	 * of the given transaction, which is collected but not written yet.
+	 *
+	 * @param pending the transaction that is being written, null if there is none.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void writeCheckpoint(Transaction pending)
+			throws IOException {
+		if (committed.isEmpty() && head == 1) {
+			return;
+		}
+		for (Map.Entry<Long, byte[]> image : committed.entrySet()) {
+			backing.write(image.getKey() * blockSize, image.getValue());
+		}
+		backing.force();
+		List<Long> written = new ArrayList<>(committed.keySet());
+		committed.clear();
+		reset(committedSequence + 1);
+		dropUnchanged(written, pending);
+	}
+
+	/**
+	 * Drops the given blocks from memory once their images are in their home locations, unless they have changed
+	 * since, or belong to the given transaction.
+	 *
+	 * @param written the blocks whose images have been written home.
+	 * @param pending the transaction that is being written, null if there is none.
+	 */
+	private synchronized void dropUnchanged(Collection<Long> written, Transaction pending) {
+		for (Long block : written) {
+			if (!running.contains(block) && (pending == null || !pending.images.containsKey(block))) {
+				blocks.remove(block);
+			}
+		}
+	}
+
+	/**
+	 * Writes the journal header, which marks the journal as empty, with records starting at the given sequence number.
+	 *
+	 * @param startSequence the sequence number of the first record.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void reset(long startSequence)
+			throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(blockSize);
+		header.putInt(JOURNAL_MAGIC);
+		header.putLong(startSequence);
+		region.write(regionPosition, header.array());
+		backing.force();
+		head = 1;
+	}
+
+	/**
+	 * Reads the record at the given block of the journal region.
+	 *
+	 * @param position         the block of the record, relative to the journal region.
+	 * @param expectedSequence the sequence number that the record must have.
+	 * @return the transaction of the record, null if there is no valid record with the expected sequence number.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private Transaction readRecord(int position, long expectedSequence)
+			throws IOException {
+		if (position >= regionBlocks) {
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.wrap(readRegion(position, 1));
+		if (header.getInt() != RECORD_MAGIC || header.getLong() != expectedSequence) {
+			return null;
+		}
+		int entryCount = header.getInt();
+		int checksum = header.getInt();
+		int entryBlocks = entryBlocks(entryCount);
+		if (entryCount < 0 || position + 1 + entryBlocks > regionBlocks) {
+			return null;
+		}
+		ByteBuffer entries = ByteBuffer.wrap(readRegion(position + 1, entryBlocks));
+		int imageCount = 0;
+		for (int i = 0; i < entryCount; i++) {
+			if (entries.getLong(i * 8) >= 0) {
+				imageCount++;
+			}
+		}
+		int imagesStart = position + 1 + entryBlocks;
+		if (imagesStart + imageCount > regionBlocks) {
+			return null;
+		}
+		byte[] images = readRegion(imagesStart, imageCount);
+		CRC32C crc = new CRC32C();
+		crc.update(header.array(), 4, 12);
+		crc.update(entries.array());
+		crc.update(images);
+		if ((int) crc.getValue() != checksum) {
+			return null;
+		}
+		Transaction transaction = new Transaction(expectedSequence);
+		int image = 0;
+		for (int i = 0; i < entryCount; i++) {
+			long entry = entries.getLong(i * 8);
+			if (entry >= 0) {
+				byte[] bytes = new byte[blockSize];
+				System.arraycopy(images, image++ * blockSize, bytes, 0, blockSize);
+				transaction.images.put(entry, bytes);
+			} else {
+				transaction.revocations.add(new Revocation(-entry - 1, null, -1));
+			}
+		}
+		return transaction;
+	}
+
+	private byte[] readRegion(int firstBlock, int blockCount)
+			throws IOException {
+		byte[] bytes = new byte[blockCount * blockSize];
+		region.read(regionPosition + (long) firstBlock * blockSize, bytes);
+		return bytes;
+	}
+
+	private int entryBlocks(int entryCount) {
+		return (entryCount * 8 + blockSize - 1) / blockSize;
+	}
+
+	/**
+	 * A committed or committing transaction: the images of the blocks it changed and the blocks it revoked.
+	 */
+	private class Transaction {
+		final long sequence;
+		final TreeMap<Long, byte[]> images;
+		final List<Revocation> revocations;
+
+		Transaction(long sequence) {
+			this.sequence = sequence;
+			images = new TreeMap<>();
+			revocations = new ArrayList<>();
+		}
+
+		int entryCount() {
+			return images.size() + revocations.size();
+		}
+
+		int recordBlocks() {
+			return 1 + entryBlocks(entryCount()) + images.size();
+		}
+
+		/**
+		 * Encodes the transaction as a journal record.
+		 *
+		 * @return the bytes of the record.
+		 */
+		byte[] encode() {
+			int entryBlocks = entryBlocks(entryCount());
+			ByteBuffer record = ByteBuffer.allocate(recordBlocks() * blockSize);
+			record.position(blockSize);
+			for (Long block : images.keySet()) {
+				record.putLong(block);
+			}
+			for (Revocation revocation : revocations) {
+				record.putLong(-revocation.block - 1);
+			}
+			record.position((1 + entryBlocks) * blockSize);
+			for (byte[] image : images.values()) {
+				record.put(image);
+			}
+			record.putInt(0, RECORD_MAGIC);
+			record.putLong(4, sequence);
+			record.putInt(12, entryCount());
+			CRC32C crc = new CRC32C();
+			crc.update(record.array(), 4, 12);
+			crc.update(record.array(), blockSize, record.capacity() - blockSize);
+			record.putInt(16, (int) crc.getValue());
+			return record.array();
+		}
+	}
+
+	/**
+	 * A revoked block, which is released in its map once the revoking transaction is committed.
+	 */
+	private static class Revocation {
+		final long block;
+		final FreeSpaceMap map;
+		final int bit;
+
+		Revocation(long block, FreeSpaceMap map, int bit) {
+			this.block = block;
+			this.map = map;
+			this.bit = bit;
+		}
+	}
+}
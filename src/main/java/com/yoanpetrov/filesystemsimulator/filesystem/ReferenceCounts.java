@@ -0,0 +1,201 @@
+package com.yoanpetrov.filesystemsimulator.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import com.yoanpetrov.filesystemsimulator.storage.ContainerStorage;
+
+/**
+ * In-memory copy of the reference count region of the container, which lets several files share the same data
+ * blocks. The region has one byte per data block, holding the amount of references to the block beyond the first
+ * one, so a zeroed region means every allocated block belongs to a single file. Only the changed bytes are written
+ * back to the container.
+ * <p>
+ * A shared block is never written in place: the file that changes it gets a copy of the block first, and the block
+ * is only freed when its last reference is removed. A block can have at most MAX_REFERENCES references, after which
+ * it can't be shared anymore.
+ * <p>
+ * Like the bitmaps, the region has a watermark, which is the amount of bytes at the end of the region that have
+ * never been written, so only the bytes before it are loaded. The counts are kept in pages of PAGE_SIZE blocks,
+ * and a page is only allocated once one of its blocks is shared.
+ * <p>
+ * All methods are synchronized, so the counts can be changed by several threads at once.
+ */
+public class ReferenceCounts {
+
+	/**
+	 * The maximum amount of references to a single data block.
+	 */
+	public static final int MAX_REFERENCES = 256;
+
+	/**
+	 * The amount of blocks whose counts are kept in a single page.
+	 */
+	static final int PAGE_SIZE = 64 * 1024;
+
+	private final ContainerStorage storage;
+	private final long regionPosition;
+	private final long watermarkPosition;
+	private final int blockCount;
+	private final byte[][] pages;
+	private int writtenBytes;
+
+	/**
+	 * Constructs a map of a reference count region, in which no block is shared.
+	 *
+	 * @param storage           the container the region is stored in.
+	 * @param regionPosition    the position of the region in the container, in bytes.
+	 * @param blockCount        the amount of data blocks that the region maps.
+	 * @param watermarkPosition the position of the 4-byte watermark of the region in the container.
+	 */
+	public ReferenceCounts(ContainerStorage storage, long regionPosition, int blockCount, long watermarkPosition) {
+		this.storage = storage;
+		this.regionPosition = regionPosition;
+		this.watermarkPosition = watermarkPosition;
+		this.blockCount = blockCount;
+		pages = new byte[(blockCount + PAGE_SIZE - 1) / PAGE_SIZE][];
+		writtenBytes = blockCount;
+	}
+
+	/**
+	 * Marks the whole region as never written, by writing its watermark. The region itself is not written.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public synchronized void format()
+			throws IOException {
+		Arrays.fill(pages, null);
+		writtenBytes = 0;
+		writeWatermark();
+	}
+
+	/**
+	 * Loads the reference count region from the container, up to its watermark.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public synchronized void load()
+			throws IOException {
+		byte[] watermark = new byte[4];
+		storage.read(watermarkPosition, watermark);
+		int unwrittenBytes = ByteBuffer.wrap(watermark).getInt();
+		if (unwrittenBytes < 0 || unwrittenBytes > blockCount) {
+			throw new IOException("The watermark of the reference count region is corrupted");
+		}
+		writtenBytes = blockCount - unwrittenBytes;
+		Arrays.fill(pages, null);
+		byte[] buffer = new byte[PAGE_SIZE];
+		for (int page = 0; page * PAGE_SIZE < writtenBytes; page++) {
+			int length = Math.min(PAGE_SIZE, writtenBytes - page * PAGE_SIZE);
+			storage.read(regionPosition + (long) page * PAGE_SIZE, buffer, 0, length);
+			for (int i = 0; i < length; i++) {
+				if (buffer[i] != 0) {
+					pages[page] = Arrays.copyOf(buffer, Math.min(PAGE_SIZE, blockCount - page * PAGE_SIZE));
+					Arrays.fill(pages[page], length, pages[page].length, (byte) 0);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the given data block is referenced by more than one file.
+	 *
+	 * @param block the number of the data block.
+	 * @return true if the block is shared, false otherwise.
+	 */
+	public synchronized boolean isShared(int block) {
+		byte[] page = pages[block / PAGE_SIZE];
+		return page != null && page[block % PAGE_SIZE] != 0;
+	}
+
+	/**
+	 * Adds a reference to each of the given data blocks. A block that is given several times gets several
+	 * references. If any of them would get more than the maximum amount of references, no reference is added at all.
+	 *
+	 * @param blocks the numbers of the data blocks.
+	 * @return true if the references were added, false if a block can't be shared anymore.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public synchronized boolean addReferences(int[] blocks)
+			throws IOException {
+		for (int i = 0; i < blocks.length; i++) {
+			int page = blocks[i] / PAGE_SIZE;
+			if (pages[page] == null) {
+				pages[page] = new byte[Math.min(PAGE_SIZE, blockCount - page * PAGE_SIZE)];
+			}
+			if (Byte.toUnsignedInt(pages[page][blocks[i] % PAGE_SIZE]) == MAX_REFERENCES - 1) {
+				for (int j = 0; j < i; j++) {
+					pages[blocks[j] / PAGE_SIZE][blocks[j] % PAGE_SIZE]--;
+				}
+				return false;
+			}
+			pages[page][blocks[i] % PAGE_SIZE]++;
+		}
+		writeCounts(blocks);
+		return true;
+	}
+
+	/**
+	 * Removes a reference from each of the given data blocks.
+	 *
+	 * @param blocks the numbers of the data blocks.
+	 * @return the blocks that lost their last reference and have to be freed.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public synchronized int[] removeReferences(int... blocks)
+			throws IOException {
+		int[] unreferenced = new int[blocks.length];
+		int unreferencedCount = 0;
+		int[] changed = new int[blocks.length];
+		int changedCount = 0;
+		for (int block : blocks) {
+			if (!isShared(block)) {
+				unreferenced[unreferencedCount++] = block;
+			} else {
+				pages[block / PAGE_SIZE][block % PAGE_SIZE]--;
+				changed[changedCount++] = block;
+			}
+		}
+		writeCounts(Arrays.copyOf(changed, changedCount));
+		return Arrays.copyOf(unreferenced, unreferencedCount);
+	}
+
+	/**
+	 * Writes the counts of the given blocks to the container, one write per run of neighbouring blocks within a
+	 * page. The watermark is lowered if a count is written past it.
+	 *
+	 * @param blocks the numbers of the changed blocks.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void writeCounts(int[] blocks)
+			throws IOException {
+		int end = writtenBytes;
+		for (int i = 0; i < blocks.length; ) {
+			int page = blocks[i] / PAGE_SIZE;
+			int pageEnd = (page + 1) * PAGE_SIZE;
+			int length = 1;
+			while (i + length < blocks.length && blocks[i + length] == blocks[i] + length
+					&& blocks[i + length] < pageEnd) {
+				length++;
+			}
+			storage.write(regionPosition + blocks[i], pages[page], blocks[i] % PAGE_SIZE, length);
+			end = Math.max(end, blocks[i] + length);
+			i += length;
+		}
+		if (end > writtenBytes) {
+			writtenBytes = end;
+			writeWatermark();
+		}
+	}
+
+	/**
+	 * Writes the amount of bytes past the watermark to the container.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void writeWatermark()
+			throws IOException {
+		storage.write(watermarkPosition, ByteBuffer.allocate(4).putInt(blockCount - writtenBytes).array());
+	}
+}
@@ -0,0 +1,445 @@
+package com.yoanpetrov.filesystemsimulator.metrics;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import com.yoanpetrov.filesystemsimulator.filestructures.container.SuperBlock;
+
+/**
+ * Counters and histograms of the work done by a file system: the reads and writes of the container, split by the
+ * region they touch, the allocations in the bitmaps, the imported and exported bytes, the deduplicated blocks and the
+ * lookups in the directory tree.
+ * <p>
+ * All metrics are LongAdders or Histograms, so they can be recorded by any amount of threads without locking, and
+ * are cheap enough to always be recorded. Seeks are counted per thread: an access is a seek if it doesn't start where
+ * the previous access of the same thread ended. Reading them sums the per-thread cells, so a value read while the file
+ * system is in use may not include the latest changes. The metrics can be printed, and registered as an MBean so
+ * they can be read over JMX.
+ */
+public class FileSystemMetrics implements FileSystemMetricsMBean {
+
+	/**
+	 * The domain of the object names under which the metrics are registered as MBeans.
+	 */
+	public static final String JMX_DOMAIN = "com.yoanpetrov.filesystemsimulator";
+
+	/**
+	 * The regions of the container that the reads and writes are counted for.
+	 */
+	public enum Region {
+		DATA, INODE, BITMAP, JOURNAL, OTHER
+	}
+
+	private final LongAdder[] blockReads;
+	private final LongAdder[] blockWrites;
+	private final LongAdder bytesRead;
+	private final LongAdder bytesWritten;
+	private final LongAdder seeks;
+	private final LongAdder forces;
+	private final Histogram readTimes;
+	private final Histogram writeTimes;
+	private final Histogram inodeScanLengths;
+	private final Histogram dataScanLengths;
+	private final LongAdder bytesImported;
+	private final LongAdder bytesExported;
+	private final LongAdder deduplicatedBlocks;
+	private final LongAdder treeLookups;
+	private volatile Layout layout;
+	private final ThreadLocal<long[]> lastEnd;
+	private ObjectName objectName;
+
+	public FileSystemMetrics() {
+		blockReads = newAdders(Region.values().length);
+		blockWrites = newAdders(Region.values().length);
+		bytesRead = new LongAdder();
+		bytesWritten = new LongAdder();
+		seeks = new LongAdder();
+		forces = new LongAdder();
+		readTimes = new Histogram();
+		writeTimes = new Histogram();
+		inodeScanLengths = new Histogram();
+		dataScanLengths = new Histogram();
+		bytesImported = new LongAdder();
+		bytesExported = new LongAdder();
+		deduplicatedBlocks = new LongAdder();
+		treeLookups = new LongAdder();
+		lastEnd = ThreadLocal.withInitial(() -> new long[] {-1});
+	}
+
+	/**
+	 * Sets the layout of the container, which the reads and writes are split by. Until it is set, all of them are
+	 * counted in the OTHER region.
+	 *
+	 * @param superBlock the super block of the container.
+	 */
+	public void setLayout(SuperBlock superBlock) {
+		layout = new Layout(superBlock);
+	}
+
+	/**
+	 * Records a read of the container.
+	 *
+	 * @param position the position of the read in the container.
+	 * @param length   the amount of read bytes.
+	 * @param nanos    the time the read took, in nanoseconds.
+	 */
+	public void recordRead(long position, long length, long nanos) {
+		blockReads[regionOf(position).ordinal()].add(blocksTouched(position, length));
+		bytesRead.add(length);
+		readTimes.record(nanos);
+		recordPosition(position, length);
+	}
+
+	/**
+	 * Records a write to the container.
+	 *
+	 * @param position the position of the write in the container.
+	 * @param length   the amount of written bytes.
+	 * @param nanos    the time the write took, in nanoseconds.
+	 */
+	public void recordWrite(long position, long length, long nanos) {
+		blockWrites[regionOf(position).ordinal()].add(blocksTouched(position, length));
+		bytesWritten.add(length);
+		writeTimes.record(nanos);
+		recordPosition(position, length);
+	}
+
+	/**
+	 * Records that the written bytes were forced to the underlying device.
+	 */
+	public void recordForce() {
+		forces.increment();
+	}
+
+	/**
+	 * Returns the histogram of the amount of words that the index node bitmap skips to find a free index node.
+	 *
+	 * @return the histogram of the scan lengths.
+	 */
+	public Histogram inodeScanLengths() {
+		return inodeScanLengths;
+	}
+
+	/**
+	 * Returns the histogram of the amount of words that the data bitmap skips to find a free data block.
+	 *
+	 * @return the histogram of the scan lengths.
+	 */
+	public Histogram dataScanLengths() {
+		return dataScanLengths;
+	}
+
+	/**
+	 * Returns the counter of the lookups of names in the directory tree.
+	 *
+	 * @return the lookup counter.
+	 */
+	public LongAdder treeLookups() {
+		return treeLookups;
+	}
+
+	public void recordImport(long bytes) {
+		bytesImported.add(bytes);
+	}
+
+	public void recordExport(long bytes) {
+		bytesExported.add(bytes);
+	}
+
+	/**
+	 * Records written blocks that referenced an existing block with the same content instead of being written.
+	 *
+	 * @param blocks the amount of deduplicated blocks.
+	 */
+	public void recordDeduplicated(long blocks) {
+		deduplicatedBlocks.add(blocks);
+	}
+
+	/**
+	 * Registers the metrics in the platform MBean server under the given name. An MBean that is already registered
+	 * under the same name is replaced.
+	 *
+	 * @param name the name of the file system, such as the path to its container.
+	 * @throws JMException if the metrics can't be registered.
+	 */
+	public synchronized void register(String name)
+			throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName registeredName = new ObjectName(JMX_DOMAIN + ":type=FileSystem,name=" + ObjectName.quote(name));
+		try {
+			server.registerMBean(this, registeredName);
+		} catch (InstanceAlreadyExistsException e) {
+			server.unregisterMBean(registeredName);
+			server.registerMBean(this, registeredName);
+		}
+		objectName = registeredName;
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server, if they are registered.
+	 *
+	 * @throws JMException if the metrics can't be unregistered.
+	 */
+	public synchronized void unregister()
+			throws JMException {
+		if (objectName == null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(objectName)) {
+			server.unregisterMBean(objectName);
+		}
+		objectName = null;
+	}
+
+	/**
+	 * Prints all metrics to the given stream, in a human-readable form.
+	 *
+	 * @param out the stream to print the metrics to.
+	 */
+	public void print(PrintStream out) {
+		out.printf("%-8s %12s %12s%n", "Region", "Block reads", "Block writes");
+		for (Region region : Region.values()) {
+			out.printf("%-8s %12d %12d%n", region.name().toLowerCase(),
+					blockReads[region.ordinal()].sum(), blockWrites[region.ordinal()].sum());
+		}
+		out.println("Bytes read: " + getBytesRead() + ", written: " + getBytesWritten());
+		out.println("Seeks: " + getSeeks() + ", forces: " + getForces());
+		out.println("Read time (ns): " + readTimes);
+		out.println("Write time (ns): " + writeTimes);
+		out.println("Inode bitmap scan (words): " + inodeScanLengths);
+		out.println("Data bitmap scan (words): " + dataScanLengths);
+		out.println("Bytes imported: " + getBytesImported() + ", exported: " + getBytesExported());
+		out.println("Deduplicated blocks: " + getDeduplicatedBlocks());
+		out.println("Tree lookups: " + getTreeLookups());
+	}
+
+	@Override
+	public long getDataBlockReads() {
+		return blockReads[Region.DATA.ordinal()].sum();
+	}
+
+	@Override
+	public long getDataBlockWrites() {
+		return blockWrites[Region.DATA.ordinal()].sum();
+	}
+
+	@Override
+	public long getInodeBlockReads() {
+		return blockReads[Region.INODE.ordinal()].sum();
+	}
+
+	@Override
+	public long getInodeBlockWrites() {
+		return blockWrites[Region.INODE.ordinal()].sum();
+	}
+
+	@Override
+	public long getBitmapBlockReads() {
+		return blockReads[Region.BITMAP.ordinal()].sum();
+	}
+
+	@Override
+	public long getBitmapBlockWrites() {
+		return blockWrites[Region.BITMAP.ordinal()].sum();
+	}
+
+	@Override
+	public long getJournalBlockReads() {
+		return blockReads[Region.JOURNAL.ordinal()].sum();
+	}
+
+	@Override
+	public long getJournalBlockWrites() {
+		return blockWrites[Region.JOURNAL.ordinal()].sum();
+	}
+
+	@Override
+	public long getOtherBlockReads() {
+		return blockReads[Region.OTHER.ordinal()].sum();
+	}
+
+	@Override
+	public long getOtherBlockWrites() {
+		return blockWrites[Region.OTHER.ordinal()].sum();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getSeeks() {
+		return seeks.sum();
+	}
+
+	@Override
+	public long getForces() {
+		return forces.sum();
+	}
+
+	@Override
+	public double getMeanReadTime() {
+		return readTimes.getMean();
+	}
+
+	@Override
+	public long getReadTime99thPercentile() {
+		return readTimes.getPercentile(99);
+	}
+
+	@Override
+	public double getMeanWriteTime() {
+		return writeTimes.getMean();
+	}
+
+	@Override
+	public long getWriteTime99thPercentile() {
+		return writeTimes.getPercentile(99);
+	}
+
+	@Override
+	public double getMeanInodeScanLength() {
+		return inodeScanLengths.getMean();
+	}
+
+	@Override
+	public long getMaxInodeScanLength() {
+		return inodeScanLengths.getMax();
+	}
+
+	@Override
+	public double getMeanDataScanLength() {
+		return dataScanLengths.getMean();
+	}
+
+	@Override
+	public long getMaxDataScanLength() {
+		return dataScanLengths.getMax();
+	}
+
+	@Override
+	public long getBytesImported() {
+		return bytesImported.sum();
+	}
+
+	@Override
+	public long getBytesExported() {
+		return bytesExported.sum();
+	}
+
+	@Override
+	public long getDeduplicatedBlocks() {
+		return deduplicatedBlocks.sum();
+	}
+
+	@Override
+	public long getTreeLookups() {
+		return treeLookups.sum();
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < blockReads.length; i++) {
+			blockReads[i].reset();
+			blockWrites[i].reset();
+		}
+		bytesRead.reset();
+		bytesWritten.reset();
+		seeks.reset();
+		forces.reset();
+		readTimes.reset();
+		writeTimes.reset();
+		inodeScanLengths.reset();
+		dataScanLengths.reset();
+		bytesImported.reset();
+		bytesExported.reset();
+		deduplicatedBlocks.reset();
+		treeLookups.reset();
+	}
+
+	/**
+	 * Counts an access as a seek if it doesn't start where the previous access of the calling thread ended.
+	 *
+	 * @param position the position of the access in the container.
+	 * @param length   the amount of accessed bytes.
+	 */
+	private void recordPosition(long position, long length) {
+		long[] end = lastEnd.get();
+		if (position != end[0]) {
+			seeks.increment();
+		}
+		end[0] = position + length;
+	}
+
+	private Region regionOf(long position) {
+		Layout current = layout;
+		return current == null ? Region.OTHER : current.regionOf(position / current.blockSize);
+	}
+
+	private long blocksTouched(long position, long length) {
+		if (length <= 0) {
+			return 0;
+		}
+		Layout current = layout;
+		int blockSize = current == null ? SuperBlock.DEFAULT_BLOCK_SIZE : current.blockSize;
+		return (position + length - 1) / blockSize - position / blockSize + 1;
+	}
+
+	private static LongAdder[] newAdders(int count) {
+		LongAdder[] adders = new LongAdder[count];
+		for (int i = 0; i < count; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+	/**
+	 * The boundaries of the regions of a container, in blocks.
+	 */
+	private static class Layout {
+		final int blockSize;
+		final long bitmapStart;
+		final long inodeStart;
+		final long dataStart;
+		final long dataEnd;
+		final long journalStart;
+		final long journalEnd;
+
+		Layout(SuperBlock superBlock) {
+			blockSize = superBlock.getBlockSize();
+			bitmapStart = superBlock.getInodeBitmapOffset();
+			inodeStart = superBlock.getInodeBlockOffset();
+			dataStart = superBlock.getDataBlockOffset();
+			dataEnd = dataStart + superBlock.getDataBlockCount();
+			journalStart = superBlock.getJournalOffset();
+			journalEnd = journalStart + superBlock.getJournalBlockCount();
+		}
+
+		Region regionOf(long block) {
+			if (block >= dataStart && block < dataEnd) {
+				return Region.DATA;
+			}
+			if (block >= inodeStart && block < dataStart) {
+				return Region.INODE;
+			}
+			if (block >= bitmapStart && block < inodeStart) {
+				return Region.BITMAP;
+			}
+			if (block >= journalStart && block < journalEnd) {
+				return Region.JOURNAL;
+			}
+			return Region.OTHER;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.yoanpetrov.filesystemsimulator.metrics;
+
+/**
+ * Management interface of FileSystemMetrics, through which the metrics of a file system are exposed over JMX.
+ * The block counts are the amount of blocks that the reads and writes of the container touched, and the times are
+ * in nanoseconds.
+ */
+public interface FileSystemMetricsMBean {
+
+	long getDataBlockReads();
+
+	long getDataBlockWrites();
+
+	long getInodeBlockReads();
+
+	long getInodeBlockWrites();
+
+	long getBitmapBlockReads();
+
+	long getBitmapBlockWrites();
+
+	long getJournalBlockReads();
+
+	long getJournalBlockWrites();
+
+	long getOtherBlockReads();
+
+	long getOtherBlockWrites();
+
+	long getBytesRead();
+
+	long getBytesWritten();
+
+	long getSeeks();
+
+	long getForces();
+
+	double getMeanReadTime();
+
+	long getReadTime99thPercentile();
+
+	double getMeanWriteTime();
+
+	long getWriteTime99thPercentile();
+
+	double getMeanInodeScanLength();
+
+	long getMaxInodeScanLength();
+
+	double getMeanDataScanLength();
+
+	long getMaxDataScanLength();
+
+	long getBytesImported();
+
+	long getBytesExported();
+
+	long getDeduplicatedBlocks();
+
+	long getTreeLookups();
+
+	/**
+	 * Resets all metrics to zero.
+	 */
+	void reset();
+}
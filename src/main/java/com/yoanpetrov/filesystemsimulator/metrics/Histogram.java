@@ -0,0 +1,120 @@
+package com.yoanpetrov.filesystemsimulator.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values, with a bucket per power of two: bucket 0 counts the zeros and bucket i counts
+ * the values between 2^(i-1) and 2^i - 1. Recording a value only increments a few LongAdders, so it doesn't take
+ * any lock and threads that record at the same time rarely contend. The percentiles are only as exact as the
+ * buckets: a percentile is reported as the upper bound of the bucket it falls in.
+ */
+public class Histogram {
+
+	static final int BUCKET_COUNT = 64;
+
+	private final LongAdder[] buckets;
+	private final LongAdder sum;
+	private final LongAccumulator max;
+
+	public Histogram() {
+		buckets = new LongAdder[BUCKET_COUNT];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+		sum = new LongAdder();
+		max = new LongAccumulator(Math::max, 0);
+	}
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 *
+	 * @param value the value to record.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets[Long.SIZE - Long.numberOfLeadingZeros(value)].increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Returns the amount of recorded values.
+	 *
+	 * @return the amount of values.
+	 */
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of the recorded values.
+	 *
+	 * @return the mean, 0 if no values have been recorded.
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) getSum() / count;
+	}
+
+	/**
+	 * Returns an upper bound of the given percentile of the recorded values.
+	 *
+	 * @param percentile the percentile, between 0 and 100.
+	 * @return the upper bound of the bucket that the percentile falls in, capped at the maximum recorded value,
+	 * 0 if no values have been recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[buckets.length];
+		long count = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return Math.min((1L << i) - 1, getMax());
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Forgets all recorded values. Values that are recorded at the same time may be partly kept.
+	 */
+	public void reset() {
+		for (LongAdder bucket : buckets) {
+			bucket.reset();
+		}
+		sum.reset();
+		max.reset();
+	}
+
+	/**
+	 * Returns a summary of the recorded values: their count, mean, median, 99th percentile and maximum.
+	 *
+	 * @return the summary.
+	 */
+	@Override
+	public String toString() {
+		return String.format("count %d, mean %.1f, p50 %d, p99 %d, max %d",
+				getCount(), getMean(), getPercentile(50), getPercentile(99), getMax());
+	}
+}
@@ -1,5 +1,6 @@
 package com.yoanpetrov.filesystemsimulator.parser;
 
+import java.io.PrintStream;
 import com.yoanpetrov.filesystemsimulator.utils.StringManipulator;
 
 /**
@@ -22,7 +23,9 @@ public final class Command {
 			"cat",
 			"write",
 			"import",
-			"export"
+			"export",
+			"sync",
+			"stats"
 	};
 
 	/**
@@ -33,12 +36,14 @@ public final class Command {
 			"rmdir",
 			"ls",
 			"cd <name> or cd <name1/name2/...> or cd .. for parent dir or cd / for root dir",
-			"cp <source_name> <dest_name>",
-			"rm <file_name>",
-			"cat <file_name>",
-			"write <file_name> \"<content>\" or write +append <file_name> \"<content>\"",
-			"import <ext_path> <file_name> or import +append <ext_path> <file_name> \"<content>\"",
-			"export <file_name> <ext_path>"
+			"cp <source_name> <dest_name> or cp +r <source_name> <dest_name>",
+			"rm <file_name> or rm +r <name>",
+			"cat <file_name> or cat +at <offset> <length> <file_name>",
+			"write <file_name> \"<content>\" or write +append <file_name> \"<content>\" or write +at <offset> <file_name> \"<content>\"",
+			"import <ext_path> <file_name> or import +append <ext_path> <file_name> \"<content>\" or import +r <ext_dir> <dir_name>",
+			"export <file_name> <ext_path>",
+			"sync",
+			"stats or stats +reset"
 	};
 
 	/**
@@ -80,6 +85,12 @@ public final class Command {
 			case "export" -> {
 				return COMMAND_USAGES[9];
 			}
+			case "sync" -> {
+				return COMMAND_USAGES[10];
+			}
+			case "stats" -> {
+				return COMMAND_USAGES[11];
+			}
 			default -> {
 				return null;
 			}
@@ -106,9 +117,18 @@ public final class Command {
 	 * Prints the usages of all commands.
 	 */
 	public static void printCommandUsages() {
-		System.out.println("Commands and their usages:");
+		printCommandUsages(System.out);
+	}
+
+	/**
+	 * Prints the usages of all commands to the given stream.
+	 *
+	 * @param out the stream to print the usages to.
+	 */
+	public static void printCommandUsages(PrintStream out) {
+		out.println("Commands and their usages:");
 		for (String usage : COMMAND_USAGES) {
-			System.out.println(usage);
+			out.println(usage);
 		}
 	}
 }
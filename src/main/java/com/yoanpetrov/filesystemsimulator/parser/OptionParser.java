@@ -1,5 +1,9 @@
 package com.yoanpetrov.filesystemsimulator.parser;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
 import com.yoanpetrov.filesystemsimulator.exceptions.FileSystemException;
 import com.yoanpetrov.filesystemsimulator.filestructures.data.FileType;
 import com.yoanpetrov.filesystemsimulator.filesystem.FileSystem;
@@ -7,10 +11,31 @@ import com.yoanpetrov.filesystemsimulator.utils.StringManipulator;
 
 public class OptionParser {
 
+	/**
+	 * The default amount of commands after which the metadata deferred by a batch is written to the container.
+	 */
+	public static final int DEFAULT_FLUSH_INTERVAL = 1000;
+
+	/**
+	 * The size of the buffer that collects the output of a batch before it is written to the console.
+	 */
+	static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
 	private final FileSystem fileSystem;
+	private PrintStream out;
 
 	public OptionParser(FileSystem system) {
+		this(system, System.out);
+	}
+
+	/**
+	 * Constructs a parser, which prints the output of the commands to the given stream.
+	 * @param system the file system to execute the commands on.
+	 * @param out the stream to print the output to.
+	 */
+	public OptionParser(FileSystem system, PrintStream out) {
 		fileSystem = system;
+		this.out = out;
 	}
 
 	/**
@@ -32,6 +57,51 @@ public class OptionParser {
 		return parse(args);
 	}
 
+	/**
+	 * Executes the commands from the given reader, one command per line, until the input ends or an exit command
+	 * is executed. No prompts are printed and the output of the commands is buffered. The index node and bitmap
+	 * changes are deferred and written to the container after every flushInterval commands and at the end of the
+	 * batch, even if the batch stops because of an error.
+	 * @param commands the reader to read the commands from.
+	 * @param flushInterval the amount of commands after which the deferred metadata is written, 0 to write it only
+	 *                      at the end of the batch.
+	 * @return the amount of executed commands.
+	 * @throws IOException if an i/o error occurs while reading the commands.
+	 */
+	public int executeBatch(BufferedReader commands, int flushInterval)
+			throws IOException {
+		PrintStream console = out;
+		out = new PrintStream(new BufferedOutputStream(console, OUTPUT_BUFFER_SIZE), false);
+		int executed = 0;
+		boolean started = false;
+		try {
+			fileSystem.beginBatch();
+			started = true;
+			String command;
+			boolean exit = false;
+			while (!exit && (command = commands.readLine()) != null) {
+				exit = executeCommand(command);
+				executed++;
+				if (flushInterval > 0 && executed % flushInterval == 0) {
+					fileSystem.flushMetadata();
+				}
+			}
+		} catch (FileSystemException e) {
+			printError(e);
+		} finally {
+			if (started) {
+				try {
+					fileSystem.endBatch();
+				} catch (FileSystemException e) {
+					printError(e);
+				}
+			}
+			out.flush();
+			out = console;
+		}
+		return executed;
+	}
+
 	/**
 	 * Validates the command after it has been split into tokens.
 	 * @param args the command tokens.
@@ -43,7 +113,7 @@ public class OptionParser {
 			args[i] = StringManipulator.removeQuotes(args[i]);
 			if ("".equals(args[i])) {
 				if ("write".equals(args[0])) {
-					if ((args.length == 3 && i == 2) || (args.length == 4 && i == 3))
+					if ((args.length == 3 && i == 2) || (args.length == 4 && i == 3) || (args.length == 5 && i == 4))
 						continue;
 				}
 				if ("import".equals(args[0])) {
@@ -77,8 +147,10 @@ public class OptionParser {
 			case "write" -> write(args);
 			case "import" -> importFile(args);
 			case "export" -> exportFile(args);
+			case "sync" -> sync();
+			case "stats" -> stats(args);
 			case "exit" -> exit = true;
-			default -> System.out.println("ERROR - Invalid command");
+			default -> out.println("ERROR - Invalid command");
 		}
 		return exit;
 	}
@@ -115,7 +187,7 @@ public class OptionParser {
 	 * Lists the content of the current directory.
 	 */
 	private void ls() {
-		fileSystem.listCurrentDir();
+		fileSystem.listCurrentDir(out);
 	}
 
 	/**
@@ -136,6 +208,8 @@ public class OptionParser {
 
 	/**
 	 * Copies a file to another file in the file system.
+	 * The additional +r option can be passed as an argument, which copies a file or a directory together with
+	 * everything below it, and prints the amount of copied files and directories and the time it took.
 	 * @param args the command's arguments.
 	 */
 	private void cp(String[] args) {
@@ -144,7 +218,17 @@ public class OptionParser {
 			return;
 		}
 		try {
-			fileSystem.copyFile(args[1], args[2]);
+			if ("+r".equals(args[1])) {
+				if (args.length < 4) {
+					printArgsError("cp");
+					return;
+				}
+				long start = System.nanoTime();
+				int copied = fileSystem.copyRecursive(args[2], args[3]);
+				printThroughput("Copied", copied, System.nanoTime() - start);
+			} else {
+				fileSystem.copyFile(args[1], args[2]);
+			}
 		} catch (FileSystemException e) {
 			printError(e);
 		}
@@ -152,6 +236,8 @@ public class OptionParser {
 
 	/**
 	 * Deletes a file from the file system.
+	 * The additional +r option can be passed as an argument, which deletes a file or a directory together with
+	 * everything below it, and prints the amount of deleted files and directories and the time it took.
 	 * @param args the command's arguments.
 	 */
 	private void rm(String[] args) {
@@ -160,7 +246,17 @@ public class OptionParser {
 			return;
 		}
 		try {
-			fileSystem.deleteFile(args[1]);
+			if ("+r".equals(args[1])) {
+				if (args.length < 3) {
+					printArgsError("rm");
+					return;
+				}
+				long start = System.nanoTime();
+				int removed = fileSystem.removeRecursive(args[2]);
+				printThroughput("Deleted", removed, System.nanoTime() - start);
+			} else {
+				fileSystem.deleteFile(args[1]);
+			}
 		} catch (FileSystemException e) {
 			printError(e);
 		}
@@ -168,6 +264,8 @@ public class OptionParser {
 
 	/**
 	 * Prints the content of a file on the screen.
+	 * The additional +at option can be passed as an argument along with an offset and a length,
+	 * which prints only the given range of the file.
 	 * @param args the command's arguments.
 	 */
 	private void cat(String[] args) {
@@ -176,7 +274,17 @@ public class OptionParser {
 			return;
 		}
 		try {
-			fileSystem.printFile(args[1]);
+			if ("+at".equals(args[1])) {
+				if (args.length < 5) {
+					printArgsError("cat");
+					return;
+				}
+				byte[] bytes = fileSystem.readAt(args[4], parseNumber(args[2]), (int) parseNumber(args[3]));
+				out.write(bytes, 0, bytes.length);
+				out.println();
+			} else {
+				fileSystem.printFile(args[1], out);
+			}
 		} catch (FileSystemException e) {
 			printError(e);
 		}
@@ -185,7 +293,8 @@ public class OptionParser {
 	/**
 	 * Writes the given string to a file in the file system. If the file exists, it gets overridden.
 	 * The additional +append option can be passed as an argument, which appends the given string to the file's end
-	 * instead of overriding its content.
+	 * instead of overriding its content. The additional +at option can be passed as an argument along with an offset,
+	 * which writes the given string over the file's content, starting at that offset.
 	 *
 	 * @param args the command's arguments.
 	 */
@@ -201,6 +310,12 @@ public class OptionParser {
 					return;
 				}
 				fileSystem.appendToFile(args[2], args[3].getBytes());
+			} else if ("+at".equals(args[1])) {
+				if (args.length < 5) {
+					printArgsError("write");
+					return;
+				}
+				fileSystem.writeAt(args[3], parseNumber(args[2]), args[4].getBytes());
 			} else {
 				fileSystem.writeToFile(args[1], args[2].getBytes());
 			}
@@ -212,7 +327,9 @@ public class OptionParser {
 	/**
 	 * Imports a file from the external file system into the internal file system.
 	 * The additional +append option can be passed as an argument along with a string,
-	 * which appends the given string to the imported file's end.
+	 * which appends the given string to the imported file's end. The additional +r option can be passed as an
+	 * argument, which imports a directory together with everything below it, and prints the amount of imported
+	 * files and directories and the time it took.
 	 * @param args the command's arguments.
 	 */
 	private void importFile(String[] args) {
@@ -221,7 +338,15 @@ public class OptionParser {
 			return;
 		}
 		try {
-			if ("+append".equals(args[1])) {
+			if ("+r".equals(args[1])) {
+				if (args.length < 4) {
+					printArgsError("import");
+					return;
+				}
+				long start = System.nanoTime();
+				int imported = fileSystem.importRecursive(args[2], args[3]);
+				printThroughput("Imported", imported, System.nanoTime() - start);
+			} else if ("+append".equals(args[1])) {
 				if (args.length < 5) {
 					printArgsError("import");
 					return;
@@ -252,19 +377,76 @@ public class OptionParser {
 		}
 	}
 
+	/**
+	 * Writes all cached changes to the container.
+	 */
+	private void sync() {
+		try {
+			fileSystem.sync();
+		} catch (FileSystemException e) {
+			printError(e);
+		}
+	}
+
+	/**
+	 * Prints the metrics of the file system. The additional +reset option can be passed as an argument, which
+	 * resets the metrics to zero instead.
+	 * @param args the command's arguments.
+	 */
+	private void stats(String[] args) {
+		if (args.length > 1 && "+reset".equals(args[1])) {
+			fileSystem.getMetrics().reset();
+		} else {
+			fileSystem.printStats(out);
+		}
+	}
+
+	/**
+	 * Prints the amount of files and directories that a recursive command handled, the time it took and the amount
+	 * handled per second.
+	 * @param action the past tense of the action, such as "Copied".
+	 * @param count the amount of handled files and directories.
+	 * @param nanos the time the command took, in nanoseconds.
+	 */
+	private void printThroughput(String action, int count, long nanos) {
+		double seconds = Math.max(nanos, 1) / 1e9;
+		out.printf("%s %d files/directories in %.1f ms (%.0f per second)%n",
+				action, count, nanos / 1e6, count / seconds);
+	}
+
+	/**
+	 * Parses a numeric command argument, such as an offset or a length.
+	 * @param arg the argument to parse.
+	 * @return the parsed number.
+	 * @throws FileSystemException if the argument is not a valid non-negative number.
+	 */
+	private static long parseNumber(String arg)
+			throws FileSystemException {
+		try {
+			long number = Long.parseLong(arg);
+			if (number >= 0 && number <= Integer.MAX_VALUE) {
+				return number;
+			}
+		} catch (NumberFormatException e) {
+			// Handled below.
+		}
+		throw new FileSystemException(
+				"Invalid number: " + arg);
+	}
+
 	/**
 	 * Prints the usages of all available commands.
 	 */
 	private void printHelp() {
-		Command.printCommandUsages();
+		Command.printCommandUsages(out);
 	}
 
 	/**
 	 * Prints an error message.
 	 * @param e the exception to get the error message from.
 	 */
-	private static void printError(FileSystemException e) {
-		System.out.println("ERROR - " + e.getMessage());
+	private void printError(FileSystemException e) {
+		out.println("ERROR - " + e.getMessage());
 	}
 
 	/**
@@ -274,7 +456,7 @@ public class OptionParser {
 	 */
 	private void printArgsError(String commandName) {
 		if (Command.exists(commandName))
-			System.out.println("ERROR - Not enough arguments provided! "
+			out.println("ERROR - Not enough arguments provided! "
 					+ "Usage: " + Command.usageOf(commandName));
 	}
 }
@@ -0,0 +1,248 @@
+package com.yoanpetrov.filesystemsimulator.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import com.yoanpetrov.filesystemsimulator.filesystem.FileSystem;
+
+/**
+ * Command server, which lets many clients execute commands on a shared file system at the same time. The server
+ * listens on the loopback interface and speaks the same line based protocol as the console: the client sends one
+ * command per line and the server answers with the output of the command, followed by a prompt.
+ * <p>
+ * A single selector thread accepts the connections and reads and writes all sockets without blocking. Complete
+ * command lines are executed on a fixed pool of worker threads, so the amount of threads doesn't depend on the
+ * amount of connected clients. The commands of a session are executed one at a time, in the order they were sent,
+ * and each session has its own current directory.
+ */
+public class CommandServer implements Closeable {
+
+	/**
+	 * The default amount of threads that execute the commands of the sessions.
+	 */
+	public static final int DEFAULT_WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The maximum amount of connections that wait to be accepted.
+	 */
+	static final int BACKLOG = 4096;
+
+	/**
+	 * The size of the buffer that the sockets are read into.
+	 */
+	static final int READ_BUFFER_SIZE = 16 * 1024;
+
+	private final FileSystem fileSystem;
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final ExecutorService workers;
+	private final ConcurrentLinkedQueue<Session> pendingUpdates;
+	private final ByteBuffer readBuffer;
+	private final CountDownLatch stopped;
+	private final int port;
+	private volatile boolean running;
+
+	/**
+	 * Constructs a server for the given file system and binds it to the given port of the loopback interface.
+	 *
+	 * @param fileSystem  the file system to execute the commands on.
+	 * @param port        the port to listen on, 0 to pick a free port.
+	 * @param workerCount the amount of threads that execute commands.
+	 * @throws IOException if the server can't be bound to the port.
+	 */
+	public CommandServer(FileSystem fileSystem, int port, int workerCount)
+			throws IOException {
+		this.fileSystem = fileSystem;
+		serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+			serverChannel.configureBlocking(false);
+			selector = Selector.open();
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			serverChannel.close();
+			throw e;
+		}
+		this.port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+		workers = Executors.newFixedThreadPool(Math.max(workerCount, 1), task -> {
+			Thread thread = new Thread(task, "session-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		pendingUpdates = new ConcurrentLinkedQueue<>();
+		readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		stopped = new CountDownLatch(1);
+		running = true;
+	}
+
+	/**
+	 * Returns the port that the server listens on.
+	 *
+	 * @return the port of the server.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Accepts connections and serves the sessions until close() is called. Blocks the calling thread, which becomes
+	 * the selector thread of the server.
+	 *
+	 * @throws IOException if an i/o error occurs on the server socket.
+	 */
+	public void run()
+			throws IOException {
+		try {
+			while (running) {
+				selector.select();
+				Session session;
+				while ((session = pendingUpdates.poll()) != null) {
+					update(session);
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						serve((Session) key.attachment(), key);
+					}
+				}
+			}
+		} finally {
+			shutDown();
+		}
+	}
+
+	/**
+	 * Stops the server and waits until the commands that are being executed are finished. All connections are
+	 * closed. The file system is not closed.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		selector.wakeup();
+		try {
+			stopped.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Executes the pending commands of the given session on a worker thread.
+	 *
+	 * @param session the session.
+	 */
+	void execute(Session session) {
+		workers.execute(session::executeCommands);
+	}
+
+	/**
+	 * Asks the selector thread to update the socket of the given session, after a worker thread has produced output
+	 * or finished the pending commands.
+	 *
+	 * @param session the session.
+	 */
+	void requestUpdate(Session session) {
+		pendingUpdates.add(session);
+		selector.wakeup();
+	}
+
+	/**
+	 * Returns the buffer that the sockets are read into. Only used by the selector thread.
+	 *
+	 * @return the read buffer.
+	 */
+	ByteBuffer readBuffer() {
+		return readBuffer;
+	}
+
+	/**
+	 * Accepts all waiting connections and starts a session for each of them.
+	 *
+	 * @throws IOException if an i/o error occurs on the server socket.
+	 */
+	private void accept()
+			throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			SelectionKey key = channel.register(selector, 0);
+			Session session = new Session(this, fileSystem, channel, key);
+			key.attach(session);
+			session.start();
+			update(session);
+		}
+	}
+
+	/**
+	 * Reads from and writes to the socket of the given session, depending on what it's ready for.
+	 *
+	 * @param session the session.
+	 * @param key     the selection key of the session's socket.
+	 */
+	private void serve(Session session, SelectionKey key) {
+		try {
+			if (key.isReadable()) {
+				session.read();
+			}
+			if (key.isValid() && key.isWritable()) {
+				session.write();
+			}
+		} catch (IOException e) {
+			session.close();
+		}
+	}
+
+	private void update(Session session) {
+		try {
+			session.updateInterest();
+		} catch (IOException e) {
+			session.close();
+		}
+	}
+
+	/**
+	 * Closes all connections and the server socket, and waits for the worker threads to finish.
+	 *
+	 * @throws IOException if an i/o error occurs while closing the server socket.
+	 */
+	private void shutDown()
+			throws IOException {
+		try {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Session session) {
+					session.close();
+				}
+			}
+			workers.shutdown();
+			workers.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				selector.close();
+				serverChannel.close();
+			} finally {
+				stopped.countDown();
+			}
+		}
+	}
+}
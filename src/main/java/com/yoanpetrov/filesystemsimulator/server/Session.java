@@ -0,0 +1,255 @@
+package com.yoanpetrov.filesystemsimulator.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import com.yoanpetrov.filesystemsimulator.filestructures.data.DirectoryTree;
+import com.yoanpetrov.filesystemsimulator.filesystem.FileSystem;
+import com.yoanpetrov.filesystemsimulator.parser.OptionParser;
+
+/**
+ * A connection to the command server. The session splits the received bytes into command lines, executes them in
+ * order on the worker threads of the server and queues their output, which the selector thread writes to the socket.
+ * Each session has its own cursor in the directory tree, so its current directory is independent of the other
+ * sessions.
+ */
+class Session {
+
+	/**
+	 * The maximum length of a single command line in bytes.
+	 */
+	static final int MAX_LINE_LENGTH = 16 * 1024 * 1024;
+
+	/**
+	 * The amount of received commands that are waiting to be executed, after which the socket isn't read anymore
+	 * until some of them are executed.
+	 */
+	static final int MAX_QUEUED_COMMANDS = 64;
+
+	static final String GREETING = "----- Simplified UNIX file system simulator -----\n";
+
+	private final CommandServer server;
+	private final FileSystem fileSystem;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final DirectoryTree.Cursor cursor;
+	private final ByteArrayOutputStream outputBytes;
+	private final PrintStream output;
+	private final OptionParser parser;
+	private final ByteArrayOutputStream line;
+	private final ArrayDeque<String> commands;
+	private final ArrayDeque<ByteBuffer> outgoing;
+	private boolean executing;
+	private boolean inputEnded;
+	private boolean exited;
+
+	Session(CommandServer server, FileSystem fileSystem, SocketChannel channel, SelectionKey key) {
+		this.server = server;
+		this.fileSystem = fileSystem;
+		this.channel = channel;
+		this.key = key;
+		cursor = fileSystem.newCursor();
+		outputBytes = new ByteArrayOutputStream();
+		output = new PrintStream(outputBytes, false);
+		parser = new OptionParser(fileSystem, output);
+		line = new ByteArrayOutputStream();
+		commands = new ArrayDeque<>();
+		outgoing = new ArrayDeque<>();
+	}
+
+	/**
+	 * Sends the greeting and the first prompt to the client.
+	 */
+	void start() {
+		output.print(GREETING);
+		printPrompt();
+		send();
+	}
+
+	/**
+	 * Reads the available bytes from the socket and queues the complete command lines for execution.
+	 * Called by the selector thread.
+	 *
+	 * @throws IOException if an i/o error occurs, or if a command line is too long.
+	 */
+	void read()
+			throws IOException {
+		ByteBuffer buffer = server.readBuffer();
+		buffer.clear();
+		if (channel.read(buffer) == -1) {
+			synchronized (this) {
+				inputEnded = true;
+			}
+			updateInterest();
+			return;
+		}
+		byte[] bytes = buffer.array();
+		int start = 0;
+		for (int i = 0; i < buffer.position(); i++) {
+			if (bytes[i] == '\n') {
+				line.write(bytes, start, i - start);
+				completeLine();
+				start = i + 1;
+			}
+		}
+		line.write(bytes, start, buffer.position() - start);
+		if (line.size() > MAX_LINE_LENGTH) {
+			throw new IOException("The command line is too long");
+		}
+		updateInterest();
+	}
+
+	/**
+	 * Writes the queued output to the socket, as much as it accepts without blocking. Called by the selector thread.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	synchronized void write()
+			throws IOException {
+		while (!outgoing.isEmpty()) {
+			ByteBuffer buffer = outgoing.peek();
+			channel.write(buffer);
+			if (buffer.hasRemaining()) {
+				break;
+			}
+			outgoing.poll();
+		}
+		updateInterest();
+	}
+
+	/**
+	 * Updates the operations that the selector waits for on the socket, and closes the session once it has ended
+	 * and all of its output is written. Called by the selector thread.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	synchronized void updateInterest()
+			throws IOException {
+		if (!key.isValid()) {
+			return;
+		}
+		boolean ended = inputEnded || exited;
+		if (ended && !executing && commands.isEmpty() && outgoing.isEmpty()) {
+			close();
+			return;
+		}
+		int operations = 0;
+		if (!outgoing.isEmpty()) {
+			operations |= SelectionKey.OP_WRITE;
+		}
+		if (!ended && commands.size() < MAX_QUEUED_COMMANDS) {
+			operations |= SelectionKey.OP_READ;
+		}
+		key.interestOps(operations);
+	}
+
+	/**
+	 * Executes the queued commands one after another, until there are no more. Called on a worker thread of the
+	 * server, for at most one task of the session at a time.
+	 */
+	void executeCommands() {
+		String command;
+		while ((command = nextCommand()) != null) {
+			fileSystem.useCursor(cursor);
+			try {
+				if (parser.executeCommand(command)) {
+					synchronized (this) {
+						exited = true;
+					}
+				} else {
+					printPrompt();
+				}
+			} catch (RuntimeException e) {
+				output.println("ERROR - " + e.getMessage());
+				printPrompt();
+			} finally {
+				fileSystem.useCursor(null);
+			}
+			send();
+			server.requestUpdate(this);
+		}
+		server.requestUpdate(this);
+	}
+
+	/**
+	 * Closes the socket of the session. Commands that are still queued are not executed.
+	 */
+	synchronized void close() {
+		key.cancel();
+		commands.clear();
+		outgoing.clear();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// The connection is dropped either way.
+		}
+	}
+
+	/**
+	 * Queues the line that has been collected so far for execution, without the line terminator.
+	 */
+	private void completeLine() {
+		int length = line.size();
+		byte[] bytes = line.toByteArray();
+		if (length > 0 && bytes[length - 1] == '\r') {
+			length--;
+		}
+		line.reset();
+		String command = new String(bytes, 0, length);
+		synchronized (this) {
+			if (exited || !key.isValid()) {
+				return;
+			}
+			commands.add(command);
+			if (!executing) {
+				executing = true;
+				server.execute(this);
+			}
+		}
+	}
+
+	/**
+	 * Returns the next command to execute. If there are none, the session stops executing until the next command
+	 * is received.
+	 *
+	 * @return the next command, null if there are no more commands.
+	 */
+	private synchronized String nextCommand() {
+		String command = exited ? null : commands.poll();
+		if (command == null) {
+			commands.clear();
+			executing = false;
+		}
+		return command;
+	}
+
+	private void printPrompt() {
+		fileSystem.useCursor(cursor);
+		try {
+			output.print(fileSystem.getSystemPath() + "> ");
+		} finally {
+			fileSystem.useCursor(null);
+		}
+	}
+
+	/**
+	 * Moves the output that has been printed so far to the queue of bytes to be written to the socket.
+	 */
+	private void send() {
+		output.flush();
+		if (outputBytes.size() == 0) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(outputBytes.toByteArray());
+		outputBytes.reset();
+		synchronized (this) {
+			if (key.isValid()) {
+				outgoing.add(buffer);
+			}
+		}
+	}
+}
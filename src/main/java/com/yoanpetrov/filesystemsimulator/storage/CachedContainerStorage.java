@@ -0,0 +1,505 @@
+package com.yoanpetrov.filesystemsimulator.storage;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Write-back block cache, placed in front of another container storage. Blocks are cached by their absolute
+ * block number and evicted in least recently used order. Written blocks are only marked as dirty and reach the
+ * underlying storage when they are evicted, or when force() is called.
+ * <p>
+ * The cache is split into stripes by block number, and every stripe is a separate LRU list with its own lock, so
+ * threads that access different blocks rarely wait for each other. A miss or an eviction accesses the underlying
+ * storage while only the lock of its stripe is held.
+ * <p>
+ * Large transfers of file data should bypass the cache through {@link #uncached()}, so they reach the underlying
+ * storage as single accesses and don't evict the cached metadata.
+ */
+public class CachedContainerStorage implements ContainerStorage {
+
+	private static final int MAX_STRIPES = 16;
+
+	private final ContainerStorage backing;
+	private final int blockSize;
+	private final Stripe[] stripes;
+	private final ContainerStorage uncached;
+
+	/**
+	 * Constructs a cache in front of the given storage.
+	 *
+	 * @param backing   the storage to cache the blocks of.
+	 * @param blockSize the size of a single block in bytes.
+	 * @param capacity  the maximum amount of blocks kept in memory.
+	 */
+	public CachedContainerStorage(ContainerStorage backing, int blockSize, int capacity) {
+		this.backing = backing;
+		this.blockSize = blockSize;
+		capacity = Math.max(capacity, 1);
+		stripes = new Stripe[Integer.highestOneBit(Math.min(capacity, MAX_STRIPES))];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe(capacity / stripes.length);
+		}
+		uncached = new UncachedView();
+	}
+
+	@Override
+	public void read(long position, byte[] destination, int offset, int length)
+			throws IOException {
+		while (length > 0) {
+			long block = position / blockSize;
+			int index = (int) (position % blockSize);
+			int count = Math.min(length, blockSize - index);
+			Stripe stripe = stripeOf(block);
+			synchronized (stripe) {
+				Entry entry = stripe.load(block);
+				System.arraycopy(entry.bytes, index, destination, offset, count);
+			}
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	@Override
+	public void write(long position, byte[] source, int offset, int length)
+			throws IOException {
+		while (length > 0) {
+			long block = position / blockSize;
+			int index = (int) (position % blockSize);
+			int count = Math.min(length, blockSize - index);
+			Stripe stripe = stripeOf(block);
+			synchronized (stripe) {
+				Entry entry = (count == blockSize)
+						? stripe.loadWithoutReading(block)
+						: stripe.load(block);
+				System.arraycopy(source, offset, entry.bytes, index, count);
+				stripe.markDirty(entry);
+			}
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Transfers the bytes directly to the underlying storage. Cached blocks in the range are dropped, after the
+	 * dirty ones that are only partially overwritten are written back.
+	 */
+	@Override
+	public void transferFrom(ReadableByteChannel source, long position, long count)
+			throws IOException {
+		dropRange(position, count);
+		backing.transferFrom(source, position, count);
+	}
+
+	/**
+	 * Transfers the bytes directly from the underlying storage, after the dirty cached blocks in the range are
+	 * written back.
+	 */
+	@Override
+	public void transferTo(long position, long count, WritableByteChannel target)
+			throws IOException {
+		writeBackRange(position, count);
+		backing.transferTo(position, count, target);
+	}
+
+	@Override
+	public long length()
+			throws IOException {
+		return backing.length();
+	}
+
+	/**
+	 * Writes all dirty blocks to the underlying storage in ascending block order and forces the underlying storage.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	@Override
+	public void force()
+			throws IOException {
+		flush();
+		backing.force();
+	}
+
+	@Override
+	public void close()
+			throws IOException {
+		flush();
+		backing.close();
+	}
+
+	/**
+	 * Returns a view of the container that reads and writes the underlying storage directly, with a single access
+	 * per call. Dirty cached blocks are written back before they are read through the view, and cached blocks are
+	 * dropped when they are written through it, so the cache and the view always see the same bytes. A range must
+	 * not be accessed through the cache and the view at the same time.
+	 *
+	 * @return the uncached view of the container.
+	 */
+	public ContainerStorage uncached() {
+		return uncached;
+	}
+
+	/**
+	 * Returns the amount of blocks currently kept in the cache.
+	 *
+	 * @return the amount of cached blocks.
+	 */
+	public int getSize() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the amount of cached blocks that haven't been written to the underlying storage yet.
+	 *
+	 * @return the amount of dirty blocks.
+	 */
+	public int getDirtyCount() {
+		int dirtyCount = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				dirtyCount += stripe.dirtyCount;
+			}
+		}
+		return dirtyCount;
+	}
+
+	/**
+	 * Writes all dirty blocks to the underlying storage in ascending block order, without forcing the underlying
+	 * storage. The blocks stay in the cache.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	public void flush()
+			throws IOException {
+		long[] dirty = new long[0];
+		int count = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				if (count + stripe.dirtyCount > dirty.length) {
+					dirty = Arrays.copyOf(dirty, count + stripe.dirtyCount);
+				}
+				for (Entry entry = stripe.head.next; entry != stripe.head; entry = entry.next) {
+					if (entry.dirty) {
+						dirty[count++] = entry.block;
+					}
+				}
+			}
+		}
+		Arrays.sort(dirty, 0, count);
+		for (int i = 0; i < count; i++) {
+			Stripe stripe = stripeOf(dirty[i]);
+			synchronized (stripe) {
+				Entry entry = stripe.find(dirty[i]);
+				if (entry != null && entry.dirty) {
+					stripe.writeBack(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the cached blocks in the given range, after the dirty ones that are only partially in the range are
+	 * written back.
+	 *
+	 * @param position the position of the range in the container.
+	 * @param count    the length of the range in bytes.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void dropRange(long position, long count)
+			throws IOException {
+		long firstBlock = position / blockSize;
+		long lastBlock = (position + count - 1) / blockSize;
+		for (long block = firstBlock; block <= lastBlock; block++) {
+			Stripe stripe = stripeOf(block);
+			synchronized (stripe) {
+				Entry entry = stripe.find(block);
+				if (entry != null) {
+					boolean fullyOverwritten = block * blockSize >= position
+							&& (block + 1) * blockSize <= position + count;
+					if (entry.dirty && !fullyOverwritten) {
+						stripe.writeBack(entry);
+					}
+					stripe.drop(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes back the dirty cached blocks in the given range. The blocks stay in the cache.
+	 *
+	 * @param position the position of the range in the container.
+	 * @param count    the length of the range in bytes.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	private void writeBackRange(long position, long count)
+			throws IOException {
+		long firstBlock = position / blockSize;
+		long lastBlock = (position + count - 1) / blockSize;
+		for (long block = firstBlock; block <= lastBlock; block++) {
+			Stripe stripe = stripeOf(block);
+			synchronized (stripe) {
+				Entry entry = stripe.find(block);
+				if (entry != null && entry.dirty) {
+					stripe.writeBack(entry);
+				}
+			}
+		}
+	}
+
+	private Stripe stripeOf(long block) {
+		return stripes[(int) block & (stripes.length - 1)];
+	}
+
+	/**
+	 * Uncached view of the container, see {@link #uncached()}.
+	 */
+	private class UncachedView implements ContainerStorage {
+
+		@Override
+		public void read(long position, byte[] destination, int offset, int length)
+				throws IOException {
+			if (length > 0) {
+				writeBackRange(position, length);
+				backing.read(position, destination, offset, length);
+			}
+		}
+
+		@Override
+		public void write(long position, byte[] source, int offset, int length)
+				throws IOException {
+			if (length > 0) {
+				dropRange(position, length);
+				backing.write(position, source, offset, length);
+			}
+		}
+
+		@Override
+		public void transferFrom(ReadableByteChannel source, long position, long count)
+				throws IOException {
+			CachedContainerStorage.this.transferFrom(source, position, count);
+		}
+
+		@Override
+		public void transferTo(long position, long count, WritableByteChannel target)
+				throws IOException {
+			CachedContainerStorage.this.transferTo(position, count, target);
+		}
+
+		@Override
+		public long length()
+				throws IOException {
+			return backing.length();
+		}
+
+		@Override
+		public void force()
+				throws IOException {
+			CachedContainerStorage.this.force();
+		}
+
+		@Override
+		public void close()
+				throws IOException {
+			CachedContainerStorage.this.close();
+		}
+	}
+
+	/**
+	 * Part of the cache, with its own LRU list and hash buckets. All methods must be called while the stripe is
+	 * locked.
+	 */
+	private class Stripe {
+		final int capacity;
+		final Entry[] buckets;
+		final Entry head;
+		int size;
+		int dirtyCount;
+
+		Stripe(int capacity) {
+			this.capacity = Math.max(capacity, 1);
+			int bucketCount = Integer.highestOneBit(this.capacity * 2 - 1) << 1;
+			buckets = new Entry[bucketCount];
+			head = new Entry(-1, null);
+			head.previous = head;
+			head.next = head;
+			size = 0;
+			dirtyCount = 0;
+		}
+
+		/**
+		 * Returns the cache entry of the given block, reading the block from the underlying storage on a miss.
+		 *
+		 * @param block the absolute number of the block.
+		 * @return the entry of the block.
+		 * @throws IOException if an i/o error occurs.
+		 */
+		Entry load(long block)
+				throws IOException {
+			Entry entry = find(block);
+			if (entry != null) {
+				moveToFront(entry);
+				return entry;
+			}
+			entry = allocate(block);
+			backing.read(block * blockSize, entry.bytes);
+			insert(entry);
+			return entry;
+		}
+
+		/**
+		 * Returns the cache entry of the given block without reading it from the underlying storage on a miss.
+		 * Used when the whole block is about to be overwritten.
+		 *
+		 * @param block the absolute number of the block.
+		 * @return the entry of the block.
+		 * @throws IOException if an i/o error occurs while evicting another block.
+		 */
+		Entry loadWithoutReading(long block)
+				throws IOException {
+			Entry entry = find(block);
+			if (entry != null) {
+				moveToFront(entry);
+				return entry;
+			}
+			entry = allocate(block);
+			insert(entry);
+			return entry;
+		}
+
+		/**
+		 * Creates an entry for the given block. If the stripe is full, the least recently used entry is evicted and
+		 * its byte array is reused.
+		 *
+		 * @param block the absolute number of the block.
+		 * @return the new entry, not yet inserted in the stripe.
+		 * @throws IOException if an i/o error occurs while writing back the evicted block.
+		 */
+		Entry allocate(long block)
+				throws IOException {
+			if (size < capacity) {
+				return new Entry(block, new byte[blockSize]);
+			}
+			Entry victim = head.previous;
+			if (victim.dirty) {
+				writeBack(victim);
+			}
+			unlink(victim);
+			removeFromBucket(victim);
+			size--;
+			return new Entry(block, victim.bytes);
+		}
+
+		/**
+		 * Removes the given entry from the stripe without writing it back.
+		 *
+		 * @param entry the entry to remove.
+		 */
+		void drop(Entry entry) {
+			if (entry.dirty) {
+				entry.dirty = false;
+				dirtyCount--;
+			}
+			unlink(entry);
+			removeFromBucket(entry);
+			size--;
+		}
+
+		void writeBack(Entry entry)
+				throws IOException {
+			backing.write(entry.block * blockSize, entry.bytes);
+			entry.dirty = false;
+			dirtyCount--;
+		}
+
+		void markDirty(Entry entry) {
+			if (!entry.dirty) {
+				entry.dirty = true;
+				dirtyCount++;
+			}
+		}
+
+		Entry find(long block) {
+			Entry entry = buckets[bucketOf(block)];
+			while (entry != null && entry.block != block) {
+				entry = entry.nextInBucket;
+			}
+			return entry;
+		}
+
+		void insert(Entry entry) {
+			int bucket = bucketOf(entry.block);
+			entry.nextInBucket = buckets[bucket];
+			buckets[bucket] = entry;
+			linkFirst(entry);
+			size++;
+		}
+
+		void removeFromBucket(Entry entry) {
+			int bucket = bucketOf(entry.block);
+			Entry current = buckets[bucket];
+			Entry previous = null;
+			while (current != entry) {
+				previous = current;
+				current = current.nextInBucket;
+			}
+			if (previous == null) {
+				buckets[bucket] = entry.nextInBucket;
+			} else {
+				previous.nextInBucket = entry.nextInBucket;
+			}
+			entry.nextInBucket = null;
+		}
+
+		void moveToFront(Entry entry) {
+			if (head.next != entry) {
+				unlink(entry);
+				linkFirst(entry);
+			}
+		}
+
+		void linkFirst(Entry entry) {
+			entry.previous = head;
+			entry.next = head.next;
+			head.next.previous = entry;
+			head.next = entry;
+		}
+
+		void unlink(Entry entry) {
+			entry.previous.next = entry.next;
+			entry.next.previous = entry.previous;
+		}
+
+		int bucketOf(long block) {
+			long hash = block * 0x9E3779B97F4A7C15L;
+			return (int) (hash >>> 32) & (buckets.length - 1);
+		}
+	}
+
+	/**
+	 * Cache entry, contains the bytes of a single block. Entries are chained in their hash bucket and in a doubly
+	 * linked list ordered from the most to the least recently used.
+	 */
+	private static class Entry {
+		final long block;
+		final byte[] bytes;
+		boolean dirty;
+		Entry previous;
+		Entry next;
+		Entry nextInBucket;
+
+		Entry(long block, byte[] bytes) {
+			this.block = block;
+			this.bytes = bytes;
+		}
+	}
+}
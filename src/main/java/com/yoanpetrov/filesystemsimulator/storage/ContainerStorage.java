@@ -0,0 +1,132 @@
+package com.yoanpetrov.filesystemsimulator.storage;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Positional access to the bytes of a container file. Every file system structure is read from and written to
+ * the container through an implementation of this interface.
+ */
+public interface ContainerStorage extends Closeable {
+
+	/**
+	 * Reads bytes from the container into the given array, starting at the given position in the container.
+	 *
+	 * @param position    the position in the container to start reading from.
+	 * @param destination the array to read the bytes into.
+	 * @param offset      the offset in the destination array.
+	 * @param length      the amount of bytes to read.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	void read(long position, byte[] destination, int offset, int length)
+			throws IOException;
+
+	/**
+	 * Writes bytes from the given array to the container, starting at the given position in the container.
+	 *
+	 * @param position the position in the container to start writing to.
+	 * @param source   the array to write the bytes from.
+	 * @param offset   the offset in the source array.
+	 * @param length   the amount of bytes to write.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	void write(long position, byte[] source, int offset, int length)
+			throws IOException;
+
+	/**
+	 * Reads enough bytes to fill the given array, starting at the given position in the container.
+	 *
+	 * @param position    the position in the container to start reading from.
+	 * @param destination the array to read the bytes into.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	default void read(long position, byte[] destination)
+			throws IOException {
+		read(position, destination, 0, destination.length);
+	}
+
+	/**
+	 * Writes the whole given array to the container, starting at the given position in the container.
+	 *
+	 * @param position the position in the container to start writing to.
+	 * @param source   the array to write the bytes from.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	default void write(long position, byte[] source)
+			throws IOException {
+		write(position, source, 0, source.length);
+	}
+
+	/**
+	 * Transfers bytes from the given channel, starting at the channel's current position, to the container.
+	 * Implementations backed by a file transfer the bytes without copying them through the Java heap.
+	 *
+	 * @param source   the channel to read the bytes from.
+	 * @param position the position in the container to start writing to.
+	 * @param count    the amount of bytes to transfer.
+	 * @throws IOException if an i/o error occurs, or if the channel ends before all bytes are transferred.
+	 */
+	default void transferFrom(ReadableByteChannel source, long position, long count)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+		while (count > 0) {
+			buffer.clear();
+			buffer.limit((int) Math.min(count, buffer.capacity()));
+			while (buffer.hasRemaining()) {
+				if (source.read(buffer) == -1) {
+					throw new EOFException("The source channel ended before the transfer was complete");
+				}
+			}
+			write(position, buffer.array(), 0, buffer.limit());
+			position += buffer.limit();
+			count -= buffer.limit();
+		}
+	}
+
+	/**
+	 * Transfers bytes from the container to the given channel, at the channel's current position.
+	 * Implementations backed by a file transfer the bytes without copying them through the Java heap.
+	 *
+	 * @param position the position in the container to start reading from.
+	 * @param count    the amount of bytes to transfer.
+	 * @param target   the channel to write the bytes to.
+	 * @throws IOException if an i/o error occurs, or if the channel doesn't accept any more bytes.
+	 */
+	default void transferTo(long position, long count, WritableByteChannel target)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+		while (count > 0) {
+			buffer.clear();
+			buffer.limit((int) Math.min(count, buffer.capacity()));
+			read(position, buffer.array(), 0, buffer.limit());
+			while (buffer.hasRemaining()) {
+				if (target.write(buffer) == 0) {
+					throw new IOException("The target channel did not accept any bytes");
+				}
+			}
+			position += buffer.limit();
+			count -= buffer.limit();
+		}
+	}
+
+	/**
+	 * Returns the size of the container in bytes.
+	 *
+	 * @return the size of the container.
+	 * @throws IOException if an i/o error occurs.
+	 */
+	long length()
+			throws IOException;
+
+	/**
+	 * Forces all written bytes to be stored on the underlying device.
+	 *
+	 * @throws IOException if an i/o error occurs.
+	 */
+	void force()
+			throws IOException;
+}
@@ -0,0 +1,91 @@
+package com.yoanpetrov.filesystemsimulator.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Container storage that accesses the container file with positional reads/writes on its channel. The file pointer
+ * is never moved, so the storage can be used by several threads at once.
+ */
+public class FileContainerStorage implements ContainerStorage {
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+
+	public FileContainerStorage(RandomAccessFile file) {
+		this.file = file;
+		channel = file.getChannel();
+	}
+
+	@Override
+	public void read(long position, byte[] destination, int offset, int length)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(destination, offset, length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position() - offset) == -1) {
+				throw new EOFException("The read range is past the end of the container");
+			}
+		}
+	}
+
+	@Override
+	public void write(long position, byte[] source, int offset, int length)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(source, offset, length);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position() - offset);
+		}
+	}
+
+	@Override
+	public void transferFrom(ReadableByteChannel source, long position, long count)
+			throws IOException {
+		while (count > 0) {
+			long transferred = channel.transferFrom(source, position, count);
+			if (transferred == 0) {
+				throw new EOFException("The source channel ended before the transfer was complete");
+			}
+			position += transferred;
+			count -= transferred;
+		}
+	}
+
+	@Override
+	public void transferTo(long position, long count, WritableByteChannel target)
+			throws IOException {
+		while (count > 0) {
+			long transferred = channel.transferTo(position, count, target);
+			if (transferred == 0) {
+				if (position >= channel.size()) {
+					throw new EOFException("The container ended before the transfer was complete");
+				}
+				throw new IOException("The target channel did not accept any bytes");
+			}
+			position += transferred;
+			count -= transferred;
+		}
+	}
+
+	@Override
+	public long length()
+			throws IOException {
+		return channel.size();
+	}
+
+	@Override
+	public void force()
+			throws IOException {
+		file.getFD().sync();
+	}
+
+	@Override
+	public void close()
+			throws IOException {
+		file.close();
+	}
+}
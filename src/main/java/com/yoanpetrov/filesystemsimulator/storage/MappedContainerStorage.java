@@ -0,0 +1,160 @@
+package com.yoanpetrov.filesystemsimulator.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Container storage that maps the whole container file into memory. The file is mapped as a sequence of
+ * chunks, because a single MappedByteBuffer cannot be larger than 2 GB. Reads and writes are served as copies
+ * from/to the mapped buffers, without seeking or issuing a system call per block.
+ */
+public class MappedContainerStorage implements ContainerStorage {
+
+	/**
+	 * The size of each mapped chunk. It is a multiple of every supported block size, so a block never spans
+	 * two chunks.
+	 */
+	public static final int CHUNK_SIZE = 1 << 30;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer[] chunks;
+	private final long length;
+
+	/**
+	 * Maps the given container file. The file must already have its final size.
+	 *
+	 * @param file the container file to map.
+	 * @throws IOException if an i/o error occurs while mapping the file.
+	 */
+	public MappedContainerStorage(RandomAccessFile file)
+			throws IOException {
+		this.file = file;
+		length = file.length();
+		FileChannel channel = file.getChannel();
+		int chunkCount = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		chunks = new MappedByteBuffer[chunkCount];
+		for (int i = 0; i < chunkCount; i++) {
+			long start = (long) i * CHUNK_SIZE;
+			long size = Math.min(CHUNK_SIZE, length - start);
+			chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+		}
+	}
+
+	@Override
+	public void read(long position, byte[] destination, int offset, int length)
+			throws IOException {
+		checkBounds(position, length);
+		while (length > 0) {
+			int chunk = (int) (position / CHUNK_SIZE);
+			int index = (int) (position % CHUNK_SIZE);
+			int count = Math.min(length, chunks[chunk].capacity() - index);
+			chunks[chunk].get(index, destination, offset, count);
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	@Override
+	public void write(long position, byte[] source, int offset, int length)
+			throws IOException {
+		checkBounds(position, length);
+		while (length > 0) {
+			int chunk = (int) (position / CHUNK_SIZE);
+			int index = (int) (position % CHUNK_SIZE);
+			int count = Math.min(length, chunks[chunk].capacity() - index);
+			chunks[chunk].put(index, source, offset, count);
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	@Override
+	public void transferFrom(ReadableByteChannel source, long position, long count)
+			throws IOException {
+		checkBounds(position, count);
+		while (count > 0) {
+			ByteBuffer slice = slice(position, count);
+			int length = slice.remaining();
+			while (slice.hasRemaining()) {
+				if (source.read(slice) == -1) {
+					throw new EOFException("The source channel ended before the transfer was complete");
+				}
+			}
+			position += length;
+			count -= length;
+		}
+	}
+
+	@Override
+	public void transferTo(long position, long count, WritableByteChannel target)
+			throws IOException {
+		checkBounds(position, count);
+		while (count > 0) {
+			ByteBuffer slice = slice(position, count);
+			int length = slice.remaining();
+			while (slice.hasRemaining()) {
+				if (target.write(slice) == 0) {
+					throw new IOException("The target channel did not accept any bytes");
+				}
+			}
+			position += length;
+			count -= length;
+		}
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public void force() {
+		for (MappedByteBuffer chunk : chunks) {
+			chunk.force();
+		}
+	}
+
+	@Override
+	public void close()
+			throws IOException {
+		force();
+		file.close();
+	}
+
+	/**
+	 * Returns a view of the mapped container, starting at the given position and ending at the given amount of
+	 * bytes or at the end of the chunk that contains the position, whichever comes first.
+	 *
+	 * @param position the starting position of the view.
+	 * @param count    the maximum length of the view.
+	 * @return the view of the mapped bytes.
+	 */
+	private ByteBuffer slice(long position, long count) {
+		int chunk = (int) (position / CHUNK_SIZE);
+		int index = (int) (position % CHUNK_SIZE);
+		int length = (int) Math.min(count, chunks[chunk].capacity() - index);
+		return chunks[chunk].slice(index, length);
+	}
+
+	/**
+	 * Checks whether the given range lies inside the mapped container.
+	 *
+	 * @param position the starting position of the range.
+	 * @param length   the length of the range.
+	 * @throws IOException if the range goes past the end of the container.
+	 */
+	private void checkBounds(long position, long length)
+			throws IOException {
+		if (position < 0 || position + length > this.length) {
+			throw new IOException("Access outside of the mapped container");
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.yoanpetrov.filesystemsimulator.storage;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import com.yoanpetrov.filesystemsimulator.metrics.FileSystemMetrics;
+
+/**
+ * Container storage that records every read, write and force of another storage in the metrics of a file system,
+ * together with the time it took. Transfers are passed on as they are, so they keep bypassing the Java heap, and are
+ * recorded as a single read or write.
+ */
+public class MeteredContainerStorage implements ContainerStorage {
+
+	private final ContainerStorage backing;
+	private final FileSystemMetrics metrics;
+
+	/**
+	 * Constructs a metered storage in front of the given storage.
+	 *
+	 * @param backing the storage to meter.
+	 * @param metrics the metrics to record the accesses in.
+	 */
+	public MeteredContainerStorage(ContainerStorage backing, FileSystemMetrics metrics) {
+		this.backing = backing;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void read(long position, byte[] destination, int offset, int length)
+			throws IOException {
+		long start = System.nanoTime();
+		backing.read(position, destination, offset, length);
+		metrics.recordRead(position, length, System.nanoTime() - start);
+	}
+
+	@Override
+	public void write(long position, byte[] source, int offset, int length)
+			throws IOException {
+		long start = System.nanoTime();
+		backing.write(position, source, offset, length);
+		metrics.recordWrite(position, length, System.nanoTime() - start);
+	}
+
+	@Override
+	public void transferFrom(ReadableByteChannel source, long position, long count)
+			throws IOException {
+		long start = System.nanoTime();
+		backing.transferFrom(source, position, count);
+		metrics.recordWrite(position, count, System.nanoTime() - start);
+	}
+
+	@Override
+	public void transferTo(long position, long count, WritableByteChannel target)
+			throws IOException {
+		long start = System.nanoTime();
+		backing.transferTo(position, count, target);
+		metrics.recordRead(position, count, System.nanoTime() - start);
+	}
+
+	@Override
+	public long length()
+			throws IOException {
+		return backing.length();
+	}
+
+	@Override
+	public void force()
+			throws IOException {
+		backing.force();
+		metrics.recordForce();
+	}
+
+	@Override
+	public void close()
+			throws IOException {
+		backing.close();
+	}
+}
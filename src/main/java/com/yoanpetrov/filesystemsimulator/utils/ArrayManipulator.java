@@ -127,9 +127,21 @@ public class ArrayManipulator {
 	 * @param array the array to count from.
 	 */
 	public static int getElementCount(byte[] array) {
+		return getElementCount(array, 0, array.length);
+	}
+
+	/**
+	 * Counts the amount of elements in the given range of the array. An element is counted if it has a value,
+	 * different from 0.
+	 *
+	 * @param array the array to count from.
+	 * @param start the starting index (inclusive).
+	 * @param end the ending index (exclusive).
+	 */
+	public static int getElementCount(byte[] array, int start, int end) {
 		int count = 0;
-		for (byte b : array) {
-			if (b == 0) {
+		for (int i = start; i < end; i++) {
+			if (array[i] == 0) {
 				break;
 			}
 			count++;
@@ -0,0 +1,217 @@
+package com.yoanpetrov.filesystemsimulator.utils;
+
+import java.util.Arrays;
+
+/**
+ * A compressor in the LZ4 block format, written in plain Java so it needs no native library.
+ * <p>
+ * A compressed block is a list of sequences. Each sequence starts with a token byte, whose high 4 bits are the
+ * length of the literals and low 4 bits the length of the match minus 4. A length of 15 is continued in the following
+ * bytes, each of which adds up to 255. The token is followed by the literals, and then by the offset of the match as
+ * 2 little-endian bytes. The last sequence only has literals. Matches are found through a hash table of the 4-byte
+ * sequences seen so far, which keeps the compression fast, at the cost of some missed matches.
+ */
+public class Lz4Codec {
+
+	private static final int MIN_MATCH = 4;
+	private static final int HASH_BITS = 12;
+	private static final int LAST_LITERALS = 5;
+	private static final int MATCH_FIND_LIMIT = 12;
+	private static final int MAX_OFFSET = 65535;
+	private static final int SKIP_TRIGGER = 6;
+
+	/**
+	 * Compresses the given bytes.
+	 *
+	 * @param source            the array with the bytes to compress.
+	 * @param sourceOffset      the position of the first byte to compress.
+	 * @param length            the amount of bytes to compress.
+	 * @param destination       the array to write the compressed bytes to.
+	 * @param destinationOffset the position to write the compressed bytes at.
+	 * @param capacity          the maximum amount of compressed bytes.
+	 * @return the amount of compressed bytes, -1 if they don't fit in the given capacity.
+	 */
+	public static int compress(byte[] source, int sourceOffset, int length,
+							   byte[] destination, int destinationOffset, int capacity) {
+		int[] table = new int[1 << HASH_BITS];
+		Arrays.fill(table, -1);
+		int end = sourceOffset + length;
+		int matchLimit = end - MATCH_FIND_LIMIT;
+		int destinationEnd = destinationOffset + capacity;
+		int anchor = sourceOffset;
+		int position = sourceOffset;
+		int output = destinationOffset;
+		while (position < matchLimit) {
+			int sequence = readInt(source, position);
+			int hash = hash(sequence);
+			int reference = table[hash];
+			table[hash] = position;
+			if (reference < 0 || position - reference > MAX_OFFSET || readInt(source, reference) != sequence) {
+				position += 1 + ((position - anchor) >>> SKIP_TRIGGER);
+				continue;
+			}
+			int matchEnd = position + MIN_MATCH;
+			int referenceEnd = reference + MIN_MATCH;
+			while (matchEnd < end - LAST_LITERALS && source[matchEnd] == source[referenceEnd]) {
+				matchEnd++;
+				referenceEnd++;
+			}
+			while (position > anchor && reference > sourceOffset && source[position - 1] == source[reference - 1]) {
+				position--;
+				reference--;
+			}
+			output = writeSequence(source, anchor, position - anchor, position - reference,
+					matchEnd - position - MIN_MATCH, destination, output, destinationEnd);
+			if (output < 0) {
+				return -1;
+			}
+			table[hash(readInt(source, matchEnd - 2))] = matchEnd - 2;
+			anchor = matchEnd;
+			position = matchEnd;
+		}
+		output = writeSequence(source, anchor, end - anchor, 0, -1, destination, output, destinationEnd);
+		return output < 0 ? -1 : output - destinationOffset;
+	}
+
+	/**
+	 * Decompresses the given bytes.
+	 *
+	 * @param source            the array with the compressed bytes.
+	 * @param sourceOffset      the position of the first compressed byte.
+	 * @param length            the amount of compressed bytes.
+	 * @param destination       the array to write the decompressed bytes to.
+	 * @param destinationOffset the position to write the decompressed bytes at.
+	 * @param capacity          the maximum amount of decompressed bytes.
+	 * @return the amount of decompressed bytes, -1 if the compressed bytes are malformed or decompress to more than
+	 * the given capacity.
+	 */
+	public static int decompress(byte[] source, int sourceOffset, int length,
+								 byte[] destination, int destinationOffset, int capacity) {
+		int position = sourceOffset;
+		int end = sourceOffset + length;
+		int output = destinationOffset;
+		int destinationEnd = destinationOffset + capacity;
+		while (position < end) {
+			int token = source[position++] & 0xFF;
+			int literalLength = token >>> 4;
+			if (literalLength == 15) {
+				int extra;
+				do {
+					if (position >= end) {
+						return -1;
+					}
+					extra = source[position++] & 0xFF;
+					literalLength += extra;
+				} while (extra == 255);
+			}
+			if (literalLength > end - position || literalLength > destinationEnd - output) {
+				return -1;
+			}
+			System.arraycopy(source, position, destination, output, literalLength);
+			position += literalLength;
+			output += literalLength;
+			if (position == end) {
+				break;
+			}
+			if (end - position < 2) {
+				return -1;
+			}
+			int offset = (source[position] & 0xFF) | (source[position + 1] & 0xFF) << 8;
+			position += 2;
+			if (offset == 0 || offset > output - destinationOffset) {
+				return -1;
+			}
+			int matchLength = token & 0x0F;
+			if (matchLength == 15) {
+				int extra;
+				do {
+					if (position >= end) {
+						return -1;
+					}
+					extra = source[position++] & 0xFF;
+					matchLength += extra;
+				} while (extra == 255);
+			}
+			matchLength += MIN_MATCH;
+			if (matchLength > destinationEnd - output) {
+				return -1;
+			}
+			int reference = output - offset;
+			if (offset >= matchLength) {
+				System.arraycopy(destination, reference, destination, output, matchLength);
+			} else {
+				for (int i = 0; i < matchLength; i++) {
+					destination[output + i] = destination[reference + i];
+				}
+			}
+			output += matchLength;
+		}
+		return output - destinationOffset;
+	}
+
+	/**
+	 * Writes a sequence of literals, followed by a match.
+	 *
+	 * @param source         the array with the compressed bytes.
+	 * @param literalStart   the position of the literals in the source.
+	 * @param literalLength  the amount of literals.
+	 * @param offset         the distance back to the start of the match.
+	 * @param matchLength    the length of the match minus 4, -1 if the sequence is the last one and has no match.
+	 * @param destination    the array to write the sequence to.
+	 * @param output         the position to write the sequence at.
+	 * @param destinationEnd the position at which the destination ends.
+	 * @return the position after the sequence, -1 if it doesn't fit in the destination.
+	 */
+	private static int writeSequence(byte[] source, int literalStart, int literalLength, int offset, int matchLength,
+									 byte[] destination, int output, int destinationEnd) {
+		int needed = 1 + literalLength + literalLength / 255 + 1;
+		if (matchLength >= 0) {
+			needed += 2 + matchLength / 255 + 1;
+		}
+		if (needed > destinationEnd - output) {
+			return -1;
+		}
+		int tokenPosition = output++;
+		int token;
+		if (literalLength >= 15) {
+			token = 0xF0;
+			output = writeLength(destination, output, literalLength - 15);
+		} else {
+			token = literalLength << 4;
+		}
+		System.arraycopy(source, literalStart, destination, output, literalLength);
+		output += literalLength;
+		if (matchLength >= 0) {
+			destination[output++] = (byte) offset;
+			destination[output++] = (byte) (offset >>> 8);
+			if (matchLength >= 15) {
+				token |= 0x0F;
+				output = writeLength(destination, output, matchLength - 15);
+			} else {
+				token |= matchLength;
+			}
+		}
+		destination[tokenPosition] = (byte) token;
+		return output;
+	}
+
+	private static int writeLength(byte[] destination, int output, int length) {
+		while (length >= 255) {
+			destination[output++] = (byte) 255;
+			length -= 255;
+		}
+		destination[output++] = (byte) length;
+		return output;
+	}
+
+	private static int readInt(byte[] bytes, int position) {
+		return (bytes[position] & 0xFF)
+				| (bytes[position + 1] & 0xFF) << 8
+				| (bytes[position + 2] & 0xFF) << 16
+				| (bytes[position + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (Integer.SIZE - HASH_BITS);
+	}
+}